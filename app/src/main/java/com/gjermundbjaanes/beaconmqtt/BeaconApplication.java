@@ -1,124 +1,207 @@
 package com.gjermundbjaanes.beaconmqtt;
 
 import android.app.Application;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
-import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.gjermundbjaanes.beaconmqtt.beacon.AdaptiveScanScheduler;
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconEventListener;
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconFormat;
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconPresenceStore;
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconRegionManager;
+import com.gjermundbjaanes.beaconmqtt.beacon.PresenceMode;
+import com.gjermundbjaanes.beaconmqtt.beacon.RangedRegionTracker;
+import com.gjermundbjaanes.beaconmqtt.beacon.RegionPlanner;
 import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconPersistence;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconRegistry;
 import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
 import com.gjermundbjaanes.beaconmqtt.db.log.LogPersistence;
+import com.gjermundbjaanes.beaconmqtt.db.zone.ZonePersistence;
+import com.gjermundbjaanes.beaconmqtt.event.BackpressurePolicy;
+import com.gjermundbjaanes.beaconmqtt.event.BeaconEvent;
+import com.gjermundbjaanes.beaconmqtt.event.BeaconEventHandler;
+import com.gjermundbjaanes.beaconmqtt.event.BeaconEventPipeline;
 import com.gjermundbjaanes.beaconmqtt.mqtt.MqttBroadcaster;
+import com.gjermundbjaanes.beaconmqtt.notification.BeaconNotifier;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
+import com.gjermundbjaanes.beaconmqtt.zone.ZoneAggregator;
 
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.BeaconParser;
-import org.altbeacon.beacon.Identifier;
 import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.startup.BootstrapNotifier;
-import org.altbeacon.beacon.startup.RegionBootstrap;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-
-import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_NOTIFICATIONS_ENTER_KEY;
-import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_NOTIFICATIONS_EXIT_KEY;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_ADAPTIVE_MAX_BETWEEN_SCANS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_ADAPTIVE_MIN_BETWEEN_SCANS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_ADAPTIVE_SCANNING_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_COMPACT_REGIONS_KEY;
 import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_PERIOD_BETWEEN_SCANS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_PRESENCE_MODE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_RSSI_ENTER_THRESHOLD_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_RSSI_EXIT_THRESHOLD_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_RSSI_MIN_DWELL_KEY;
 import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_SCAN_PERIOD_KEY;
-import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.GENEARL_LOG_KEY;
-import static org.altbeacon.beacon.BeaconManager.DEFAULT_BACKGROUND_BETWEEN_SCAN_PERIOD;
-import static org.altbeacon.beacon.BeaconManager.DEFAULT_BACKGROUND_SCAN_PERIOD;
 
-public class BeaconApplication extends Application implements BootstrapNotifier {
+public class BeaconApplication extends Application implements BootstrapNotifier, BeaconEventListener, BeaconEventHandler, ZoneAggregator.Listener {
 
     private static final String TAG = BeaconApplication.class.getName();
+    private static final int EVENT_QUEUE_CAPACITY = 1024;
+    private static final long EVENT_QUEUE_DRAIN_TIMEOUT_MS = 5000;
 
-    private RegionBootstrap regionBootstrap; // Needs to be here even if not used (altbeacon requirement)
-    private SharedPreferences.OnSharedPreferenceChangeListener listener; // Needs to be here even if not used (altbeacon requirement)
+    private BeaconRegionManager beaconRegionManager = new BeaconRegionManager(this);
+    private AppConfigHolder appConfigHolder;
     private BeaconPersistence beaconPersistence = new BeaconPersistence(this);
+    private BeaconRegistry beaconRegistry = BeaconRegistry.getInstance();
     private LogPersistence logPersistence = new LogPersistence(this);
     private MqttBroadcaster mqttBroadcaster = null;
-    private List<BeaconResult> beaconsInRange = new ArrayList<>();
-    private BeaconInRangeListener beaconInRangeListener = null;
+    private BeaconPresenceStore beaconPresenceStore = new BeaconPresenceStore(new Handler(Looper.getMainLooper()));
+    private RangedRegionTracker rangedRegionTracker;
+    private AdaptiveScanScheduler adaptiveScanScheduler;
+    private BeaconEventPipeline beaconEventPipeline;
+    private BeaconNotifier beaconNotifier = new BeaconNotifier(this, new Handler(Looper.getMainLooper()));
+    private ZonePersistence zonePersistence = new ZonePersistence(this);
+    private ZoneAggregator zoneAggregator = new ZoneAggregator(this);
+    private Set<String> enteredRegionIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Runnable updateZones = new Runnable() {
+        @Override
+        public void run() {
+            // On the event consumer thread, which publishes and logs zone changes in step with beacon events
+            List<BeaconIdentity> presentBeacons = new ArrayList<>();
+            for (BeaconResult beacon : beaconPresenceStore.getSnapshot().getBeacons()) {
+                presentBeacons.add(beacon.getIdentity());
+            }
+            zoneAggregator.setZones(zonePersistence.getZones(), presentBeacons);
+        }
+    };
 
     @Override
     public void onCreate() {
         super.onCreate();
 
+        appConfigHolder = new AppConfigHolder(PreferenceManager.getDefaultSharedPreferences(this));
+
         if (mqttBroadcaster == null) {
-            mqttBroadcaster = new MqttBroadcaster(this);
+            mqttBroadcaster = new MqttBroadcaster(this, appConfigHolder, new Handler(Looper.getMainLooper()));
         } // TODO: Should I set the context again?
 
+        beaconRegistry.load(beaconPersistence);
+        mqttBroadcaster.beaconsChanged(beaconRegistry.getBeacons());
+        beaconPresenceStore.addListener(new BeaconPresenceStore.Listener() {
+            @Override
+            public void onPresenceChanged(BeaconPresenceStore.Snapshot snapshot) {
+                mqttBroadcaster.presenceChanged(snapshot);
+            }
+        });
+        beaconEventPipeline = new BeaconEventPipeline(EVENT_QUEUE_CAPACITY, this, new BeaconEventPipeline.PolicyProvider() {
+            @Override
+            public BackpressurePolicy getBackpressurePolicy() {
+                BackpressurePolicy policy = appConfigHolder.get().getEventQueuePolicy();
+                if (policy == BackpressurePolicy.BLOCK && Looper.myLooper() == Looper.getMainLooper()) {
+                    return BackpressurePolicy.DROP_OLDEST; // Never hold up the main thread
+                }
+                return policy;
+            }
+        });
+        beaconEventPipeline.execute(updateZones); // Before any beacon event can be queued
+
         final BeaconManager beaconManager = setUpBeaconManager();
+        rangedRegionTracker = new RangedRegionTracker(beaconManager, beaconRegistry, appConfigHolder, this);
+        adaptiveScanScheduler = new AdaptiveScanScheduler(this, beaconManager, appConfigHolder, new Handler(Looper.getMainLooper()));
 
-        SharedPreferences defaultSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        setUpSettingsChangedListener(beaconManager, defaultSharedPreferences);
-        setUpScanningSettings(beaconManager, defaultSharedPreferences);
+        setUpSettingsChangedListener(beaconManager);
+        setUpScanningSettings(beaconManager, appConfigHolder.get());
 
         startSearchForBeacons();
     }
 
-    public void restartBeaconSearch() {
-        beaconsInRange = new ArrayList<>();
+    @Override
+    public void onTerminate() {
+        super.onTerminate();
+        beaconEventPipeline.shutdown(EVENT_QUEUE_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mqttBroadcaster.shutdown();
+    }
+
+    public void updateBeaconSearch() {
         startSearchForBeacons();
+        beaconPresenceStore.retainAll(beaconRegistry.getBeacons());
+        mqttBroadcaster.beaconsChanged(beaconRegistry.getBeacons());
+        beaconEventPipeline.execute(updateZones);
     }
 
     @NonNull
     private BeaconManager setUpBeaconManager() {
         final BeaconManager beaconManager = BeaconManager.getInstanceForApplication(this);
-        beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout("m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24,d:25-25"));
-        beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout("s:0-1=feaa,m:2-2=00,p:3-3:-41,i:4-13,i:14-19"));
-        beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout("x,s:0-1=feaa,m:2-2=20,d:3-3,d:4-5,d:6-7,d:8-11,d:12-15"));
-        beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout("s:0-1=feaa,m:2-2=10,p:3-3:-41,i:4-20v"));
-        beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout("m:2-3=0215,i:4-19,i:20-21,i:22-23,p:24-24"));
-        beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout("m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24,d:25-25"));
-        beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout("m:0-3=4c000215,i:4-19,i:20-21,i:22-23,p:24-24"));
+        Set<BeaconFormat> beaconFormats = appConfigHolder.get().getBeaconFormats();
+        List<BeaconParser> beaconParsers = beaconManager.getBeaconParsers();
+        beaconParsers.clear(); // Also drops the library's default AltBeacon parser, so that format can be turned off
+        beaconParsers.addAll(BeaconFormat.createParsers(BeaconFormat.getLayouts(beaconFormats)));
+        Log.i(TAG, "Parsing beacon formats " + beaconFormats);
         return beaconManager;
     }
 
-    private void setUpSettingsChangedListener(final BeaconManager beaconManager, SharedPreferences defaultSharedPreferences) {
-        listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+    private void setUpSettingsChangedListener(final BeaconManager beaconManager) {
+        appConfigHolder.addListener(new AppConfigHolder.Listener() {
             @Override
-            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-                if (BEACON_PERIOD_BETWEEN_SCANS_KEY.equals(key)) {
-                    Long beaconPeriodBetweenScans = Long.parseLong(sharedPreferences.getString(key, Long.valueOf(DEFAULT_BACKGROUND_BETWEEN_SCAN_PERIOD).toString()));
-                    beaconManager.setBackgroundBetweenScanPeriod(beaconPeriodBetweenScans);
-                } else if (BEACON_SCAN_PERIOD_KEY.equals(key)) {
-                    Long beaconScanPeriod = Long.parseLong(sharedPreferences.getString(key, Long.valueOf(DEFAULT_BACKGROUND_SCAN_PERIOD).toString()));
-                    beaconManager.setBackgroundScanPeriod(beaconScanPeriod);
+            public void onConfigChanged(AppConfig config, String key) {
+                if (BEACON_PERIOD_BETWEEN_SCANS_KEY.equals(key)
+                        || BEACON_SCAN_PERIOD_KEY.equals(key)
+                        || BEACON_ADAPTIVE_SCANNING_KEY.equals(key)
+                        || BEACON_ADAPTIVE_MIN_BETWEEN_SCANS_KEY.equals(key)
+                        || BEACON_ADAPTIVE_MAX_BETWEEN_SCANS_KEY.equals(key)) {
+                    setUpScanningSettings(beaconManager, config);
+                } else if (BEACON_COMPACT_REGIONS_KEY.equals(key)) {
+                    startSearchForBeacons();
+                } else if (BEACON_PRESENCE_MODE_KEY.equals(key)) {
+                    setUpScanningSettings(beaconManager, config);
+                    rangedRegionTracker.stopTrackingAll();
+                    exitPresentBeacons(); // Those entered by region monitoring, which the new mode would never exit
+                    startSearchForBeacons();
+                } else if (BEACON_RSSI_ENTER_THRESHOLD_KEY.equals(key)
+                        || BEACON_RSSI_EXIT_THRESHOLD_KEY.equals(key)
+                        || BEACON_RSSI_MIN_DWELL_KEY.equals(key)) {
+                    rangedRegionTracker.stopTrackingAll();
+                    startSearchForBeacons();
                 }
             }
-        };
-        defaultSharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+        });
     }
 
-    private void setUpScanningSettings(BeaconManager beaconManager, SharedPreferences defaultSharedPreferences) {
-        Long beaconPeriodBetweenScans = Long.parseLong(defaultSharedPreferences.getString(BEACON_PERIOD_BETWEEN_SCANS_KEY, Long.valueOf(DEFAULT_BACKGROUND_BETWEEN_SCAN_PERIOD).toString()));
-        beaconManager.setBackgroundBetweenScanPeriod(beaconPeriodBetweenScans);
-
-        Long beaconScanPeriod = Long.parseLong(defaultSharedPreferences.getString(BEACON_SCAN_PERIOD_KEY, Long.valueOf(DEFAULT_BACKGROUND_SCAN_PERIOD).toString()));
-        beaconManager.setBackgroundScanPeriod(beaconScanPeriod);
+    private void setUpScanningSettings(BeaconManager beaconManager, AppConfig config) {
+        if (config.getPresenceMode() == PresenceMode.RANGING) {
+            // Exits within seconds need a ranging callback every scan period
+            adaptiveScanScheduler.stop();
+            beaconManager.setBackgroundBetweenScanPeriod(0);
+            beaconManager.setBackgroundScanPeriod(config.getRangingScanPeriod());
+        } else if (config.isAdaptiveScanning()) {
+            adaptiveScanScheduler.start();
+        } else {
+            adaptiveScanScheduler.stop();
+            beaconManager.setBackgroundBetweenScanPeriod(config.getBackgroundBetweenScanPeriod());
+            beaconManager.setBackgroundScanPeriod(config.getBackgroundScanPeriod());
+        }
     }
 
     private void startSearchForBeacons() {
-        List<BeaconResult> beacons = beaconPersistence.getBeacons();
+        List<BeaconResult> beacons = beaconRegistry.getBeacons();
 
-        List<Region> regions = new ArrayList<>(beacons.size());
+        List<BeaconIdentity> identities = new ArrayList<>(beacons.size());
         for (BeaconResult beacon : beacons) {
-            String id = beacon.getUuid() + beacon.getMajor() + beacon.getMinor();
-            try {
-                Region region = new Region(id,
-                        Identifier.parse(beacon.getUuid()),
-                        Identifier.parse(beacon.getMajor()),
-                        Identifier.parse(beacon.getMinor()));
-                regions.add(region);
-            } catch (IllegalArgumentException e) {
+            if (beacon.getIdentity() != null) {
+                identities.add(beacon.getIdentity());
+            } else {
                 String informalName = beacon.getInformalName();
                 StringBuilder stringBuilder = new StringBuilder();
                 stringBuilder.append(getString(R.string.not_able_to_start_monitoring_for_beacon_error_1));
@@ -128,114 +211,209 @@ public class BeaconApplication extends Application implements BootstrapNotifier
                 stringBuilder.append("uuid: \"").append(beacon.getUuid()).append("\" major: \"").append(beacon.getMajor()).append("\" minor: \"").append(beacon.getMinor()).append("\"");
 
                 String errorMessage = stringBuilder.toString();
-                Log.e(TAG, errorMessage, e);
+                Log.e(TAG, errorMessage);
 
                 Toast.makeText(this, errorMessage, Toast.LENGTH_LONG).show();
             }
         }
 
-        regionBootstrap = new RegionBootstrap(this, regions);
+        AppConfig config = appConfigHolder.get();
+        List<Region> regions = RegionPlanner.plan(identities, config.isCompactRegions());
+        List<Region> removedRegions = beaconRegionManager.updateRegions(regions);
+        for (Region removedRegion : removedRegions) {
+            enteredRegionIds.remove(removedRegion.getUniqueId());
+            rangedRegionTracker.stopTracking(removedRegion);
+            if (RegionPlanner.isBeaconRegion(removedRegion)) {
+                BeaconResult beacon = beaconRegistry.getBeacon(BeaconIdentity.fromIdentifiers(removedRegion.getId1(), removedRegion.getId2(), removedRegion.getId3()));
+                if (beacon != null) {
+                    onBeaconExited(beacon); // No longer monitored, so there will be no exit for it
+                }
+            }
+        }
+
+        for (Region region : regions) {
+            if (config.isRangedPresence() || (!RegionPlanner.isBeaconRegion(region) && enteredRegionIds.contains(region.getUniqueId()))) {
+                rangedRegionTracker.startTracking(region);
+            }
+        }
+    }
+
+    private void exitPresentBeacons() {
+        for (BeaconResult beacon : beaconPresenceStore.getSnapshot().getBeacons()) {
+            onBeaconExited(beacon);
+        }
     }
 
     @Override
     public void didEnterRegion(Region region) {
-        String uuid = region.getId1().toString();
-        String major = region.getId2().toString();
-        String minor = region.getId3().toString();
+        enteredRegionIds.add(region.getUniqueId());
+        if (appConfigHolder.get().isRangedPresence()) {
+            Log.i(TAG, "Entered region " + region.getUniqueId() + ", presence is decided by ranging");
+            rangedRegionTracker.startTracking(region);
+            return;
+        }
 
-        Log.i(TAG, getString(R.string.beacon_spotted_notification_message, uuid, major, minor));
-        mqttBroadcaster.publishEnterMessage(uuid, major, minor);
+        if (!RegionPlanner.isBeaconRegion(region)) {
+            Log.i(TAG, "Entered region " + region.getUniqueId() + ", ranging to find saved beacons");
+            rangedRegionTracker.startTracking(region);
+            return;
+        }
 
-        BeaconResult beacon = beaconPersistence.getBeacon(uuid, major, minor);
+        BeaconResult beacon = beaconRegistry.getBeacon(BeaconIdentity.fromIdentifiers(region.getId1(), region.getId2(), region.getId3()));
         if (beacon != null) {
-            beaconsInRange.add(beacon);
-            if (beaconInRangeListener != null) {
-                beaconInRangeListener.beaconsInRangeChanged(beaconsInRange);
-            }
-
-            String message = getString(R.string.beacon_spotted_notification_message, uuid, major, minor);
-
-            boolean showNotification = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(BEACON_NOTIFICATIONS_ENTER_KEY, false);
-            if (showNotification) {
+            onBeaconEntered(beacon);
+        }
+    }
 
-                if (beacon.getInformalName() != null) {
-                    message = beacon.getInformalName() + " " +  message;
-                }
+    @Override
+    public void didExitRegion(Region region) {
+        enteredRegionIds.remove(region.getUniqueId());
+        if (appConfigHolder.get().isRangedPresence()) {
+            Log.i(TAG, "Exited region " + region.getUniqueId() + ", presence is decided by ranging");
+            return;
+        }
 
-                showNotification(getString(R.string.beacon_spotted_notification_title), message);
-            }
+        if (!RegionPlanner.isBeaconRegion(region)) {
+            Log.i(TAG, "Exited region " + region.getUniqueId());
+            rangedRegionTracker.stopTracking(region);
+            return;
+        }
 
-            boolean logEvent = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(GENEARL_LOG_KEY, false);
-            if (logEvent) {
-                logPersistence.saveNewLog(message, "");
-            }
+        BeaconResult beacon = beaconRegistry.getBeacon(BeaconIdentity.fromIdentifiers(region.getId1(), region.getId2(), region.getId3()));
+        if (beacon != null) {
+            onBeaconExited(beacon);
         }
     }
 
     @Override
-    public void didExitRegion(Region region) {
-        String uuid = region.getId1().toString();
-        String major = region.getId2().toString();
-        String minor = region.getId3().toString();
+    public void onBeaconEntered(BeaconResult beacon) {
+        if (!beaconPresenceStore.add(beacon)) {
+            return;
+        }
+        adaptiveScanScheduler.reportActivity();
+        beaconEventPipeline.enqueue(new BeaconEvent(BeaconEvent.Type.ENTER, beacon, System.currentTimeMillis()));
+    }
 
-        Log.i(TAG, getString(R.string.beacon_exit_notification_message, uuid, region.getId2(), region.getId3()));
-        mqttBroadcaster.publishExitMessage(uuid, major, minor);
+    @Override
+    public void onBeaconExited(BeaconResult beacon) {
+        if (!beaconPresenceStore.remove(beacon)) {
+            return;
+        }
+        adaptiveScanScheduler.reportActivity();
+        beaconEventPipeline.enqueue(new BeaconEvent(BeaconEvent.Type.EXIT, beacon, System.currentTimeMillis()));
+    }
 
-        BeaconResult beacon = beaconPersistence.getBeacon(uuid, major, minor);
-        if (beacon != null) {
-            beaconsInRange.remove(beacon);
-            if (beaconInRangeListener != null) {
-                beaconInRangeListener.beaconsInRangeChanged(beaconsInRange);
+    @Override
+    public void handleBeaconEvent(BeaconEvent event) {
+        BeaconResult beacon = event.getBeacon();
+        BeaconIdentity identity = beacon.getIdentity();
+        String uuid = beacon.getUuid();
+        String major = beacon.getMajor();
+        String minor = beacon.getMinor();
+        AppConfig config = appConfigHolder.get();
+
+        boolean publishBeaconEvent = !config.isMqttZoneEventsOnly() || !zoneAggregator.isInZone(identity);
+
+        String message;
+        boolean showNotification;
+        if (event.getType() == BeaconEvent.Type.ENTER) {
+            if (publishBeaconEvent) {
+                mqttBroadcaster.publishEnterMessage(beacon, event.getTimestamp());
             }
+            message = getString(R.string.beacon_spotted_notification_message, uuid, major, minor);
+            showNotification = config.isNotificationsOnEnter();
+            if (showNotification) {
+                beaconNotifier.beaconEntered(beacon);
+            }
+        } else {
+            if (publishBeaconEvent) {
+                mqttBroadcaster.publishExitMessage(beacon, event.getTimestamp());
+            }
+            message = getString(R.string.beacon_exit_notification_message, uuid, major, minor);
+            showNotification = config.isNotificationsOnExit();
+            if (showNotification) {
+                beaconNotifier.beaconExited(beacon);
+            }
+        }
+        Log.i(TAG, message);
 
-            String message = getString(R.string.beacon_exit_notification_message, uuid, major, minor);
+        if (showNotification && beacon.getInformalName() != null) {
+            message = beacon.getInformalName() + " " +  message;
+        }
 
-            boolean showNotification = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(BEACON_NOTIFICATIONS_EXIT_KEY, false);
-            if (showNotification) {
+        if (config.isLogEnabled()) {
+            logPersistence.saveNewLog(message, "");
+        }
 
+        if (event.getType() == BeaconEvent.Type.ENTER) {
+            zoneAggregator.beaconEntered(identity);
+        } else {
+            zoneAggregator.beaconExited(identity);
+        }
+    }
 
-                if (beacon.getInformalName() != null) {
-                    message = beacon.getInformalName() + " " +  message;
+    /**
+     * Dropped events never reached the zones or the enter and exit topics, so
+     * they are caught up with the present beacons, e.g. a zone is exited
+     * whose last beacon's exit was dropped.
+     */
+    @Override
+    public void eventsDropped(long droppedCount) {
+        Log.w(TAG, "Event queue was full, dropped " + droppedCount + " events");
+        BeaconPresenceStore.Snapshot snapshot = beaconPresenceStore.getSnapshot();
+        Set<BeaconIdentity> handledBeacons = zoneAggregator.getPresentBeacons();
+        long timestamp = System.currentTimeMillis();
+
+        for (BeaconIdentity identity : handledBeacons) {
+            if (!snapshot.contains(identity)) {
+                BeaconResult beacon = beaconRegistry.getBeacon(identity);
+                if (beacon != null) {
+                    handleBeaconEvent(new BeaconEvent(BeaconEvent.Type.EXIT, beacon, timestamp));
+                } else {
+                    zoneAggregator.beaconExited(identity); // Deleted meanwhile
                 }
-
-                showNotification(getString(R.string.beacon_exit_notification_title), message);
             }
-
-            boolean logEvent = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(GENEARL_LOG_KEY, false);
-            if (logEvent) {
-                logPersistence.saveNewLog(message, "");
+        }
+        for (BeaconResult beacon : snapshot.getBeacons()) {
+            if (!handledBeacons.contains(beacon.getIdentity())) {
+                handleBeaconEvent(new BeaconEvent(BeaconEvent.Type.ENTER, beacon, timestamp));
             }
         }
     }
 
     @Override
-    public void didDetermineStateForRegion(int state, Region region) {
-        Log.i(TAG, "I have just switched from seeing/not seeing beacons: " + state);
+    public void onZoneEntered(String zone) {
+        Log.i(TAG, "Entered zone " + zone);
+        mqttBroadcaster.publishZoneEnterMessage(zone);
+        if (appConfigHolder.get().isLogEnabled()) {
+            logPersistence.saveNewLog(getString(R.string.zone_entered_log_message, zone), "");
+        }
     }
 
-    private void showNotification(String title, String message) {
-        Intent notifyIntent = new Intent(this, MainActivity.class);
-        notifyIntent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-        PendingIntent pendingIntent = PendingIntent.getActivities(this, 0,
-                new Intent[] { notifyIntent }, PendingIntent.FLAG_UPDATE_CURRENT);
-        Notification notification = new Notification.Builder(this)
-                .setSmallIcon(android.R.drawable.ic_dialog_info)
-                .setContentTitle(title)
-                .setContentText(message)
-                .setAutoCancel(true)
-                .setContentIntent(pendingIntent)
-                .build();
-        notification.defaults |= Notification.DEFAULT_SOUND;
-        NotificationManager notificationManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        notificationManager.notify(1, notification);
+    @Override
+    public void onZoneExited(String zone) {
+        Log.i(TAG, "Exited zone " + zone);
+        mqttBroadcaster.publishZoneExitMessage(zone);
+        if (appConfigHolder.get().isLogEnabled()) {
+            logPersistence.saveNewLog(getString(R.string.zone_exited_log_message, zone), "");
+        }
+    }
+
+    @Override
+    public void onBeaconMoved(BeaconResult beacon) {
+        adaptiveScanScheduler.reportActivity();
+    }
+
+    @Override
+    public void didDetermineStateForRegion(int state, Region region) {
+        Log.i(TAG, "I have just switched from seeing/not seeing beacons: " + state);
     }
 
-    public void setBeaconInRangeListener(BeaconInRangeListener beaconInRangeListener) {
-        this.beaconInRangeListener = beaconInRangeListener;
+    public BeaconPresenceStore getBeaconPresenceStore() {
+        return beaconPresenceStore;
     }
 
-    interface BeaconInRangeListener {
-        void beaconsInRangeChanged(List<BeaconResult> beacons);
+    public BeaconEventPipeline getBeaconEventPipeline() {
+        return beaconEventPipeline;
     }
 }
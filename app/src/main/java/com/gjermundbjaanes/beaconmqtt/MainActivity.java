@@ -18,6 +18,7 @@ import android.view.View;
 import android.widget.ExpandableListView;
 import android.widget.Toast;
 
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconPresenceStore;
 import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconPersistence;
 import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
 import com.gjermundbjaanes.beaconmqtt.log.LogActivity;
@@ -32,6 +33,7 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int PERMISSION_REQUEST_FINE_LOCATION = 1;
     private BeaconOverviewAdapter beaconOverviewAdapter;
+    private BeaconPresenceStore.Listener presenceListener;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -56,18 +58,13 @@ public class MainActivity extends AppCompatActivity {
         beaconOverviewListView.expandGroup(0);
         beaconOverviewListView.expandGroup(1);
 
-        BeaconApplication beaconApplication = (BeaconApplication) getApplication();
-        beaconApplication.setBeaconInRangeListener(new BeaconApplication.BeaconInRangeListener() {
+        presenceListener = new BeaconPresenceStore.Listener() {
             @Override
-            public void beaconsInRangeChanged(final List<BeaconResult> beacons) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        beaconOverviewAdapter.updateBeaconsInRange(beacons);
-                    }
-                });
+            public void onPresenceChanged(BeaconPresenceStore.Snapshot snapshot) {
+                beaconOverviewAdapter.updateBeaconsInRange(snapshot.getBeacons());
             }
-        });
+        };
+        ((BeaconApplication) getApplication()).getBeaconPresenceStore().addListener(presenceListener);
     }
 
     private void checkPermissions() {
@@ -104,6 +101,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        ((BeaconApplication) getApplication()).getBeaconPresenceStore().removeListener(presenceListener);
     }
 
     @Override
@@ -170,7 +168,7 @@ public class MainActivity extends AppCompatActivity {
                             boolean beaconDeleted = beaconPersistence.deleteBeacon(beaconResult);
                             if (beaconDeleted) {
                                 beaconOverviewAdapter.updateSavedBeacons(beaconPersistence.getBeacons());
-                                ((BeaconApplication) getApplication()).restartBeaconSearch();
+                                ((BeaconApplication) getApplication()).updateBeaconSearch();
 
                             } else {
                                 Toast.makeText(MainActivity.this, R.string.beacon_delete_not_able_to_delete, Toast.LENGTH_LONG).show();
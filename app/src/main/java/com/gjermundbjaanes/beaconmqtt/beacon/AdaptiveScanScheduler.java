@@ -0,0 +1,116 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.gjermundbjaanes.beaconmqtt.R;
+import com.gjermundbjaanes.beaconmqtt.db.log.LogPersistence;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
+
+import org.altbeacon.beacon.BeaconManager;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adjusts the background time between scans after every scan cycle using a
+ * {@link ScanBackoffPolicy}. Beacon activity makes the next cycle start
+ * right away at the minimum period; quiet cycles back off towards the maximum.
+ * All decisions run on the given handler's thread.
+ */
+public class AdaptiveScanScheduler {
+
+    private static final String TAG = AdaptiveScanScheduler.class.getName();
+
+    private final Context context;
+    private final BeaconManager beaconManager;
+    private final AppConfigHolder appConfigHolder;
+    private final Handler handler;
+    private final LogPersistence logPersistence;
+    private final AtomicBoolean activitySinceLastDecision = new AtomicBoolean(false);
+    private ScanBackoffPolicy scanBackoffPolicy = null;
+
+    private final Runnable decide = new Runnable() {
+        @Override
+        public void run() {
+            decideNextPeriod();
+        }
+    };
+
+    private final Runnable speedUp = new Runnable() {
+        @Override
+        public void run() {
+            if (scanBackoffPolicy != null && !scanBackoffPolicy.isAtMinimum()) {
+                handler.removeCallbacks(decide);
+                decideNextPeriod();
+            }
+        }
+    };
+
+    public AdaptiveScanScheduler(Context context, BeaconManager beaconManager, AppConfigHolder appConfigHolder, Handler handler) {
+        this.context = context;
+        this.beaconManager = beaconManager;
+        this.appConfigHolder = appConfigHolder;
+        this.handler = handler;
+        this.logPersistence = new LogPersistence(context);
+    }
+
+    /**
+     * (Re)starts the scheduler with the current config. Must be called on the handler's thread.
+     */
+    public void start() {
+        AppConfig config = appConfigHolder.get();
+        handler.removeCallbacks(decide);
+        scanBackoffPolicy = new ScanBackoffPolicy(config.getAdaptiveMinBetweenScanPeriod(), config.getAdaptiveMaxBetweenScanPeriod());
+        activitySinceLastDecision.set(true);
+        decideNextPeriod();
+    }
+
+    /**
+     * Must be called on the handler's thread.
+     */
+    public void stop() {
+        handler.removeCallbacks(decide);
+        scanBackoffPolicy = null;
+    }
+
+    /**
+     * Reports beacon activity (enter, exit or movement near a saved beacon). Safe to call from any thread.
+     */
+    public void reportActivity() {
+        if (activitySinceLastDecision.compareAndSet(false, true)) {
+            handler.post(speedUp);
+        }
+    }
+
+    private void decideNextPeriod() {
+        if (scanBackoffPolicy == null) {
+            return;
+        }
+
+        AppConfig config = appConfigHolder.get();
+        boolean activity = activitySinceLastDecision.getAndSet(false);
+        long previousBetweenScanPeriod = scanBackoffPolicy.getCurrentBetweenScanPeriod();
+        long betweenScanPeriod = scanBackoffPolicy.nextBetweenScanPeriod(activity);
+
+        beaconManager.setBackgroundScanPeriod(config.getBackgroundScanPeriod());
+        beaconManager.setBackgroundBetweenScanPeriod(betweenScanPeriod);
+        if (betweenScanPeriod != previousBetweenScanPeriod) {
+            try {
+                beaconManager.updateScanPeriods();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Not able to update scan periods", e);
+            }
+        }
+
+        String message = context.getString(R.string.adaptive_scan_decision, betweenScanPeriod, config.getBackgroundScanPeriod(), activity);
+        Log.i(TAG, message);
+        if (config.isLogEnabled()) {
+            logPersistence.saveNewLog(message, "");
+        }
+
+        handler.postDelayed(decide, config.getBackgroundScanPeriod() + betweenScanPeriod);
+    }
+}
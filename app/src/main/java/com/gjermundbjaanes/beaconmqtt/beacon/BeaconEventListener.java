@@ -0,0 +1,14 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+public interface BeaconEventListener {
+    void onBeaconEntered(BeaconResult beacon);
+
+    void onBeaconExited(BeaconResult beacon);
+
+    /**
+     * Called when the signal of a beacon in range changed noticeably, i.e. something moved.
+     */
+    void onBeaconMoved(BeaconResult beacon);
+}
@@ -0,0 +1,61 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.altbeacon.beacon.BeaconParser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Advertisement formats the beacon manager can be set up to parse. iBeacons
+ * are matched on the 0215 type regardless of company id, which also covers
+ * the Apple specific 4c000215 layout.
+ */
+public enum BeaconFormat {
+    ALTBEACON("m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24,d:25-25"),
+    IBEACON("m:2-3=0215,i:4-19,i:20-21,i:22-23,p:24-24"),
+    EDDYSTONE_UID("s:0-1=feaa,m:2-2=00,p:3-3:-41,i:4-13,i:14-19"),
+    EDDYSTONE_URL("s:0-1=feaa,m:2-2=10,p:3-3:-41,i:4-20v"),
+    EDDYSTONE_TLM("x,s:0-1=feaa,m:2-2=20,d:3-3,d:4-5,d:6-7,d:8-11,d:12-15");
+
+    private final String layout;
+
+    BeaconFormat(String layout) {
+        this.layout = layout;
+    }
+
+    public String getLayout() {
+        return layout;
+    }
+
+    public static BeaconFormat fromString(String value) {
+        for (BeaconFormat format : values()) {
+            if (format.name().equals(value)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One parser per distinct layout, in the order given.
+     */
+    public static List<BeaconParser> createParsers(Collection<String> layouts) {
+        Set<String> distinctLayouts = new LinkedHashSet<>(layouts);
+        List<BeaconParser> parsers = new ArrayList<>(distinctLayouts.size());
+        for (String layout : distinctLayouts) {
+            parsers.add(new BeaconParser().setBeaconLayout(layout));
+        }
+        return parsers;
+    }
+
+    public static List<String> getLayouts(Collection<BeaconFormat> formats) {
+        List<String> layouts = new ArrayList<>(formats.size());
+        for (BeaconFormat format : formats) {
+            layouts.add(format.getLayout());
+        }
+        return layouts;
+    }
+}
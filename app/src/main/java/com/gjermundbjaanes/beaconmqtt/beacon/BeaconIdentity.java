@@ -0,0 +1,130 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Identifier;
+
+import java.util.UUID;
+
+/**
+ * Identity of a saved beacon: the 128 bit UUID as two longs and major/minor
+ * packed into one int. Cheap to hash and compare, and unlike concatenated
+ * strings two different beacons can never collide on equality.
+ */
+public final class BeaconIdentity {
+
+    private static final int MAX_MAJOR_MINOR = 0xFFFF;
+
+    private final long uuidMostSignificantBits;
+    private final long uuidLeastSignificantBits;
+    private final int majorMinor;
+
+    private BeaconIdentity(long uuidMostSignificantBits, long uuidLeastSignificantBits, int majorMinor) {
+        this.uuidMostSignificantBits = uuidMostSignificantBits;
+        this.uuidLeastSignificantBits = uuidLeastSignificantBits;
+        this.majorMinor = majorMinor;
+    }
+
+    public static BeaconIdentity fromStrings(String uuid, String major, String minor) {
+        if (uuid == null || major == null || minor == null) {
+            throw new IllegalArgumentException("uuid, major and minor must all be set");
+        }
+
+        UUID parsedUuid = UUID.fromString(uuid.trim());
+        return new BeaconIdentity(parsedUuid.getMostSignificantBits(), parsedUuid.getLeastSignificantBits(),
+                pack(parseMajorMinor(major), parseMajorMinor(minor)));
+    }
+
+    /**
+     * Reads the identity straight from the identifier bytes, without going through strings.
+     */
+    public static BeaconIdentity fromIdentifiers(Identifier uuid, Identifier major, Identifier minor) {
+        if (uuid == null || major == null || minor == null) {
+            throw new IllegalArgumentException("uuid, major and minor must all be set");
+        }
+        if (uuid.getByteCount() != 16 || major.getByteCount() > 2 || minor.getByteCount() > 2) {
+            throw new IllegalArgumentException("Not a uuid, major and minor beacon identifier");
+        }
+
+        UUID parsedUuid = uuid.toUuid();
+        return new BeaconIdentity(parsedUuid.getMostSignificantBits(), parsedUuid.getLeastSignificantBits(),
+                pack(major.toInt(), minor.toInt()));
+    }
+
+    /**
+     * @return the identity, or null for beacons that are not identified by uuid, major and minor, e.g. Eddystone
+     */
+    public static BeaconIdentity fromBeacon(Beacon beacon) {
+        if (beacon.getIdentifiers().size() < 3) {
+            return null;
+        }
+
+        try {
+            return fromIdentifiers(beacon.getId1(), beacon.getId2(), beacon.getId3());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int parseMajorMinor(String value) {
+        int parsed = Integer.parseInt(value.trim());
+        if (parsed < 0 || parsed > MAX_MAJOR_MINOR) {
+            throw new IllegalArgumentException("major/minor out of range: " + value);
+        }
+        return parsed;
+    }
+
+    private static int pack(int major, int minor) {
+        return (major << 16) | minor;
+    }
+
+    public int getMajor() {
+        return majorMinor >>> 16;
+    }
+
+    public int getMinor() {
+        return majorMinor & MAX_MAJOR_MINOR;
+    }
+
+    public UUID getUuid() {
+        return new UUID(uuidMostSignificantBits, uuidLeastSignificantBits);
+    }
+
+    public Identifier getUuidIdentifier() {
+        return Identifier.fromUuid(getUuid());
+    }
+
+    public Identifier getMajorIdentifier() {
+        return Identifier.fromInt(getMajor());
+    }
+
+    public Identifier getMinorIdentifier() {
+        return Identifier.fromInt(getMinor());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof BeaconIdentity) {
+            BeaconIdentity other = (BeaconIdentity) obj;
+            return uuidMostSignificantBits == other.uuidMostSignificantBits
+                    && uuidLeastSignificantBits == other.uuidLeastSignificantBits
+                    && majorMinor == other.majorMinor;
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        long hilo = uuidMostSignificantBits ^ uuidLeastSignificantBits;
+        int result = (int) (hilo >> 32) ^ (int) hilo;
+        return 31 * result + majorMinor;
+    }
+
+    @Override
+    public String toString() {
+        return getUuid() + ":" + getMajor() + ":" + getMinor();
+    }
+}
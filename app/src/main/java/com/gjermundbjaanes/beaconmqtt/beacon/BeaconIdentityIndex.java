@@ -0,0 +1,84 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import java.util.Arrays;
+
+/**
+ * Finds the saved {@link BeaconIdentity} of a ranged beacon from its uuid
+ * identifier, major and minor without allocating anything, so ranging
+ * hundreds of beacons per cycle creates no garbage. An open addressing table
+ * keyed by the uuid key and the packed major and minor. Not thread safe.
+ */
+class BeaconIdentityIndex {
+
+    private static final int INITIAL_CAPACITY = 16; // Must be a power of two
+    private static final int MAX_LOAD_PERCENT = 50;
+
+    private Object[] uuidKeys = new Object[INITIAL_CAPACITY];
+    private int[] majorMinors = new int[INITIAL_CAPACITY];
+    private BeaconIdentity[] identities = new BeaconIdentity[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * @param uuidKey what the uuid is looked up by, equal to the keys later
+     *                passed to {@link #get}, e.g. {@link BeaconIdentity#getUuidIdentifier()}
+     */
+    void put(Object uuidKey, BeaconIdentity identity) {
+        if ((size + 1) * 100 > identities.length * MAX_LOAD_PERCENT) {
+            grow();
+        }
+
+        int majorMinor = pack(identity.getMajor(), identity.getMinor());
+        int index = find(uuidKey, majorMinor);
+        if (identities[index] == null) {
+            size++;
+        }
+        uuidKeys[index] = uuidKey;
+        majorMinors[index] = majorMinor;
+        identities[index] = identity;
+    }
+
+    /**
+     * @return the identity put for these identifiers, or null if there is none
+     */
+    BeaconIdentity get(Object uuidKey, int major, int minor) {
+        return identities[find(uuidKey, pack(major, minor))];
+    }
+
+    void clear() {
+        Arrays.fill(uuidKeys, null);
+        Arrays.fill(identities, null);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int find(Object uuidKey, int majorMinor) {
+        int mask = identities.length - 1;
+        int hash = 31 * uuidKey.hashCode() + majorMinor;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        while (identities[index] != null && (majorMinors[index] != majorMinor || !uuidKeys[index].equals(uuidKey))) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void grow() {
+        Object[] oldUuidKeys = uuidKeys;
+        BeaconIdentity[] oldIdentities = identities;
+        uuidKeys = new Object[oldIdentities.length * 2];
+        majorMinors = new int[oldIdentities.length * 2];
+        identities = new BeaconIdentity[oldIdentities.length * 2];
+        size = 0;
+        for (int i = 0; i < oldIdentities.length; i++) {
+            if (oldIdentities[i] != null) {
+                put(oldUuidKeys[i], oldIdentities[i]);
+            }
+        }
+    }
+
+    private static int pack(int major, int minor) {
+        return (major << 16) | minor;
+    }
+}
@@ -0,0 +1,194 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import android.os.Handler;
+
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the saved beacons currently in range, keyed by {@link BeaconIdentity}
+ * so beacons without a valid identity are never present. Writers may come from any
+ * thread; every change publishes a new immutable, versioned {@link Snapshot}
+ * that readers get without locking. Listeners are notified on the handler's
+ * thread, and changes made within {@link #NOTIFICATION_WINDOW_MS} of each
+ * other are delivered as a single notification with the latest snapshot.
+ */
+public class BeaconPresenceStore {
+
+    public interface Listener {
+        void onPresenceChanged(Snapshot snapshot);
+    }
+
+    interface Scheduler {
+        /**
+         * Runs {@code runnable} on the listeners' thread after {@code delayMillis}.
+         */
+        void schedule(Runnable runnable, long delayMillis);
+    }
+
+    private static final long NOTIFICATION_WINDOW_MS = 250;
+
+    private final AtomicReference<Snapshot> currentSnapshot = new AtomicReference<>(new Snapshot(0, new LinkedHashMap<BeaconIdentity, BeaconResult>()));
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean notificationPending = new AtomicBoolean(false);
+    private final Scheduler scheduler;
+    private final Runnable notifyListeners = new Runnable() {
+        @Override
+        public void run() {
+            notificationPending.set(false);
+            Snapshot snapshot = currentSnapshot.get();
+            for (Listener listener : listeners) {
+                listener.onPresenceChanged(snapshot);
+            }
+        }
+    };
+
+    public BeaconPresenceStore(final Handler handler) {
+        this(new Scheduler() {
+            @Override
+            public void schedule(Runnable runnable, long delayMillis) {
+                handler.postDelayed(runnable, delayMillis);
+            }
+        });
+    }
+
+    BeaconPresenceStore(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public Snapshot getSnapshot() {
+        return currentSnapshot.get();
+    }
+
+    public boolean add(BeaconResult beacon) {
+        BeaconIdentity identity = beacon.getIdentity();
+        if (identity == null) {
+            return false;
+        }
+
+        while (true) {
+            Snapshot snapshot = currentSnapshot.get();
+            if (snapshot.contains(identity)) {
+                return false;
+            }
+
+            Map<BeaconIdentity, BeaconResult> beacons = new LinkedHashMap<>(snapshot.beacons);
+            beacons.put(identity, beacon);
+            if (publish(snapshot, beacons)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean remove(BeaconResult beacon) {
+        BeaconIdentity identity = beacon.getIdentity();
+        if (identity == null) {
+            return false;
+        }
+
+        while (true) {
+            Snapshot snapshot = currentSnapshot.get();
+            if (!snapshot.contains(identity)) {
+                return false;
+            }
+
+            Map<BeaconIdentity, BeaconResult> beacons = new LinkedHashMap<>(snapshot.beacons);
+            beacons.remove(identity);
+            if (publish(snapshot, beacons)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean retainAll(Collection<BeaconResult> beaconsToKeep) {
+        Set<BeaconIdentity> identitiesToKeep = new HashSet<>();
+        for (BeaconResult beacon : beaconsToKeep) {
+            if (beacon.getIdentity() != null) {
+                identitiesToKeep.add(beacon.getIdentity());
+            }
+        }
+
+        while (true) {
+            Snapshot snapshot = currentSnapshot.get();
+            Map<BeaconIdentity, BeaconResult> beacons = new LinkedHashMap<>(snapshot.beacons);
+            if (!beacons.keySet().retainAll(identitiesToKeep)) {
+                return false;
+            }
+            if (publish(snapshot, beacons)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean publish(Snapshot expected, Map<BeaconIdentity, BeaconResult> beacons) {
+        if (currentSnapshot.compareAndSet(expected, new Snapshot(expected.getVersion() + 1, beacons))) {
+            scheduleNotification();
+            return true;
+        }
+        return false;
+    }
+
+    private void scheduleNotification() {
+        if (notificationPending.compareAndSet(false, true)) {
+            scheduler.schedule(notifyListeners, NOTIFICATION_WINDOW_MS);
+        }
+    }
+
+    /**
+     * Adds a listener and delivers the current snapshot to it.
+     */
+    public void addListener(final Listener listener) {
+        listeners.addIfAbsent(listener);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (listeners.contains(listener)) {
+                    listener.onPresenceChanged(currentSnapshot.get());
+                }
+            }
+        }, 0);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public static final class Snapshot {
+        private final long version;
+        private final Map<BeaconIdentity, BeaconResult> beacons;
+        private final List<BeaconResult> beaconList;
+
+        Snapshot(long version, Map<BeaconIdentity, BeaconResult> beacons) {
+            this.version = version;
+            this.beacons = beacons;
+            this.beaconList = Collections.unmodifiableList(new ArrayList<>(beacons.values()));
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<BeaconResult> getBeacons() {
+            return beaconList;
+        }
+
+        public boolean contains(BeaconIdentity identity) {
+            return beacons.containsKey(identity);
+        }
+
+        public BeaconResult getBeacon(BeaconIdentity identity) {
+            return beacons.get(identity);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import android.util.Log;
+
+import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.startup.BootstrapNotifier;
+import org.altbeacon.beacon.startup.RegionBootstrap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Owns the {@link RegionBootstrap} and keeps the set of monitored regions in
+ * sync with the saved beacons. Only regions that were added or removed since
+ * the last update are started or stopped, so unchanged regions keep their
+ * monitoring state (and do not fire a new enter event).
+ */
+public class BeaconRegionManager {
+
+    private static final String TAG = BeaconRegionManager.class.getName();
+
+    private final BootstrapNotifier bootstrapNotifier;
+    private final Map<String, Region> monitoredRegions = new HashMap<>();
+    private RegionBootstrap regionBootstrap = null;
+
+    public BeaconRegionManager(BootstrapNotifier bootstrapNotifier) {
+        this.bootstrapNotifier = bootstrapNotifier;
+    }
+
+    /**
+     * @return the regions that are no longer monitored after this update
+     */
+    public synchronized List<Region> updateRegions(Collection<Region> regions) {
+        Map<String, Region> wantedRegions = new HashMap<>(regions.size());
+        for (Region region : regions) {
+            wantedRegions.put(region.getUniqueId(), region);
+        }
+
+        if (regionBootstrap == null) {
+            monitoredRegions.putAll(wantedRegions);
+            regionBootstrap = new RegionBootstrap(bootstrapNotifier, new ArrayList<>(wantedRegions.values()));
+            Log.i(TAG, "Started monitoring " + wantedRegions.size() + " regions");
+            return new ArrayList<>();
+        }
+
+        List<Region> removedRegions = new ArrayList<>();
+        Iterator<Map.Entry<String, Region>> iterator = monitoredRegions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Region monitoredRegion = iterator.next().getValue();
+            if (!wantedRegions.containsKey(monitoredRegion.getUniqueId())) {
+                regionBootstrap.removeRegion(monitoredRegion);
+                removedRegions.add(monitoredRegion);
+                iterator.remove();
+            }
+        }
+
+        int numberOfAddedRegions = 0;
+        for (Region wantedRegion : wantedRegions.values()) {
+            if (!monitoredRegions.containsKey(wantedRegion.getUniqueId())) {
+                regionBootstrap.addRegion(wantedRegion);
+                monitoredRegions.put(wantedRegion.getUniqueId(), wantedRegion);
+                numberOfAddedRegions++;
+            }
+        }
+
+        Log.i(TAG, "Region update: " + numberOfAddedRegions + " added, " + removedRegions.size() + " removed, " + monitoredRegions.size() + " monitored");
+        return removedRegions;
+    }
+}
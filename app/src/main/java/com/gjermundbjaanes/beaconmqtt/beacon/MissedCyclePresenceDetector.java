@@ -0,0 +1,60 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Enters a beacon the first time it is ranged and exits it after it has been
+ * missing for a number of consecutive ranging cycles.
+ */
+class MissedCyclePresenceDetector implements RangedPresenceDetector {
+
+    private final int missedCyclesBeforeExit;
+    private final Map<BeaconIdentity, Integer> missedCycles = new HashMap<>();
+    private final Set<BeaconIdentity> rangedThisCycle = new HashSet<>();
+
+    MissedCyclePresenceDetector(int missedCyclesBeforeExit) {
+        this.missedCyclesBeforeExit = missedCyclesBeforeExit;
+    }
+
+    @Override
+    public void beaconRanged(BeaconIdentity identity, int rssi) {
+        rangedThisCycle.add(identity);
+    }
+
+    @Override
+    public void cycleCompleted(long now, Callback callback) {
+        Iterator<Map.Entry<BeaconIdentity, Integer>> iterator = missedCycles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<BeaconIdentity, Integer> entry = iterator.next();
+            if (rangedThisCycle.contains(entry.getKey())) {
+                entry.setValue(0);
+            } else if (entry.getValue() + 1 >= missedCyclesBeforeExit) {
+                iterator.remove();
+                callback.beaconExited(entry.getKey());
+            } else {
+                entry.setValue(entry.getValue() + 1);
+            }
+        }
+
+        for (BeaconIdentity identity : rangedThisCycle) {
+            if (!missedCycles.containsKey(identity)) {
+                missedCycles.put(identity, 0);
+                callback.beaconEntered(identity);
+            }
+        }
+        rangedThisCycle.clear();
+    }
+
+    @Override
+    public void exitAll(Callback callback) {
+        for (BeaconIdentity identity : missedCycles.keySet()) {
+            callback.beaconExited(identity);
+        }
+        missedCycles.clear();
+        rangedThisCycle.clear();
+    }
+}
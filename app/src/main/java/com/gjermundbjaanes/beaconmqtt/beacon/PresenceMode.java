@@ -0,0 +1,24 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+/**
+ * How {@link com.gjermundbjaanes.beaconmqtt.BeaconApplication} decides that a saved beacon entered or exited.
+ */
+public enum PresenceMode {
+    /** Region monitoring, exits come after the library's region exit timeout. */
+    MONITORING,
+    /** Ranging with {@link RssiHysteresisFilter}. */
+    RSSI_SMOOTHING,
+    /** Ranging with per beacon exit timeouts, see {@link TimeoutPresenceDetector}. */
+    RANGING;
+
+    public static PresenceMode fromString(String value, PresenceMode defaultMode) {
+        if (value != null) {
+            for (PresenceMode mode : values()) {
+                if (mode.name().equals(value)) {
+                    return mode;
+                }
+            }
+        }
+        return defaultMode;
+    }
+}
@@ -0,0 +1,23 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+/**
+ * Decides presence for the beacons of one ranged region. Ranged beacons are
+ * reported one by one, followed by {@link #cycleCompleted} once per ranging
+ * callback, which is where transitions are decided.
+ */
+interface RangedPresenceDetector {
+
+    interface Callback {
+        void beaconEntered(BeaconIdentity identity);
+
+        void beaconExited(BeaconIdentity identity);
+
+        void beaconMoved(BeaconIdentity identity);
+    }
+
+    void beaconRanged(BeaconIdentity identity, int rssi);
+
+    void cycleCompleted(long now, Callback callback);
+
+    void exitAll(Callback callback);
+}
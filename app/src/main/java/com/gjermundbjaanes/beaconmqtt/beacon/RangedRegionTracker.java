@@ -0,0 +1,240 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconRegistry;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.RangeNotifier;
+import org.altbeacon.beacon.Region;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns ranging of regions into per beacon events. Every ranged beacon is
+ * matched against the saved beacons and handed to the region's
+ * {@link RangedPresenceDetector}, picked by {@link PresenceMode}: an
+ * {@link RssiHysteresisFilter} for RSSI smoothing, a {@link TimeoutPresenceDetector}
+ * for ranging, and otherwise a beacon is entered the first time it is ranged
+ * and exited after {@link #MISSED_CYCLES_BEFORE_EXIT} missed ranging cycles.
+ *
+ * In ranging mode the exit timeouts of all regions share one
+ * {@link TimingWheel}, ticked every {@link #TICK_MS} on a thread of its own
+ * while any timeout is scheduled, so beacons expire between ranging cycles.
+ */
+public class RangedRegionTracker implements RangeNotifier, RangedPresenceDetector.Callback, TimeoutPresenceDetector.ExitTimeoutProvider {
+
+    private static final String TAG = RangedRegionTracker.class.getName();
+    private static final int MISSED_CYCLES_BEFORE_EXIT = 2;
+    private static final long TICK_MS = 250;
+    private static final int TIMING_WHEEL_SIZE = 256;
+
+    private final BeaconManager beaconManager;
+    private final BeaconRegistry beaconRegistry;
+    private final AppConfigHolder appConfigHolder;
+    private final BeaconEventListener beaconEventListener;
+    private final Map<String, TrackedRegion> trackedRegions = new HashMap<>();
+    private final BeaconIdentityIndex savedIdentities = new BeaconIdentityIndex();
+    private int savedIdentitiesVersion = -1;
+    private final TimingWheel timingWheel = new TimingWheel(TICK_MS, TIMING_WHEEL_SIZE, SystemClock.elapsedRealtime());
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "RangedRegionTracker tick");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RangedRegionTracker.this) {
+                timingWheel.advanceTo(SystemClock.elapsedRealtime());
+                if (timingWheel.size() == 0) {
+                    tickFuture.cancel(false);
+                    tickFuture = null;
+                }
+            }
+        }
+    };
+    private ScheduledFuture<?> tickFuture = null;
+
+    public RangedRegionTracker(BeaconManager beaconManager, BeaconRegistry beaconRegistry, AppConfigHolder appConfigHolder, BeaconEventListener beaconEventListener) {
+        this.beaconManager = beaconManager;
+        this.beaconRegistry = beaconRegistry;
+        this.appConfigHolder = appConfigHolder;
+        this.beaconEventListener = beaconEventListener;
+        beaconManager.addRangeNotifier(this);
+    }
+
+    public synchronized void startTracking(Region region) {
+        if (trackedRegions.containsKey(region.getUniqueId())) {
+            return;
+        }
+
+        trackedRegions.put(region.getUniqueId(), new TrackedRegion(region, createDetector(appConfigHolder.get())));
+        try {
+            beaconManager.startRangingBeaconsInRegion(region);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Not able to start ranging region " + region.getUniqueId(), e);
+        }
+    }
+
+    /**
+     * Stops ranging {@code region} and exits its present beacons, so nothing is
+     * left present that no detector would ever exit. Beacons still in range are
+     * entered again by whichever region ranges them next.
+     */
+    public synchronized void stopTracking(Region region) {
+        TrackedRegion trackedRegion = trackedRegions.remove(region.getUniqueId());
+        if (trackedRegion == null) {
+            return;
+        }
+
+        try {
+            beaconManager.stopRangingBeaconsInRegion(trackedRegion.region);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Not able to stop ranging region " + region.getUniqueId(), e);
+        }
+
+        trackedRegion.detector.exitAll(this);
+    }
+
+    /**
+     * Stops all ranging, e.g. before the detector type changes.
+     */
+    public synchronized void stopTrackingAll() {
+        for (TrackedRegion trackedRegion : new ArrayList<>(trackedRegions.values())) {
+            stopTracking(trackedRegion.region);
+        }
+    }
+
+    private RangedPresenceDetector createDetector(AppConfig config) {
+        switch (config.getPresenceMode()) {
+            case RSSI_SMOOTHING:
+                return new RssiHysteresisFilter(config.getRssiEnterThreshold(), config.getRssiExitThreshold(), config.getRssiMinDwellTime());
+            case RANGING:
+                return new TimeoutPresenceDetector(timingWheel, this, this);
+            default:
+                return new MissedCyclePresenceDetector(MISSED_CYCLES_BEFORE_EXIT);
+        }
+    }
+
+    /**
+     * Ranged beacons are only reported once per scan period, so shorter timeouts
+     * would exit beacons that are still in range.
+     */
+    @Override
+    public long getExitTimeout(BeaconIdentity identity) {
+        AppConfig config = appConfigHolder.get();
+        BeaconResult beacon = beaconRegistry.getBeacon(identity);
+        long exitTimeout = beacon != null && beacon.getExitTimeout() > 0 ? beacon.getExitTimeout() : config.getRangingExitTimeout();
+        return Math.max(exitTimeout, config.getRangingScanPeriod() + TICK_MS);
+    }
+
+    @Override
+    public synchronized void didRangeBeaconsInRegion(Collection<Beacon> beacons, Region region) {
+        TrackedRegion trackedRegion = trackedRegions.get(region.getUniqueId());
+        if (trackedRegion == null) {
+            return; // Not one of ours, e.g. ranging done by NewBeaconActivity
+        }
+
+        updateSavedIdentities();
+        for (Beacon beacon : beacons) {
+            BeaconIdentity identity = findSavedIdentity(beacon);
+            if (identity != null) {
+                trackedRegion.detector.beaconRanged(identity, beacon.getRssi());
+            }
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (tickFuture == null) {
+            timingWheel.advanceTo(now); // Skips the ticks missed while nothing was scheduled
+        }
+        trackedRegion.detector.cycleCompleted(now, this);
+
+        if (tickFuture == null && timingWheel.size() > 0) {
+            tickFuture = ticker.scheduleWithFixedDelay(tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void updateSavedIdentities() {
+        int version = beaconRegistry.getVersion();
+        if (version == savedIdentitiesVersion) {
+            return;
+        }
+
+        savedIdentities.clear();
+        for (BeaconResult beacon : beaconRegistry.getBeacons()) {
+            BeaconIdentity identity = beacon.getIdentity();
+            if (identity != null) {
+                savedIdentities.put(identity.getUuidIdentifier(), identity);
+            }
+        }
+        savedIdentitiesVersion = version;
+    }
+
+    /**
+     * Looks the beacon up by its identifiers as they are, as
+     * {@link BeaconIdentity#fromBeacon(Beacon)} would allocate per ranged beacon.
+     */
+    private BeaconIdentity findSavedIdentity(Beacon beacon) {
+        if (beacon.getIdentifiers().size() < 3) {
+            return null;
+        }
+        Identifier major = beacon.getId2();
+        Identifier minor = beacon.getId3();
+        if (major.getByteCount() > 2 || minor.getByteCount() > 2) {
+            return null;
+        }
+        return savedIdentities.get(beacon.getId1(), major.toInt(), minor.toInt());
+    }
+
+    @Override
+    public void beaconEntered(BeaconIdentity identity) {
+        BeaconResult beacon = beaconRegistry.getBeacon(identity);
+        if (beacon != null) {
+            beaconEventListener.onBeaconEntered(beacon);
+        }
+    }
+
+    @Override
+    public void beaconExited(BeaconIdentity identity) {
+        BeaconResult beacon = beaconRegistry.getBeacon(identity);
+        if (beacon != null) {
+            beaconEventListener.onBeaconExited(beacon);
+        }
+    }
+
+    @Override
+    public void beaconMoved(BeaconIdentity identity) {
+        BeaconResult beacon = beaconRegistry.getBeacon(identity);
+        if (beacon != null) {
+            beaconEventListener.onBeaconMoved(beacon);
+        }
+    }
+
+    private static class TrackedRegion {
+        private final Region region;
+        private final RangedPresenceDetector detector;
+
+        TrackedRegion(Region region, RangedPresenceDetector detector) {
+            this.region = region;
+            this.detector = detector;
+        }
+    }
+}
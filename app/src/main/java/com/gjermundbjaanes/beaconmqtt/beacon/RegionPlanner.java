@@ -0,0 +1,76 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Turns a set of saved beacons into the regions to monitor. Without
+ * compaction every beacon gets its own fully specified region. With
+ * compaction beacons sharing a UUID are covered by one region: a UUID+major
+ * region when they all share the major, otherwise a UUID only region.
+ * Beacons inside such wildcard regions have to be told apart by ranging.
+ */
+public class RegionPlanner {
+
+    private RegionPlanner() {}
+
+    public static List<Region> plan(Collection<BeaconIdentity> beacons, boolean compact) {
+        List<Region> regions = new ArrayList<>();
+        if (!compact) {
+            for (BeaconIdentity beacon : beacons) {
+                regions.add(beaconRegion(beacon));
+            }
+            return regions;
+        }
+
+        Map<UUID, List<BeaconIdentity>> beaconsByUuid = new LinkedHashMap<>();
+        for (BeaconIdentity beacon : beacons) {
+            UUID uuid = beacon.getUuid();
+            List<BeaconIdentity> group = beaconsByUuid.get(uuid);
+            if (group == null) {
+                group = new ArrayList<>();
+                beaconsByUuid.put(uuid, group);
+            }
+            group.add(beacon);
+        }
+
+        for (Map.Entry<UUID, List<BeaconIdentity>> entry : beaconsByUuid.entrySet()) {
+            List<BeaconIdentity> group = entry.getValue();
+            BeaconIdentity first = group.get(0);
+            if (group.size() == 1) {
+                regions.add(beaconRegion(first));
+            } else if (shareMajor(group)) {
+                regions.add(new Region(entry.getKey() + ":" + first.getMajor(),
+                        Identifier.fromUuid(entry.getKey()), Identifier.fromInt(first.getMajor()), null));
+            } else {
+                regions.add(new Region(entry.getKey().toString(), Identifier.fromUuid(entry.getKey()), null, null));
+            }
+        }
+        return regions;
+    }
+
+    public static boolean isBeaconRegion(Region region) {
+        return region.getId1() != null && region.getId2() != null && region.getId3() != null;
+    }
+
+    private static Region beaconRegion(BeaconIdentity beacon) {
+        return new Region(beacon.toString(), beacon.getUuidIdentifier(), beacon.getMajorIdentifier(), beacon.getMinorIdentifier());
+    }
+
+    private static boolean shareMajor(List<BeaconIdentity> group) {
+        int major = group.get(0).getMajor();
+        for (BeaconIdentity beacon : group) {
+            if (beacon.getMajor() != major) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
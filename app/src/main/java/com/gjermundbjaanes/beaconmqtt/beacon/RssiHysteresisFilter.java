@@ -0,0 +1,147 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Smooths ranged RSSI per beacon with an exponential moving average and only
+ * confirms a transition when the smoothed value has stayed past the enter
+ * (or exit) threshold for the minimum dwell time. Using a lower exit than
+ * enter threshold keeps beacons at the edge of range from flapping.
+ * <p>
+ * State is kept in parallel primitive arrays indexed by a slot per beacon, so
+ * a sample only costs a map lookup and nothing is allocated per sample; the
+ * arrays only grow when a new beacon is seen. {@link RangedRegionTracker}
+ * reports samples with the saved identities from its {@link BeaconIdentityIndex}.
+ */
+class RssiHysteresisFilter implements RangedPresenceDetector {
+
+    static final int MISSING_SAMPLE_RSSI = -105;
+    private static final float SMOOTHING_FACTOR = 0.3f;
+    private static final float MOTION_THRESHOLD_DB = 6f;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final byte OUTSIDE = 0;
+    private static final byte PENDING_ENTER = 1;
+    private static final byte INSIDE = 2;
+    private static final byte PENDING_EXIT = 3;
+
+    private final int enterThreshold;
+    private final int exitThreshold;
+    private final long minDwellTime;
+
+    private final Map<BeaconIdentity, Integer> slots = new HashMap<>();
+    private BeaconIdentity[] identities = new BeaconIdentity[INITIAL_CAPACITY];
+    private float[] smoothedRssi = new float[INITIAL_CAPACITY];
+    private float[] reportedRssi = new float[INITIAL_CAPACITY];
+    private byte[] states = new byte[INITIAL_CAPACITY];
+    private long[] pendingSince = new long[INITIAL_CAPACITY];
+    private boolean[] rangedThisCycle = new boolean[INITIAL_CAPACITY];
+    private int numberOfSlots = 0;
+
+    RssiHysteresisFilter(int enterThreshold, int exitThreshold, long minDwellTime) {
+        this.enterThreshold = enterThreshold;
+        this.exitThreshold = Math.min(enterThreshold, exitThreshold);
+        this.minDwellTime = Math.max(0, minDwellTime);
+    }
+
+    @Override
+    public void beaconRanged(BeaconIdentity identity, int rssi) {
+        Integer slot = slots.get(identity);
+        if (slot == null) {
+            addSlot(identity, rssi);
+            return;
+        }
+
+        int index = slot;
+        if (rangedThisCycle[index]) {
+            return; // Already have a (per cycle averaged) sample for this beacon
+        }
+        rangedThisCycle[index] = true;
+        smoothedRssi[index] += SMOOTHING_FACTOR * (rssi - smoothedRssi[index]);
+    }
+
+    @Override
+    public void cycleCompleted(long now, Callback callback) {
+        for (int index = 0; index < numberOfSlots; index++) {
+            if (rangedThisCycle[index]) {
+                rangedThisCycle[index] = false;
+            } else {
+                smoothedRssi[index] += SMOOTHING_FACTOR * (MISSING_SAMPLE_RSSI - smoothedRssi[index]);
+            }
+            evaluate(index, now, callback);
+        }
+    }
+
+    private void evaluate(int index, long now, Callback callback) {
+        float rssi = smoothedRssi[index];
+        switch (states[index]) {
+            case OUTSIDE:
+                if (rssi >= enterThreshold) {
+                    states[index] = PENDING_ENTER;
+                    pendingSince[index] = now;
+                    evaluate(index, now, callback);
+                }
+                break;
+            case PENDING_ENTER:
+                if (rssi < enterThreshold) {
+                    states[index] = OUTSIDE;
+                } else if (now - pendingSince[index] >= minDwellTime) {
+                    states[index] = INSIDE;
+                    reportedRssi[index] = rssi;
+                    callback.beaconEntered(identities[index]);
+                }
+                break;
+            case INSIDE:
+                if (rssi <= exitThreshold) {
+                    states[index] = PENDING_EXIT;
+                    pendingSince[index] = now;
+                    evaluate(index, now, callback);
+                } else if (Math.abs(rssi - reportedRssi[index]) >= MOTION_THRESHOLD_DB) {
+                    reportedRssi[index] = rssi;
+                    callback.beaconMoved(identities[index]);
+                }
+                break;
+            case PENDING_EXIT:
+                if (rssi > exitThreshold) {
+                    states[index] = INSIDE;
+                } else if (now - pendingSince[index] >= minDwellTime) {
+                    states[index] = OUTSIDE;
+                    callback.beaconExited(identities[index]);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void exitAll(Callback callback) {
+        for (int index = 0; index < numberOfSlots; index++) {
+            if (states[index] == INSIDE || states[index] == PENDING_EXIT) {
+                callback.beaconExited(identities[index]);
+            }
+            states[index] = OUTSIDE;
+            smoothedRssi[index] = MISSING_SAMPLE_RSSI;
+            rangedThisCycle[index] = false;
+        }
+    }
+
+    private void addSlot(BeaconIdentity identity, int rssi) {
+        if (numberOfSlots == identities.length) {
+            int capacity = identities.length * 2;
+            identities = Arrays.copyOf(identities, capacity);
+            smoothedRssi = Arrays.copyOf(smoothedRssi, capacity);
+            reportedRssi = Arrays.copyOf(reportedRssi, capacity);
+            states = Arrays.copyOf(states, capacity);
+            pendingSince = Arrays.copyOf(pendingSince, capacity);
+            rangedThisCycle = Arrays.copyOf(rangedThisCycle, capacity);
+        }
+
+        int index = numberOfSlots++;
+        identities[index] = identity;
+        smoothedRssi[index] = rssi; // Start from the first sample instead of warming the filter up from nothing
+        states[index] = OUTSIDE;
+        rangedThisCycle[index] = true;
+        slots.put(identity, index);
+    }
+}
@@ -0,0 +1,37 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+/**
+ * Decides the time between background scans. Any beacon activity since the
+ * last decision drops the period to the minimum, otherwise it is doubled
+ * until it reaches the maximum.
+ */
+public class ScanBackoffPolicy {
+
+    private final long minBetweenScanPeriod;
+    private final long maxBetweenScanPeriod;
+    private long currentBetweenScanPeriod;
+
+    public ScanBackoffPolicy(long minBetweenScanPeriod, long maxBetweenScanPeriod) {
+        this.minBetweenScanPeriod = Math.max(0, Math.min(minBetweenScanPeriod, maxBetweenScanPeriod));
+        this.maxBetweenScanPeriod = Math.max(minBetweenScanPeriod, maxBetweenScanPeriod);
+        this.currentBetweenScanPeriod = this.minBetweenScanPeriod;
+    }
+
+    public long nextBetweenScanPeriod(boolean activitySinceLastDecision) {
+        if (activitySinceLastDecision) {
+            currentBetweenScanPeriod = minBetweenScanPeriod;
+        } else {
+            long doubled = Math.max(1, currentBetweenScanPeriod) * 2;
+            currentBetweenScanPeriod = Math.min(maxBetweenScanPeriod, doubled);
+        }
+        return currentBetweenScanPeriod;
+    }
+
+    public long getCurrentBetweenScanPeriod() {
+        return currentBetweenScanPeriod;
+    }
+
+    public boolean isAtMinimum() {
+        return currentBetweenScanPeriod == minBetweenScanPeriod;
+    }
+}
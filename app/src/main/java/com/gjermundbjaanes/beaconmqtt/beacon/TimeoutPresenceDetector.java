@@ -0,0 +1,69 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Enters a beacon the first time it is ranged and exits it once it has not
+ * been ranged for its exit timeout. Timeouts live in a {@link TimingWheel},
+ * shared with the detectors of other regions, which its owner advances
+ * independently of ranging cycles. Expired beacons are exited on the
+ * callback given to the constructor.
+ */
+class TimeoutPresenceDetector implements RangedPresenceDetector, TimingWheel.ExpiryListener {
+
+    interface ExitTimeoutProvider {
+        long getExitTimeout(BeaconIdentity identity);
+    }
+
+    private final TimingWheel timingWheel;
+    private final ExitTimeoutProvider exitTimeoutProvider;
+    private final Callback expiryCallback;
+    private final Map<BeaconIdentity, TimingWheel.Timeout> timeouts = new HashMap<>();
+    private final List<BeaconIdentity> rangedThisCycle = new ArrayList<>();
+
+    TimeoutPresenceDetector(TimingWheel timingWheel, ExitTimeoutProvider exitTimeoutProvider, Callback expiryCallback) {
+        this.timingWheel = timingWheel;
+        this.exitTimeoutProvider = exitTimeoutProvider;
+        this.expiryCallback = expiryCallback;
+    }
+
+    @Override
+    public void beaconRanged(BeaconIdentity identity, int rssi) {
+        rangedThisCycle.add(identity);
+    }
+
+    @Override
+    public void cycleCompleted(long now, Callback callback) {
+        for (int i = 0; i < rangedThisCycle.size(); i++) {
+            BeaconIdentity identity = rangedThisCycle.get(i);
+            long exitTimeout = exitTimeoutProvider.getExitTimeout(identity);
+            TimingWheel.Timeout timeout = timeouts.get(identity);
+            if (timeout == null) {
+                timeouts.put(identity, timingWheel.schedule(identity, now, exitTimeout, this));
+                callback.beaconEntered(identity);
+            } else {
+                timingWheel.touch(timeout, now, exitTimeout);
+            }
+        }
+        rangedThisCycle.clear();
+    }
+
+    @Override
+    public void timeoutExpired(BeaconIdentity identity) {
+        timeouts.remove(identity);
+        expiryCallback.beaconExited(identity);
+    }
+
+    @Override
+    public void exitAll(Callback callback) {
+        for (TimingWheel.Timeout timeout : timeouts.values()) {
+            timingWheel.cancel(timeout);
+            callback.beaconExited(timeout.getIdentity());
+        }
+        timeouts.clear();
+        rangedThisCycle.clear();
+    }
+}
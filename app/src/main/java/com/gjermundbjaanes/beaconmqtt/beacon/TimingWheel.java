@@ -0,0 +1,185 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel for beacon exit timeouts. Timeouts hash into a bucket by
+ * their deadline tick, so each tick only looks at one bucket instead of every
+ * beacon in range.
+ *
+ * Refreshing a timeout only records the new last seen time. The timeout stays
+ * in its bucket and is moved once, when its old deadline comes up, which keeps
+ * frequent sightings cheap. One wheel can be shared by many owners, each
+ * timeout reports to the listener it was scheduled with. Not thread safe.
+ */
+class TimingWheel {
+
+    interface ExpiryListener {
+        void timeoutExpired(BeaconIdentity identity);
+    }
+
+    static final class Timeout {
+        private final BeaconIdentity identity;
+        private final ExpiryListener listener;
+        private long lastSeen;
+        private long duration;
+        private long deadlineTick;
+        private int bucket = -1;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(BeaconIdentity identity, ExpiryListener listener) {
+            this.identity = identity;
+            this.listener = listener;
+        }
+
+        BeaconIdentity getIdentity() {
+            return identity;
+        }
+
+        boolean isScheduled() {
+            return bucket >= 0;
+        }
+    }
+
+    private final long tickDuration;
+    private final long startTime;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final List<Timeout> expired = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param wheelSize number of buckets, must be a power of two
+     */
+    TimingWheel(long tickDuration, int wheelSize, long startTime) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+        }
+        if (wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+        }
+
+        this.tickDuration = tickDuration;
+        this.startTime = startTime;
+        this.buckets = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+    }
+
+    Timeout schedule(BeaconIdentity identity, long now, long duration, ExpiryListener listener) {
+        Timeout timeout = new Timeout(identity, listener);
+        timeout.lastSeen = now;
+        timeout.duration = duration;
+        link(timeout, deadlineTick(now + duration));
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Pushes the deadline of a scheduled timeout to {@code now + duration}.
+     */
+    void touch(Timeout timeout, long now, long duration) {
+        if (!timeout.isScheduled()) {
+            return;
+        }
+
+        timeout.lastSeen = now;
+        timeout.duration = duration;
+
+        long deadlineTick = deadlineTick(now + duration);
+        if (deadlineTick < timeout.deadlineTick) {
+            unlink(timeout);
+            link(timeout, deadlineTick);
+        }
+    }
+
+    void cancel(Timeout timeout) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+            size--;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Runs every tick up to {@code now}. Expired timeouts are unscheduled
+     * before their listeners hear about them.
+     */
+    void advanceTo(long now) {
+        if (size == 0) {
+            currentTick = Math.max(currentTick, (now - startTime) / tickDuration + 1); // Nothing to expire in the ticks skipped
+            return;
+        }
+
+        while (tickTime(currentTick) <= now) {
+            expireTick(currentTick);
+            currentTick++;
+        }
+
+        for (int i = 0; i < expired.size(); i++) {
+            Timeout timeout = expired.get(i);
+            timeout.listener.timeoutExpired(timeout.identity);
+        }
+        expired.clear();
+    }
+
+    private void expireTick(long tick) {
+        long tickTime = tickTime(tick);
+        Timeout timeout = buckets[(int) (tick & mask)];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= tick) {
+                unlink(timeout);
+                long deadline = timeout.lastSeen + timeout.duration;
+                if (deadline > tickTime) {
+                    link(timeout, deadlineTick(deadline));
+                } else {
+                    size--;
+                    expired.add(timeout);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private long deadlineTick(long deadline) {
+        long elapsed = deadline - startTime;
+        long tick = (elapsed + tickDuration - 1) / tickDuration;
+        return Math.max(tick, currentTick);
+    }
+
+    private long tickTime(long tick) {
+        return startTime + tick * tickDuration;
+    }
+
+    private void link(Timeout timeout, long deadlineTick) {
+        int bucket = (int) (deadlineTick & mask);
+        timeout.deadlineTick = deadlineTick;
+        timeout.bucket = bucket;
+        timeout.previous = null;
+        timeout.next = buckets[bucket];
+        if (buckets[bucket] != null) {
+            buckets[bucket].previous = timeout;
+        }
+        buckets[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+}
@@ -5,12 +5,14 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconContract;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconPersistence;
 import com.gjermundbjaanes.beaconmqtt.db.log.LogContract;
+import com.gjermundbjaanes.beaconmqtt.db.zone.ZoneContract;
 
 public class DbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 7;
     private static final String DATABASE_NAME = "Beacon.db";
 
     private static final String SQL_CREATE_BEACON_TABLE =
@@ -19,6 +21,7 @@ public class DbHelper extends SQLiteOpenHelper {
                     BeaconContract.BeaconEntry.COLUMN_NAME_MINOR + " TEXT," +
                     BeaconContract.BeaconEntry.COLUMN_NAME_MAJOR + " TEXT," +
                     BeaconContract.BeaconEntry.COLUMN_NAME_INFORMAL_NAME + " TEXT," +
+                    BeaconContract.BeaconEntry.COLUMN_NAME_EXIT_TIMEOUT + " INTEGER," +
                     "PRIMARY KEY (" +
                     BeaconContract.BeaconEntry.COLUMN_NAME_UUID + ", " +
                     BeaconContract.BeaconEntry.COLUMN_NAME_MINOR + ", " +
@@ -32,6 +35,22 @@ public class DbHelper extends SQLiteOpenHelper {
                     LogContract.LogEntry.COLUMN_NAME_LOG_LINE + " TEXT," +
                     LogContract.LogEntry.COLUMN_NAME_EXTRA_INFO + " TEXT)";
 
+    private static final String SQL_CREATE_ZONE_TABLE =
+            "CREATE TABLE " + ZoneContract.ZoneEntry.TABLE_NAME + " (" +
+                    ZoneContract.ZoneEntry.COLUMN_NAME_ZONE_NAME + " TEXT NOT NULL," +
+                    ZoneContract.ZoneEntry.COLUMN_NAME_UUID + " TEXT NOT NULL," +
+                    ZoneContract.ZoneEntry.COLUMN_NAME_MAJOR + " TEXT NOT NULL," +
+                    ZoneContract.ZoneEntry.COLUMN_NAME_MINOR + " TEXT NOT NULL," +
+                    "PRIMARY KEY (" +
+                    ZoneContract.ZoneEntry.COLUMN_NAME_ZONE_NAME + ", " +
+                    ZoneContract.ZoneEntry.COLUMN_NAME_UUID + ", " +
+                    ZoneContract.ZoneEntry.COLUMN_NAME_MAJOR + ", " +
+                    ZoneContract.ZoneEntry.COLUMN_NAME_MINOR + ")" +
+                    ");";
+
+    private static final String SQL_ADD_BEACON_EXIT_TIMEOUT_COLUMN =
+            "ALTER TABLE " + BeaconContract.BeaconEntry.TABLE_NAME +
+                    " ADD COLUMN " + BeaconContract.BeaconEntry.COLUMN_NAME_EXIT_TIMEOUT + " INTEGER";
 
     private static final String SQL_DELETE_BEACON_TABLE =
             "DROP TABLE IF EXISTS " + BeaconContract.BeaconEntry.TABLE_NAME;
@@ -39,6 +58,9 @@ public class DbHelper extends SQLiteOpenHelper {
     private static final String SQL_DELETE_LOG_TABLE =
             "DROP TABLE IF EXISTS " + LogContract.LogEntry.TABLE_NAME;
 
+    private static final String SQL_DELETE_ZONE_TABLE =
+            "DROP TABLE IF EXISTS " + ZoneContract.ZoneEntry.TABLE_NAME;
+
     public DbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -47,18 +69,37 @@ public class DbHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_BEACON_TABLE);
         db.execSQL(SQL_CREATE_LOG_TABLE);
+        db.execSQL(SQL_CREATE_ZONE_TABLE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        db.execSQL(SQL_DELETE_BEACON_TABLE);
-        db.execSQL(SQL_DELETE_LOG_TABLE);
-        onCreate(db);
+        if (oldVersion < 4) {
+            // Versions before 4 were only a cache, so they are discarded
+            recreate(db);
+            return;
+        }
+
+        // Saved beacons are kept from version 4 on, so migrate step by step
+        if (oldVersion < 5) {
+            db.execSQL(SQL_ADD_BEACON_EXIT_TIMEOUT_COLUMN);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(SQL_CREATE_ZONE_TABLE);
+        }
+        if (oldVersion < 7) {
+            BeaconPersistence.canonicalizeBeacons(db);
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        recreate(db);
+    }
+
+    private void recreate(SQLiteDatabase db) {
+        db.execSQL(SQL_DELETE_BEACON_TABLE);
+        db.execSQL(SQL_DELETE_LOG_TABLE);
+        db.execSQL(SQL_DELETE_ZONE_TABLE);
+        onCreate(db);
     }
 }
@@ -13,5 +13,6 @@ public class BeaconContract {
         public static final String COLUMN_NAME_MINOR = "minor";
         public static final String COLUMN_NAME_MAJOR = "major";
         public static final String COLUMN_NAME_INFORMAL_NAME = "name";
+        public static final String COLUMN_NAME_EXIT_TIMEOUT = "exit_timeout";
     }
 }
@@ -4,14 +4,19 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
 
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
 import com.gjermundbjaanes.beaconmqtt.db.DbHelper;
+import com.gjermundbjaanes.beaconmqtt.db.zone.ZonePersistence;
 
 import org.altbeacon.beacon.Beacon;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import static com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconContract.BeaconEntry.COLUMN_NAME_EXIT_TIMEOUT;
 import static com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconContract.BeaconEntry.COLUMN_NAME_INFORMAL_NAME;
 import static com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconContract.BeaconEntry.COLUMN_NAME_MAJOR;
 import static com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconContract.BeaconEntry.COLUMN_NAME_MINOR;
@@ -20,6 +25,7 @@ import static com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconContract.BeaconEntr
 
 public class BeaconPersistence {
 
+    private static final String TAG = BeaconPersistence.class.getName();
     private static final String PRIMARY_KEY_SELECTION = COLUMN_NAME_UUID + "=? AND " + COLUMN_NAME_MAJOR + "=? AND " + COLUMN_NAME_MINOR + "=?";
     private final DbHelper dbHelper;
 
@@ -36,6 +42,7 @@ public class BeaconPersistence {
                     COLUMN_NAME_MAJOR,
                     COLUMN_NAME_MINOR,
                     COLUMN_NAME_INFORMAL_NAME,
+                    COLUMN_NAME_EXIT_TIMEOUT,
             };
 
             Cursor cursor = db.query(TABLE_NAME, columns, null, null, null, null, null);
@@ -46,7 +53,8 @@ public class BeaconPersistence {
                 String major = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_MAJOR));
                 String minor = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_MINOR));
                 String informalName = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_INFORMAL_NAME));
-                beacons.add(new BeaconResult(uuid, major, minor, informalName));
+                long exitTimeout = getExitTimeout(cursor);
+                beacons.add(new BeaconResult(uuid, major, minor, informalName, exitTimeout));
             }
             cursor.close();
 
@@ -60,21 +68,52 @@ public class BeaconPersistence {
     }
 
     public void saveBeacon(Beacon beacon, String informalBeaconName) {
-        saveBeacon(beacon.getId1().toString(), beacon.getId2().toString(), beacon.getId3().toString(), informalBeaconName);
+        saveBeacon(beacon, informalBeaconName, 0);
+    }
+
+    public void saveBeacon(Beacon beacon, String informalBeaconName, long exitTimeout) {
+        BeaconIdentity identity = BeaconIdentity.fromBeacon(beacon);
+        if (identity == null) {
+            Log.w(TAG, "Not saving beacon without uuid, major and minor: " + beacon);
+            return;
+        }
+        saveBeacon(new BeaconResult(identity, informalBeaconName, exitTimeout));
     }
 
     public void saveBeacon(String uuid, String major, String minor, String informalBeaconName) {
+        saveBeacon(uuid, major, minor, informalBeaconName, 0);
+    }
+
+    /**
+     * @param exitTimeout milliseconds for ranging presence mode, 0 to use the default from the settings
+     */
+    public void saveBeacon(String uuid, String major, String minor, String informalBeaconName, long exitTimeout) {
+        BeaconResult beacon = new BeaconResult(uuid, major, minor, informalBeaconName, exitTimeout);
+        if (beacon.getIdentity() != null) {
+            // Store the canonical form, so e.g. major "01" and "1" can't end up as two rows
+            beacon = new BeaconResult(beacon.getIdentity(), informalBeaconName, exitTimeout);
+        }
+        saveBeacon(beacon);
+    }
+
+    private void saveBeacon(BeaconResult beacon) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
         try {
             ContentValues values = new ContentValues();
 
-            values.put(COLUMN_NAME_UUID, uuid);
-            values.put(COLUMN_NAME_MAJOR, major);
-            values.put(COLUMN_NAME_MINOR, minor);
-            values.put(COLUMN_NAME_INFORMAL_NAME, informalBeaconName);
+            values.put(COLUMN_NAME_UUID, beacon.getUuid());
+            values.put(COLUMN_NAME_MAJOR, beacon.getMajor());
+            values.put(COLUMN_NAME_MINOR, beacon.getMinor());
+            values.put(COLUMN_NAME_INFORMAL_NAME, beacon.getInformalName());
+            if (beacon.getExitTimeout() > 0) {
+                values.put(COLUMN_NAME_EXIT_TIMEOUT, beacon.getExitTimeout());
+            }
 
-            db.insert(TABLE_NAME, null, values);
+            long rowId = db.insert(TABLE_NAME, null, values);
+            if (rowId != -1) {
+                BeaconRegistry.getInstance().beaconSaved(beacon);
+            }
         } finally {
             if (db != null) {
                 db.close();
@@ -82,7 +121,7 @@ public class BeaconPersistence {
         }
     }
 
-    public BeaconResult getBeacon(String uuid, String major, String minor) {
+    public BeaconResult getBeacon(BeaconIdentity identity) {
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
         try {
@@ -91,16 +130,18 @@ public class BeaconPersistence {
                     COLUMN_NAME_MAJOR,
                     COLUMN_NAME_MINOR,
                     COLUMN_NAME_INFORMAL_NAME,
+                    COLUMN_NAME_EXIT_TIMEOUT,
             };
 
-            Cursor cursor = db.query(TABLE_NAME, columns, PRIMARY_KEY_SELECTION, new String[] {uuid, major, minor}, null, null, null);
+            Cursor cursor = db.query(TABLE_NAME, columns, PRIMARY_KEY_SELECTION, getPrimaryKey(identity), null, null, null);
 
             if (cursor != null && cursor.getCount() > 0) {
                 cursor.moveToFirst();
                 String informalName = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_INFORMAL_NAME));
+                long exitTimeout = getExitTimeout(cursor);
                 cursor.close();
 
-                return new BeaconResult(uuid, major, minor, informalName);
+                return new BeaconResult(identity, informalName, exitTimeout);
             }
 
         } finally {
@@ -117,11 +158,71 @@ public class BeaconPersistence {
 
         try {
             int numberOfRowsAffected = db.delete(TABLE_NAME, PRIMARY_KEY_SELECTION, new String[] {beaconResult.getUuid(), beaconResult.getMajor(), beaconResult.getMinor()});
-            return numberOfRowsAffected != 0;
+            if (numberOfRowsAffected != 0) {
+                if (beaconResult.getIdentity() != null) {
+                    ZonePersistence.removeBeaconFromZones(db, beaconResult.getIdentity());
+                }
+                BeaconRegistry.getInstance().beaconDeleted(beaconResult);
+                return true;
+            }
+            return false;
         } finally {
             if (db != null) {
                 db.close();
             }
         }
     }
+
+    /**
+     * Rewrites rows saved before beacons were stored in canonical form, e.g.
+     * with an upper case uuid, so that lookups by {@link BeaconIdentity} find
+     * them. A row whose canonical form is saved as well is a duplicate and is deleted.
+     */
+    public static void canonicalizeBeacons(SQLiteDatabase db) {
+        String[] columns = {COLUMN_NAME_UUID, COLUMN_NAME_MAJOR, COLUMN_NAME_MINOR};
+        Cursor cursor = db.query(TABLE_NAME, columns, null, null, null, null, null);
+        List<String[]> keys = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            keys.add(new String[] {cursor.getString(0), cursor.getString(1), cursor.getString(2)});
+        }
+        cursor.close();
+
+        for (String[] key : keys) {
+            String[] canonicalKey = getCanonicalKey(key[0], key[1], key[2]);
+            if (canonicalKey == null) {
+                continue;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_NAME_UUID, canonicalKey[0]);
+            values.put(COLUMN_NAME_MAJOR, canonicalKey[1]);
+            values.put(COLUMN_NAME_MINOR, canonicalKey[2]);
+            if (db.updateWithOnConflict(TABLE_NAME, values, PRIMARY_KEY_SELECTION, key, SQLiteDatabase.CONFLICT_IGNORE) == 0) {
+                db.delete(TABLE_NAME, PRIMARY_KEY_SELECTION, key);
+            }
+        }
+    }
+
+    /**
+     * @return the key a row with the given columns should have, or null if it
+     * has it already or does not hold a valid beacon
+     */
+    static String[] getCanonicalKey(String uuid, String major, String minor) {
+        BeaconIdentity identity = new BeaconResult(uuid, major, minor, null).getIdentity();
+        if (identity == null) {
+            return null;
+        }
+
+        String[] canonicalKey = getPrimaryKey(identity);
+        return Arrays.equals(canonicalKey, new String[] {uuid, major, minor}) ? null : canonicalKey;
+    }
+
+    static String[] getPrimaryKey(BeaconIdentity identity) {
+        return new String[] {identity.getUuid().toString(), String.valueOf(identity.getMajor()), String.valueOf(identity.getMinor())};
+    }
+
+    private static long getExitTimeout(Cursor cursor) {
+        int columnIndex = cursor.getColumnIndex(COLUMN_NAME_EXIT_TIMEOUT);
+        return cursor.isNull(columnIndex) ? 0 : cursor.getLong(columnIndex);
+    }
 }
@@ -0,0 +1,77 @@
+package com.gjermundbjaanes.beaconmqtt.db.beacon;
+
+import android.util.Log;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide, in-memory copy of the saved beacons. It is loaded once from
+ * {@link BeaconPersistence} and kept up to date by the persistence layer, so
+ * beacon event handling never has to go to the database.
+ */
+public class BeaconRegistry {
+
+    private static final String TAG = BeaconRegistry.class.getName();
+    private static final BeaconRegistry INSTANCE = new BeaconRegistry();
+
+    private final ConcurrentHashMap<BeaconIdentity, BeaconResult> beaconsByIdentity = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<BeaconResult> beacons = new CopyOnWriteArrayList<>();
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile boolean loaded = false;
+
+    private BeaconRegistry() {}
+
+    public static BeaconRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void load(BeaconPersistence beaconPersistence) {
+        if (loaded) {
+            return;
+        }
+
+        for (BeaconResult beacon : beaconPersistence.getBeacons()) {
+            beaconSaved(beacon);
+        }
+        loaded = true;
+    }
+
+    public BeaconResult getBeacon(BeaconIdentity identity) {
+        return beaconsByIdentity.get(identity);
+    }
+
+    public List<BeaconResult> getBeacons() {
+        return new ArrayList<>(beacons);
+    }
+
+    /**
+     * Changes whenever a beacon is saved or deleted, for caches of the saved beacons.
+     */
+    public int getVersion() {
+        return version.get();
+    }
+
+    void beaconSaved(BeaconResult beacon) {
+        beacons.addIfAbsent(beacon);
+        if (beacon.getIdentity() != null) {
+            beaconsByIdentity.put(beacon.getIdentity(), beacon);
+        } else {
+            Log.w(TAG, "Not indexing beacon with invalid identity: " + beacon.getUuid() + " " + beacon.getMajor() + " " + beacon.getMinor());
+        }
+        version.incrementAndGet();
+    }
+
+    void beaconDeleted(BeaconResult beacon) {
+        beacons.remove(beacon);
+        if (beacon.getIdentity() != null) {
+            beaconsByIdentity.remove(beacon.getIdentity());
+        }
+        version.incrementAndGet();
+    }
+}
@@ -1,17 +1,40 @@
 package com.gjermundbjaanes.beaconmqtt.db.beacon;
 
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+
 public class BeaconResult {
 
     private String uuid;
     private String major;
     private String minor;
     private String informalName;
+    private long exitTimeout;
+    private BeaconIdentity identity;
 
     public BeaconResult(String uuid, String major, String minor, String informalName) {
+        this(uuid, major, minor, informalName, 0);
+    }
+
+    public BeaconResult(String uuid, String major, String minor, String informalName, long exitTimeout) {
         this.uuid = uuid;
         this.major = major;
         this.minor = minor;
         this.informalName = informalName;
+        this.exitTimeout = exitTimeout;
+        try {
+            this.identity = BeaconIdentity.fromStrings(uuid, major, minor);
+        } catch (IllegalArgumentException e) {
+            this.identity = null; // Saved by hand with a typo, kept so it can be shown and deleted
+        }
+    }
+
+    public BeaconResult(BeaconIdentity identity, String informalName, long exitTimeout) {
+        this.uuid = identity.getUuid().toString();
+        this.major = String.valueOf(identity.getMajor());
+        this.minor = String.valueOf(identity.getMinor());
+        this.informalName = informalName;
+        this.exitTimeout = exitTimeout;
+        this.identity = identity;
     }
 
     public String getUuid() {
@@ -30,10 +53,27 @@ public class BeaconResult {
         return informalName;
     }
 
+    /**
+     * Milliseconds without sightings before the beacon exits in ranging presence mode, 0 for the default.
+     */
+    public long getExitTimeout() {
+        return exitTimeout;
+    }
+
+    /**
+     * @return the parsed identity, or null if uuid, major or minor is not valid
+     */
+    public BeaconIdentity getIdentity() {
+        return identity;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof BeaconResult) {
             BeaconResult other = (BeaconResult) obj;
+            if (this.identity != null && other.identity != null) {
+                return this.identity.equals(other.identity);
+            }
             return this.uuid.equals(other.getUuid()) && this.major.equals(other.getMajor()) && this.minor.equals(other.getMinor());
         }
 
@@ -42,6 +82,9 @@ public class BeaconResult {
 
     @Override
     public int hashCode() {
-        return (41 * (41 + (uuid + major + minor).hashCode()));
+        if (identity != null) {
+            return identity.hashCode();
+        }
+        return 31 * (31 * uuid.hashCode() + major.hashCode()) + minor.hashCode();
     }
 }
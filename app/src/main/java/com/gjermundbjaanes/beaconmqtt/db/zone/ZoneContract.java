@@ -0,0 +1,20 @@
+package com.gjermundbjaanes.beaconmqtt.db.zone;
+
+import android.provider.BaseColumns;
+
+public class ZoneContract {
+
+    private ZoneContract() {}
+
+    /**
+     * One row per beacon in a zone. A zone exists as long as it has a beacon.
+     */
+    public static class ZoneEntry implements BaseColumns {
+        public static final String TABLE_NAME = "zone";
+
+        public static final String COLUMN_NAME_ZONE_NAME = "name";
+        public static final String COLUMN_NAME_UUID = "uuid";
+        public static final String COLUMN_NAME_MAJOR = "major";
+        public static final String COLUMN_NAME_MINOR = "minor";
+    }
+}
@@ -0,0 +1,105 @@
+package com.gjermundbjaanes.beaconmqtt.db.zone;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.db.DbHelper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.gjermundbjaanes.beaconmqtt.db.zone.ZoneContract.ZoneEntry.COLUMN_NAME_MAJOR;
+import static com.gjermundbjaanes.beaconmqtt.db.zone.ZoneContract.ZoneEntry.COLUMN_NAME_MINOR;
+import static com.gjermundbjaanes.beaconmqtt.db.zone.ZoneContract.ZoneEntry.COLUMN_NAME_UUID;
+import static com.gjermundbjaanes.beaconmqtt.db.zone.ZoneContract.ZoneEntry.COLUMN_NAME_ZONE_NAME;
+import static com.gjermundbjaanes.beaconmqtt.db.zone.ZoneContract.ZoneEntry.TABLE_NAME;
+
+public class ZonePersistence {
+
+    private static final String TAG = ZonePersistence.class.getName();
+    private static final String BEACON_SELECTION = COLUMN_NAME_UUID + "=? AND " + COLUMN_NAME_MAJOR + "=? AND " + COLUMN_NAME_MINOR + "=?";
+
+    private final DbHelper dbHelper;
+
+    public ZonePersistence(Context context) {
+        dbHelper = new DbHelper(context);
+    }
+
+    public List<ZoneResult> getZones() {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        try {
+            String[] columns = {
+                    COLUMN_NAME_ZONE_NAME,
+                    COLUMN_NAME_UUID,
+                    COLUMN_NAME_MAJOR,
+                    COLUMN_NAME_MINOR,
+            };
+
+            Cursor cursor = db.query(TABLE_NAME, columns, null, null, null, null, COLUMN_NAME_ZONE_NAME);
+
+            Map<String, List<BeaconIdentity>> beaconsByZone = new LinkedHashMap<>();
+            while (cursor.moveToNext()) {
+                String zoneName = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_ZONE_NAME));
+                String uuid = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_UUID));
+                String major = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_MAJOR));
+                String minor = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_MINOR));
+
+                List<BeaconIdentity> beacons = beaconsByZone.get(zoneName);
+                if (beacons == null) {
+                    beacons = new ArrayList<>();
+                    beaconsByZone.put(zoneName, beacons);
+                }
+                try {
+                    beacons.add(BeaconIdentity.fromStrings(uuid, major, minor));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Skipping beacon with invalid identity in zone " + zoneName, e);
+                }
+            }
+            cursor.close();
+
+            List<ZoneResult> zones = new ArrayList<>(beaconsByZone.size());
+            for (Map.Entry<String, List<BeaconIdentity>> entry : beaconsByZone.entrySet()) {
+                zones.add(new ZoneResult(entry.getKey(), entry.getValue()));
+            }
+            return zones;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    public void addBeaconToZone(String zoneName, BeaconIdentity identity) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        try {
+            ContentValues values = new ContentValues();
+
+            values.put(COLUMN_NAME_ZONE_NAME, zoneName);
+            values.put(COLUMN_NAME_UUID, identity.getUuid().toString());
+            values.put(COLUMN_NAME_MAJOR, String.valueOf(identity.getMajor()));
+            values.put(COLUMN_NAME_MINOR, String.valueOf(identity.getMinor()));
+
+            db.insert(TABLE_NAME, null, values);
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Removes the beacon from every zone it is in, e.g. when the beacon is deleted.
+     */
+    public static void removeBeaconFromZones(SQLiteDatabase db, BeaconIdentity identity) {
+        db.delete(TABLE_NAME, BEACON_SELECTION, new String[] {
+                identity.getUuid().toString(), String.valueOf(identity.getMajor()), String.valueOf(identity.getMinor())});
+    }
+}
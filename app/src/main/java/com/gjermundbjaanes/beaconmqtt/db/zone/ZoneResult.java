@@ -0,0 +1,25 @@
+package com.gjermundbjaanes.beaconmqtt.db.zone;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+
+import java.util.Collections;
+import java.util.List;
+
+public class ZoneResult {
+
+    private final String name;
+    private final List<BeaconIdentity> beacons;
+
+    public ZoneResult(String name, List<BeaconIdentity> beacons) {
+        this.name = name;
+        this.beacons = Collections.unmodifiableList(beacons);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<BeaconIdentity> getBeacons() {
+        return beacons;
+    }
+}
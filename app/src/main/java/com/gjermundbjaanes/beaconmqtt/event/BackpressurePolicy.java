@@ -0,0 +1,24 @@
+package com.gjermundbjaanes.beaconmqtt.event;
+
+/**
+ * What {@link BeaconEventPipeline} does with a new event when its queue is full.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Waits for room, which holds up the callback thread that reported the event.
+     */
+    BLOCK,
+    DROP_NEWEST,
+    DROP_OLDEST;
+
+    public static BackpressurePolicy fromString(String value, BackpressurePolicy defaultPolicy) {
+        if (value != null) {
+            for (BackpressurePolicy policy : values()) {
+                if (policy.name().equals(value)) {
+                    return policy;
+                }
+            }
+        }
+        return defaultPolicy;
+    }
+}
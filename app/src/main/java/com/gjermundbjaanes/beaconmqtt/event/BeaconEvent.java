@@ -0,0 +1,33 @@
+package com.gjermundbjaanes.beaconmqtt.event;
+
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+public final class BeaconEvent {
+
+    public enum Type {
+        ENTER,
+        EXIT
+    }
+
+    private final Type type;
+    private final BeaconResult beacon;
+    private final long timestamp;
+
+    public BeaconEvent(Type type, BeaconResult beacon, long timestamp) {
+        this.type = type;
+        this.beacon = beacon;
+        this.timestamp = timestamp;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public BeaconResult getBeacon() {
+        return beacon;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,12 @@
+package com.gjermundbjaanes.beaconmqtt.event;
+
+public interface BeaconEventHandler {
+    void handleBeaconEvent(BeaconEvent event);
+
+    /**
+     * Called on the consumer thread once the queue has drained after
+     * {@code droppedCount} events were dropped, so that whatever those events
+     * would have changed can be brought up to date.
+     */
+    void eventsDropped(long droppedCount);
+}
@@ -0,0 +1,248 @@
+package com.gjermundbjaanes.beaconmqtt.event;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves beacon event handling off the callback threads. Producers only put a
+ * small {@link BeaconEvent} into a bounded ring buffer; a single consumer
+ * thread takes them out in order and hands them to the {@link BeaconEventHandler}.
+ * When the buffer is full the current {@link BackpressurePolicy} decides
+ * whether the producer waits or an event is dropped. After a drop the handler
+ * is told once the queue has drained, so it can catch up on what it missed.
+ *
+ * Work that has to stay in step with event handling, like replacing the zones,
+ * can be run on the consumer thread with {@link #execute}.
+ */
+public class BeaconEventPipeline implements Executor {
+
+    public interface PolicyProvider {
+        BackpressurePolicy getBackpressurePolicy();
+    }
+
+    private static final String TAG = BeaconEventPipeline.class.getName();
+    private static final String CONSUMER_THREAD_NAME = "BeaconEventConsumer";
+
+    private static final class Task {
+        private final long sequence;
+        private final Runnable runnable;
+
+        private Task(long sequence, Runnable runnable) {
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+    }
+
+    private final BeaconEvent[] buffer;
+    private final long[] sequences; // When each buffered event was queued, to keep tasks in order with events
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final BeaconEventHandler beaconEventHandler;
+    private final PolicyProvider policyProvider;
+    private final Thread consumerThread;
+    private final Queue<Task> tasks = new ArrayDeque<>();
+
+    private int head = 0;
+    private int size = 0;
+    private boolean shutdown = false;
+    private long nextSequence = 0;
+    private long droppedEvents = 0;
+    private long unreportedDroppedEvents = 0;
+    private long handledEvents = 0;
+
+    public BeaconEventPipeline(int capacity, BeaconEventHandler beaconEventHandler, PolicyProvider policyProvider) {
+        this.buffer = new BeaconEvent[capacity];
+        this.sequences = new long[capacity];
+        this.beaconEventHandler = beaconEventHandler;
+        this.policyProvider = policyProvider;
+
+        consumerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, CONSUMER_THREAD_NAME);
+        consumerThread.start();
+    }
+
+    /**
+     * @return false if the event was dropped
+     */
+    public boolean enqueue(BeaconEvent event) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                droppedEvents++;
+                return false;
+            }
+
+            if (size == buffer.length) {
+                switch (policyProvider.getBackpressurePolicy()) {
+                    case DROP_NEWEST:
+                        droppedEvents++;
+                        unreportedDroppedEvents++;
+                        return false;
+                    case DROP_OLDEST:
+                        buffer[head] = null;
+                        head = (head + 1) % buffer.length;
+                        size--;
+                        droppedEvents++;
+                        unreportedDroppedEvents++;
+                        break;
+                    case BLOCK:
+                        while (size == buffer.length && !shutdown) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (shutdown) {
+                            droppedEvents++;
+                            return false;
+                        }
+                        break;
+                }
+            }
+
+            int tail = (head + size) % buffer.length;
+            buffer[tail] = event;
+            sequences[tail] = nextSequence++;
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs {@code task} on the consumer thread, after the events queued before
+     * it. Unlike events, tasks are never dropped.
+     */
+    @Override
+    public void execute(Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                Log.w(TAG, "Event pipeline is shut down, not running task");
+                return;
+            }
+            tasks.add(new Task(nextSequence++, task));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void consume() {
+        while (true) {
+            BeaconEvent event = null;
+            Runnable task = null;
+            long dropped = 0;
+            lock.lock();
+            try {
+                while (size == 0 && tasks.isEmpty() && unreportedDroppedEvents == 0 && !shutdown) {
+                    notEmpty.awaitUninterruptibly();
+                }
+
+                Task nextTask = tasks.peek();
+                if (nextTask != null && (size == 0 || nextTask.sequence < sequences[head])) {
+                    task = tasks.poll().runnable;
+                } else if (size > 0) {
+                    event = buffer[head];
+                    buffer[head] = null;
+                    head = (head + 1) % buffer.length;
+                    size--;
+                    notFull.signal();
+                } else if (unreportedDroppedEvents > 0) {
+                    dropped = unreportedDroppedEvents;
+                    unreportedDroppedEvents = 0;
+                } else {
+                    return; // Shut down and drained
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (task != null) {
+                    task.run();
+                } else if (event != null) {
+                    beaconEventHandler.handleBeaconEvent(event);
+                } else {
+                    beaconEventHandler.eventsDropped(dropped);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to handle beacon event", e);
+            }
+
+            if (event != null) {
+                lock.lock();
+                try {
+                    handledEvents++;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting events, lets the consumer handle everything already
+     * queued and waits up to the given time for it to finish.
+     *
+     * @return true if the queue was fully drained
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            consumerThread.join(unit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !consumerThread.isAlive();
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    public long getDroppedEventCount() {
+        lock.lock();
+        try {
+            return droppedEvents;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHandledEventCount() {
+        lock.lock();
+        try {
+            return handledEvents;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of a beacon enter/exit event. All fields are big
+ * endian:
+ *
+ * <pre>
+ * offset  size  field
+ *      0     1  version, currently 1
+ *      1     1  event type, 1 = enter, 2 = exit
+ *      2     1  flags, bit 0 set when an RSSI follows the timestamp
+ *      3    16  proximity UUID
+ *     19     2  major, unsigned
+ *     21     2  minor, unsigned
+ *     23     8  event time in milliseconds since the epoch
+ *     31     1  RSSI in dBm, signed, only when flagged
+ * </pre>
+ *
+ * Decoders must reject versions they do not know. New fields are only ever
+ * appended, under a new version or flag, so a version 1 decoder can ignore
+ * trailing bytes. The class only depends on the JDK and can be copied into
+ * consumers as is.
+ */
+public final class BinaryPresencePayload {
+
+    public static final int VERSION = 1;
+    public static final int EVENT_ENTER = 1;
+    public static final int EVENT_EXIT = 2;
+    public static final int NO_RSSI = Integer.MIN_VALUE;
+
+    private static final int FLAG_RSSI = 0x01;
+    private static final int SIZE = 31;
+
+    private final int version;
+    private final int eventType;
+    private final UUID uuid;
+    private final int major;
+    private final int minor;
+    private final long timestamp;
+    private final int rssi;
+
+    private BinaryPresencePayload(int version, int eventType, UUID uuid, int major, int minor, long timestamp, int rssi) {
+        this.version = version;
+        this.eventType = eventType;
+        this.uuid = uuid;
+        this.major = major;
+        this.minor = minor;
+        this.timestamp = timestamp;
+        this.rssi = rssi;
+    }
+
+    /**
+     * @param rssi the signal strength, or {@link #NO_RSSI} when it is not known
+     */
+    public static byte[] encode(int eventType, UUID uuid, int major, int minor, long timestamp, int rssi) {
+        boolean hasRssi = rssi != NO_RSSI;
+        ByteBuffer buffer = ByteBuffer.allocate(hasRssi ? SIZE + 1 : SIZE);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) eventType);
+        buffer.put((byte) (hasRssi ? FLAG_RSSI : 0));
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.putShort((short) major);
+        buffer.putShort((short) minor);
+        buffer.putLong(timestamp);
+        if (hasRssi) {
+            buffer.put((byte) rssi);
+        }
+        return buffer.array();
+    }
+
+    public static BinaryPresencePayload decode(byte[] payload) {
+        if (payload.length < 1) {
+            throw new IllegalArgumentException("Empty payload");
+        }
+        int version = payload[0] & 0xff;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported payload version: " + version);
+        }
+        if (payload.length < SIZE) {
+            throw new IllegalArgumentException("Payload too short: " + payload.length + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.get();
+        int eventType = buffer.get() & 0xff;
+        int flags = buffer.get() & 0xff;
+        UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+        int major = buffer.getShort() & 0xffff;
+        int minor = buffer.getShort() & 0xffff;
+        long timestamp = buffer.getLong();
+        int rssi = NO_RSSI;
+        if ((flags & FLAG_RSSI) != 0) {
+            if (!buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Payload is flagged with an RSSI but has none");
+            }
+            rssi = buffer.get();
+        }
+        return new BinaryPresencePayload(version, eventType, uuid, major, minor, timestamp, rssi);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getEventType() {
+        return eventType;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public int getMajor() {
+        return major;
+    }
+
+    public int getMinor() {
+        return minor;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean hasRssi() {
+        return rssi != NO_RSSI;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+}
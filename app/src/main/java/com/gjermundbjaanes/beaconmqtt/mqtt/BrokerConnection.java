@@ -0,0 +1,146 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import com.gjermundbjaanes.beaconmqtt.R;
+import com.gjermundbjaanes.beaconmqtt.db.log.LogPersistence;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Everything that belongs to one broker: its connection, a journal per
+ * {@link PublishLane} and the publish pipeline. Nothing is shared with the
+ * other brokers, so one that is slow or offline only holds up its own messages.
+ */
+public class BrokerConnection {
+
+    private static final String TAG = BrokerConnection.class.getName();
+    private static final int JOURNAL_CAPACITY = 1024 * 1024;
+    private static final int CRITICAL_JOURNAL_CAPACITY = 256 * 1024; // Small messages, and only a few of them
+    private static final String JOURNAL_FILE_EXTENSION = ".journal";
+
+    private final Context context;
+    private final LogPersistence logPersistence;
+    private final File directory;
+    private final String journalName;
+    private final Map<PublishLane, OutboundJournal> journals = new EnumMap<>(PublishLane.class);
+    private final PublishPipeline publishPipeline;
+    private final MqttConnectionManager connectionManager;
+    private volatile BrokerEndpoint endpoint;
+
+    BrokerConnection(Context context, AppConfigHolder appConfigHolder, LogPersistence logPersistence, Handler handler,
+                     BrokerEndpoint endpoint, String clientId, File directory, String journalName) {
+        this.context = context;
+        this.logPersistence = logPersistence;
+        this.endpoint = endpoint;
+        this.directory = directory;
+        this.journalName = journalName;
+        for (PublishLane lane : PublishLane.values()) {
+            journals.put(lane, openJournal(lane));
+        }
+        publishPipeline = new PublishPipeline(context, appConfigHolder, logPersistence, journals, handler);
+        connectionManager = new MqttConnectionManager(context, handler, logPersistence, clientId, new MqttConnectionManager.Listener() {
+            @Override
+            public void onConnected(MqttTransport transport) {
+                publishPipeline.onConnected(transport);
+            }
+
+            @Override
+            public void onDisconnected() {
+                publishPipeline.onDisconnected();
+            }
+        }, publishPipeline.getPublishListener());
+    }
+
+    public BrokerEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public MqttConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public PublishPipeline getPublishPipeline() {
+        return publishPipeline;
+    }
+
+    /**
+     * Connects right away. Must be called on the handler's thread.
+     */
+    void configure(BrokerEndpoint endpoint, AppConfig config) {
+        this.endpoint = endpoint;
+        connectionManager.configure(endpoint, config);
+    }
+
+    /**
+     * Connects once the settings have settled. Must be called on the handler's thread.
+     */
+    void reconfigure(BrokerEndpoint endpoint, AppConfig config) {
+        this.endpoint = endpoint;
+        connectionManager.reconfigure(endpoint, config);
+    }
+
+    /**
+     * Queues the message for this broker, under the broker's topic prefix.
+     */
+    void publish(PublishLane lane, String topic, int qos, boolean retained, long expiresAt, byte[] payload, int length) {
+        publishPipeline.publish(lane, endpoint.mapTopic(topic), qos, retained, expiresAt, payload, length);
+    }
+
+    /**
+     * Disconnects, keeping what is queued for the next start.
+     */
+    void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Disconnects and throws away what is queued, the broker is not used anymore.
+     */
+    void remove() {
+        connectionManager.shutdown();
+        for (PublishLane lane : PublishLane.values()) {
+            OutboundJournal journal = journals.get(lane);
+            if (journal == null) {
+                continue;
+            }
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the journal of " + endpoint, e);
+            }
+            File journalFile = journalFile(lane);
+            if (!journalFile.delete()) {
+                Log.w(TAG, "Failed to delete " + journalFile);
+            }
+        }
+    }
+
+    /**
+     * The normal lane keeps the name of the journal from before there were lanes.
+     */
+    private File journalFile(PublishLane lane) {
+        if (lane == PublishLane.NORMAL) {
+            return new File(directory, journalName + JOURNAL_FILE_EXTENSION);
+        }
+        return new File(directory, journalName + "-" + lane.name().toLowerCase(Locale.US) + JOURNAL_FILE_EXTENSION);
+    }
+
+    private OutboundJournal openJournal(PublishLane lane) {
+        try {
+            return OutboundJournal.open(journalFile(lane), lane == PublishLane.CRITICAL ? CRITICAL_JOURNAL_CAPACITY : JOURNAL_CAPACITY);
+        } catch (IOException e) {
+            logPersistence.saveNewLog(context.getString(R.string.mqtt_journal_unavailable), "");
+            Log.e(TAG, context.getString(R.string.mqtt_journal_unavailable), e);
+            return null;
+        }
+    }
+}
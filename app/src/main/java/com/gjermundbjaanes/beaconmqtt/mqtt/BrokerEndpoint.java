@@ -0,0 +1,166 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A broker to publish to, and the prefix its topics get. The primary broker
+ * comes from the server settings, additional ones are written one per line as
+ * {@code [tcp://|ssl://]host:port [topic prefix]}, e.g.
+ * {@code ssl://mqtt.example.com:8883 site1/}.
+ */
+public final class BrokerEndpoint {
+
+    private static final String TCP_SCHEME = "tcp://";
+    private static final String SSL_SCHEME = "ssl://";
+
+    private final String host;
+    private final int port;
+    private final boolean tls;
+    private final String topicPrefix;
+
+    public BrokerEndpoint(String host, int port, boolean tls, String topicPrefix) {
+        this.host = host != null ? host.trim() : "";
+        this.port = port;
+        this.tls = tls;
+        this.topicPrefix = topicPrefix != null ? topicPrefix : "";
+    }
+
+    /**
+     * @return the endpoint on {@code line}, or null if it is not one
+     */
+    static BrokerEndpoint parse(String line) {
+        String[] parts = line.trim().split("\\s+", 2);
+        String address = parts[0];
+        boolean tls = false;
+        if (address.startsWith(SSL_SCHEME)) {
+            tls = true;
+            address = address.substring(SSL_SCHEME.length());
+        } else if (address.startsWith(TCP_SCHEME)) {
+            address = address.substring(TCP_SCHEME.length());
+        }
+
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        BrokerEndpoint endpoint = new BrokerEndpoint(address.substring(0, colon), parsePort(address.substring(colon + 1)),
+                tls, parts.length > 1 ? parts[1].trim() : "");
+        return endpoint.isComplete() ? endpoint : null;
+    }
+
+    /**
+     * One endpoint per line. Lines that are empty or not an endpoint are left
+     * out, and so are repeated ones.
+     */
+    public static List<BrokerEndpoint> parseList(String lines) {
+        if (lines == null) {
+            return Collections.emptyList();
+        }
+
+        Set<BrokerEndpoint> endpoints = new LinkedHashSet<>();
+        for (String line : lines.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                BrokerEndpoint endpoint = parse(line);
+                if (endpoint != null) {
+                    endpoints.add(endpoint);
+                }
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(endpoints));
+    }
+
+    /**
+     * @return the port, or 0 if {@code port} is not one
+     */
+    public static int parsePort(String port) {
+        if (port == null) {
+            return 0;
+        }
+        try {
+            int value = Integer.parseInt(port.trim());
+            return value > 0 && value <= 0xffff ? value : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * False when the host or port is missing, there is nothing to connect to then.
+     */
+    public boolean isComplete() {
+        return !host.isEmpty() && port > 0;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isTls() {
+        return tls;
+    }
+
+    public String getTopicPrefix() {
+        return topicPrefix;
+    }
+
+    public String getServerUri() {
+        return (tls ? SSL_SCHEME : TCP_SCHEME) + host + ":" + port;
+    }
+
+    String mapTopic(String topic) {
+        return topicPrefix.isEmpty() ? topic : topicPrefix + topic;
+    }
+
+    /**
+     * A file name that is the same for the same endpoint and differs between endpoints.
+     */
+    String getFileName(String prefix, String extension) {
+        StringBuilder name = new StringBuilder(prefix).append('-').append(host.replaceAll("[^A-Za-z0-9.-]", "_"))
+                .append('-').append(port);
+        if (tls) {
+            name.append("-tls");
+        }
+        if (!topicPrefix.isEmpty()) {
+            name.append('-').append(Integer.toHexString(topicPrefix.hashCode()));
+        }
+        return name.append(extension).toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof BrokerEndpoint) {
+            BrokerEndpoint other = (BrokerEndpoint) obj;
+            return port == other.port
+                    && tls == other.tls
+                    && host.equals(other.host)
+                    && topicPrefix.equals(other.topicPrefix);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = host.hashCode();
+        result = 31 * result + port;
+        result = 31 * result + (tls ? 1 : 0);
+        result = 31 * result + topicPrefix.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return topicPrefix.isEmpty() ? getServerUri() : getServerUri() + " " + topicPrefix;
+    }
+}
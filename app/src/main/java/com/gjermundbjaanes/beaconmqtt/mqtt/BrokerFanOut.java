@@ -0,0 +1,127 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import android.content.Context;
+import android.os.Handler;
+
+import com.gjermundbjaanes.beaconmqtt.db.log.LogPersistence;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes every message to the primary broker and to each additional one.
+ * The caller serializes a message once and every broker copies those bytes
+ * into its own journal; from there on the brokers are independent, with their
+ * own connection, in-flight window and queue. Publishing never waits on a
+ * broker, so one that is slow or offline does not delay the others.
+ */
+class BrokerFanOut implements MessagePublisher {
+
+    private static final String CLIENT_ID = "AndroidMqttBeacon";
+    private static final String JOURNAL_NAME = "mqtt-outbound";
+
+    private final Context context;
+    private final AppConfigHolder appConfigHolder;
+    private final LogPersistence logPersistence;
+    private final Handler handler;
+    private final BrokerConnection primary;
+    private final List<BrokerConnection> brokers = new CopyOnWriteArrayList<>();
+
+    BrokerFanOut(Context context, AppConfigHolder appConfigHolder, LogPersistence logPersistence, Handler handler) {
+        this.context = context;
+        this.appConfigHolder = appConfigHolder;
+        this.logPersistence = logPersistence;
+        this.handler = handler;
+        primary = new BrokerConnection(context, appConfigHolder, logPersistence, handler,
+                appConfigHolder.get().getMqttPrimaryBroker(), CLIENT_ID, context.getFilesDir(), JOURNAL_NAME);
+        brokers.add(primary);
+    }
+
+    BrokerConnection getPrimary() {
+        return primary;
+    }
+
+    /**
+     * The primary broker first, then the additional ones in the order they are configured.
+     */
+    List<BrokerConnection> getBrokers() {
+        return Collections.unmodifiableList(brokers);
+    }
+
+    /**
+     * Connects to every broker. Must be called on the handler's thread.
+     */
+    void configure(AppConfig config) {
+        primary.configure(config.getMqttPrimaryBroker(), config);
+        brokersChanged(config);
+    }
+
+    /**
+     * Call when a setting that every connection uses changed. Must be called on the handler's thread.
+     */
+    void connectionSettingsChanged(AppConfig config) {
+        for (BrokerConnection broker : brokers) {
+            broker.reconfigure(broker == primary ? config.getMqttPrimaryBroker() : broker.getEndpoint(), config);
+        }
+    }
+
+    /**
+     * Connects to added brokers and drops removed ones, together with what was
+     * queued for them. Must be called on the handler's thread.
+     */
+    void brokersChanged(AppConfig config) {
+        List<BrokerEndpoint> endpoints = config.getMqttAdditionalBrokers();
+        for (BrokerConnection broker : brokers) {
+            if (broker != primary && !endpoints.contains(broker.getEndpoint())) {
+                brokers.remove(broker);
+                broker.remove();
+            }
+        }
+
+        for (BrokerEndpoint endpoint : endpoints) {
+            if (find(endpoint) == null) {
+                BrokerConnection broker = new BrokerConnection(context, appConfigHolder, logPersistence, handler,
+                        endpoint, clientId(endpoint), context.getFilesDir(), endpoint.getFileName(JOURNAL_NAME, ""));
+                brokers.add(broker);
+                broker.configure(endpoint, config);
+            }
+        }
+    }
+
+    @Override
+    public void publish(PublishLane lane, String topic, int qos, boolean retained, long expiresAt, byte[] payload, int length) {
+        for (BrokerConnection broker : brokers) {
+            broker.publish(lane, topic, qos, retained, expiresAt, payload, length);
+        }
+    }
+
+    /**
+     * Disconnects from every broker, keeping what is queued for the next start.
+     */
+    void shutdown() {
+        for (BrokerConnection broker : brokers) {
+            broker.shutdown();
+        }
+    }
+
+    private BrokerConnection find(BrokerEndpoint endpoint) {
+        for (BrokerConnection broker : brokers) {
+            if (broker != primary && broker.getEndpoint().equals(endpoint)) {
+                return broker;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A broker drops the older of two connections with the same client id, so
+     * the same broker under two topic prefixes needs two ids. Kept within the
+     * 23 characters that every broker accepts.
+     */
+    private static String clientId(BrokerEndpoint endpoint) {
+        return CLIENT_ID + "-" + Integer.toHexString(endpoint.hashCode() & 0xfffff);
+    }
+}
@@ -0,0 +1,210 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import java.util.Arrays;
+
+/**
+ * Writes flat JSON objects as UTF-8 straight into a reusable byte buffer, so
+ * encoding a payload allocates nothing once the buffer has grown to fit. An
+ * object can start from pre-encoded fields, see {@link #beginObject(byte[])}.
+ * Free form payloads, e.g. from a {@link MessageTemplate}, are written after
+ * {@link #begin()}. Not thread safe.
+ */
+final class JsonPayloadWriter {
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private byte[] buffer = new byte[256];
+    private int size;
+    private boolean needsComma;
+
+    JsonPayloadWriter beginObject() {
+        begin();
+        writeByte('{');
+        return this;
+    }
+
+    /**
+     * Starts a payload without any structure.
+     */
+    JsonPayloadWriter begin() {
+        size = 0;
+        needsComma = false;
+        return this;
+    }
+
+    JsonPayloadWriter raw(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Writes {@code value} escaped for use inside a JSON string, without the quotes.
+     */
+    JsonPayloadWriter escaped(String value) {
+        writeStringContent(value);
+        return this;
+    }
+
+    JsonPayloadWriter number(long value) {
+        writeLong(value);
+        return this;
+    }
+
+    /**
+     * Starts an object with fields that were encoded before, i.e. everything
+     * {@link #encodeFields} returned.
+     */
+    JsonPayloadWriter beginObject(byte[] encodedFields) {
+        begin();
+        raw(encodedFields);
+        needsComma = encodedFields.length > 1;
+        return this;
+    }
+
+    JsonPayloadWriter field(String name, String value) {
+        writeName(name);
+        writeString(value);
+        return this;
+    }
+
+    JsonPayloadWriter field(String name, long value) {
+        writeName(name);
+        writeLong(value);
+        return this;
+    }
+
+    JsonPayloadWriter endObject() {
+        writeByte('}');
+        return this;
+    }
+
+    /**
+     * Returns the open object written so far, for {@link #beginObject(byte[])}.
+     */
+    byte[] encodeFields() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * The returned array is reused by the next payload, only the first
+     * {@link #size()} bytes are valid.
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void writeName(String name) {
+        if (needsComma) {
+            writeByte(',');
+        }
+        needsComma = true;
+        writeString(name);
+        writeByte(':');
+    }
+
+    private void writeString(String value) {
+        writeByte('"');
+        writeStringContent(value);
+        writeByte('"');
+    }
+
+    private void writeStringContent(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20) {
+                writeEscapedControl(c);
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                writeByte(0xc0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeByte(0xf0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                writeByte('?'); // Unpaired surrogate, like String.getBytes
+            } else {
+                writeByte(0xe0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3f));
+                writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void writeEscapedControl(char c) {
+        writeByte('\\');
+        switch (c) {
+            case '\n':
+                writeByte('n');
+                break;
+            case '\r':
+                writeByte('r');
+                break;
+            case '\t':
+                writeByte('t');
+                break;
+            default:
+                writeByte('u');
+                writeByte('0');
+                writeByte('0');
+                writeByte(HEX[c >> 4]);
+                writeByte(HEX[c & 0xf]);
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(String.valueOf(value));
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    private void writeAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            writeByte(value.charAt(i));
+        }
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Decides which journaled message {@link PublishPipeline} sends next. Lanes
+ * are served by strict priority, each within the rate of its own
+ * {@link TokenBucket}, and the last {@code reservedSlots} in-flight slots are
+ * only handed to critical messages. Messages to retry wait in their own lane,
+ * ahead of its journal, so they follow the same rules.
+ *
+ * Not thread safe, the pipeline calls it under its own lock. Times are in
+ * milliseconds from a monotonic clock.
+ */
+class LaneScheduler {
+
+    static final class Message {
+        private final PublishLane lane;
+        private final OutboundJournal.Record record;
+        private int connection;
+        private int attempts = 0;
+        private long retryAt = 0;
+
+        private Message(PublishLane lane, OutboundJournal.Record record) {
+            this.lane = lane;
+            this.record = record;
+        }
+
+        PublishLane getLane() {
+            return lane;
+        }
+
+        OutboundJournal.Record getRecord() {
+            return record;
+        }
+
+        int getConnection() {
+            return connection;
+        }
+
+        void setConnection(int connection) {
+            this.connection = connection;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+
+        void setAttempts(int attempts) {
+            this.attempts = attempts;
+        }
+    }
+
+    private static final class Lane {
+        private final PublishLane priority;
+        private final OutboundJournal journal;
+        private final TokenBucket bucket;
+        private final Queue<Message> retries = new ArrayDeque<>();
+        private OutboundJournal.Record next = null; // Polled from the journal, waiting for a token
+        private long droppedCount = 0;
+
+        private Lane(PublishLane priority, OutboundJournal journal, TokenBucket bucket) {
+            this.priority = priority;
+            this.journal = journal;
+            this.bucket = bucket;
+        }
+    }
+
+    private final Lane[] lanes;
+    private final int maxInFlight;
+    private final int reservedSlots;
+    private long waitMillis = -1;
+
+    /**
+     * @param journals where the messages of each lane wait, a lane without one never has any
+     */
+    LaneScheduler(Map<PublishLane, OutboundJournal> journals, int maxInFlight, int reservedSlots, long now) {
+        this.maxInFlight = maxInFlight;
+        this.reservedSlots = reservedSlots;
+        PublishLane[] priorities = PublishLane.values();
+        lanes = new Lane[priorities.length];
+        for (PublishLane priority : priorities) {
+            lanes[priority.ordinal()] = new Lane(priority, journals.get(priority), new TokenBucket(0, 1, now));
+        }
+    }
+
+    OutboundJournal getJournal(PublishLane lane) {
+        return lanes[lane.ordinal()].journal;
+    }
+
+    /**
+     * Messages per second for {@code lane}, 0 for no limit. Bursts of a
+     * second's worth of messages are allowed.
+     */
+    void setRate(PublishLane lane, double rate, long now) {
+        lanes[lane.ordinal()].bucket.setRate(rate, Math.max(1, rate), now);
+    }
+
+    /**
+     * Takes the next message to send while {@code inFlight} messages are
+     * unacknowledged, or returns null when none may be sent now. In that case
+     * {@link #getWaitMillis()} tells when one of the waiting lanes may send again.
+     */
+    Message next(int inFlight, long now) {
+        long wait = Long.MAX_VALUE;
+        for (Lane lane : lanes) {
+            if (inFlight >= maxInFlight || lane.priority != PublishLane.CRITICAL && inFlight >= maxInFlight - reservedSlots) {
+                break;
+            }
+            if (lane.journal == null) {
+                continue;
+            }
+
+            Message retry = lane.retries.peek();
+            if (retry != null && retry.retryAt > now) {
+                wait = Math.min(wait, retry.retryAt - now);
+                continue; // Nothing else in the lane goes before it
+            }
+            if (retry == null && lane.next == null) {
+                lane.next = lane.journal.poll();
+                if (lane.next == null) {
+                    continue;
+                }
+            }
+
+            if (lane.bucket.tryTake(now)) {
+                waitMillis = -1;
+                if (retry != null) {
+                    return lane.retries.poll();
+                }
+                Message message = new Message(lane.priority, lane.next);
+                lane.next = null;
+                return message;
+            }
+            wait = Math.min(wait, lane.bucket.millisUntilAvailable(now));
+        }
+
+        waitMillis = wait != Long.MAX_VALUE ? Math.max(1, wait) : -1;
+        return null;
+    }
+
+    /**
+     * After {@link #next(int, long)} returned null: milliseconds until a lane
+     * that has a message may send it, or -1 if only a delivery frees a slot.
+     */
+    long getWaitMillis() {
+        return waitMillis;
+    }
+
+    /**
+     * Sends {@code message} again after {@code delayMillis}, ahead of the rest of its lane.
+     */
+    void retry(Message message, long delayMillis, long now) {
+        message.retryAt = now + delayMillis;
+        lanes[message.lane.ordinal()].retries.add(message);
+    }
+
+    void acknowledge(Message message) {
+        lanes[message.lane.ordinal()].journal.acknowledge(message.record.getSeq());
+    }
+
+    /**
+     * Acknowledges a message that will not be sent, counting it as dropped.
+     */
+    void drop(Message message) {
+        Lane lane = lanes[message.lane.ordinal()];
+        lane.droppedCount++;
+        lane.journal.acknowledge(message.record.getSeq());
+    }
+
+    void addDroppedCount(PublishLane lane, int droppedCount) {
+        lanes[lane.ordinal()].droppedCount += droppedCount;
+    }
+
+    /**
+     * Makes every unacknowledged message available again, e.g. after a reconnect.
+     */
+    void rewind() {
+        for (Lane lane : lanes) {
+            lane.retries.clear();
+            lane.next = null;
+            if (lane.journal != null) {
+                lane.journal.rewind();
+            }
+        }
+        waitMillis = -1;
+    }
+
+    /**
+     * Messages of {@code lane} that were not delivered yet, including those in flight.
+     */
+    int getQueuedCount(PublishLane lane) {
+        OutboundJournal journal = lanes[lane.ordinal()].journal;
+        return journal != null ? journal.size() : 0;
+    }
+
+    long getDroppedCount(PublishLane lane) {
+        return lanes[lane.ordinal()].droppedCount;
+    }
+}
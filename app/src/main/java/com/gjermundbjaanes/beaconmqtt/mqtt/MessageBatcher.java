@@ -0,0 +1,84 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Collects encoded JSON events and joins them into one JSON array payload, so
+ * that a burst of events goes out as a single MQTT message. Deciding when to
+ * drain is up to the caller.
+ */
+class MessageBatcher {
+
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private int size = 0;
+    private PublishLane lane = null;
+    private long firstTimestamp = 0;
+
+    /**
+     * Copies the first {@code length} bytes of {@code event} into the batch.
+     *
+     * @return the number of events in the batch, including this one
+     */
+    synchronized int add(byte[] event, int length) {
+        batch.write(size == 0 ? '[' : ',');
+        batch.write(event, 0, length);
+        return ++size;
+    }
+
+    /**
+     * Adds an event that is to be published as part of the batch.
+     *
+     * @param lane the lane the event would have been published in on its own
+     * @param timestamp when the event happened
+     * @return the number of events in the batch, including this one
+     */
+    synchronized int add(byte[] event, int length, PublishLane lane, long timestamp) {
+        if (size == 0) {
+            firstTimestamp = timestamp;
+        }
+        if (this.lane == null || lane.ordinal() < this.lane.ordinal()) {
+            this.lane = lane;
+        }
+        return add(event, length);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * The most urgent lane of the batched events, so that a batch with an
+     * enter or exit is as urgent as the enter or exit. Null if there are no
+     * events. Hold the batcher's lock over this and {@link #drain()} to get
+     * the lane of the drained batch.
+     */
+    synchronized PublishLane getLane() {
+        return lane;
+    }
+
+    /**
+     * When the first event of the batch happened, the batch is no fresher
+     * than that. Hold the batcher's lock as for {@link #getLane()}.
+     */
+    synchronized long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * Returns the batched events as a JSON array and starts a new batch, or
+     * null if there are no events.
+     */
+    synchronized byte[] drain() {
+        if (size == 0) {
+            return null;
+        }
+
+        batch.write(']');
+        byte[] payload = batch.toByteArray();
+        batch.reset();
+        size = 0;
+        lane = null;
+        firstTimestamp = 0;
+        return payload;
+    }
+}
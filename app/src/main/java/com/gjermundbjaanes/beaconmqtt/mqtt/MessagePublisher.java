@@ -0,0 +1,14 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+/**
+ * Where publishers inside this package hand their messages, usually the
+ * {@link BrokerFanOut} that passes them on to every broker.
+ */
+interface MessagePublisher {
+
+    /**
+     * Only the first {@code length} bytes of {@code payload} are published, the
+     * array may be reused once this returns.
+     */
+    void publish(PublishLane lane, String topic, int qos, boolean retained, long expiresAt, byte[] payload, int length);
+}
@@ -0,0 +1,219 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A topic or payload with placeholders such as {@code home/{name}/presence}.
+ * The template is parsed once into literal and placeholder fragments, so
+ * rendering is a walk over the fragments without any parsing or regex.
+ * Braces that do not enclose a known placeholder are kept as they are.
+ *
+ * In topics, the characters that MQTT does not allow in a topic name or that
+ * would add a level ({@code / + #} and NUL) are replaced by {@code _} in
+ * placeholder values, so a beacon name cannot change where a message goes.
+ *
+ * In payloads, text values are JSON escaped but not quoted, so the template
+ * decides on the JSON shape, e.g. {@code {"name":"{name}","at":{ts}}}.
+ */
+final class MessageTemplate {
+
+    enum Placeholder {
+        UUID,
+        MAJOR,
+        MINOR,
+        /** The informal name, or uuid-major-minor for beacons without one. */
+        NAME,
+        /** "enter" or "exit". */
+        EVENT,
+        /** Event time in milliseconds since the epoch. */
+        TS,
+        /** The rendered topic, payloads only. */
+        TOPIC;
+
+        private final String token = "{" + name().toLowerCase(Locale.US) + "}";
+    }
+
+    private static final Set<Placeholder> TOPIC_PLACEHOLDERS = EnumSet.complementOf(EnumSet.of(Placeholder.TOPIC));
+    private static final Set<Placeholder> PAYLOAD_PLACEHOLDERS = EnumSet.allOf(Placeholder.class);
+
+    private static final class Fragment {
+        private final Placeholder placeholder;
+        private final String text;
+        private final byte[] bytes;
+
+        private Fragment(Placeholder placeholder, String text) {
+            this.placeholder = placeholder;
+            this.text = text;
+            this.bytes = text != null ? encode(text) : null;
+        }
+    }
+
+    private final String source;
+    private final Fragment[] fragments;
+
+    private MessageTemplate(String source, Fragment[] fragments) {
+        this.source = source;
+        this.fragments = fragments;
+    }
+
+    static MessageTemplate compileTopic(String template) {
+        return compile(template, TOPIC_PLACEHOLDERS);
+    }
+
+    static MessageTemplate compilePayload(String template) {
+        return compile(template, PAYLOAD_PLACEHOLDERS);
+    }
+
+    private static MessageTemplate compile(String template, Set<Placeholder> allowed) {
+        List<Fragment> fragments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int position = 0;
+        while (position < template.length()) {
+            Placeholder placeholder = placeholderAt(template, position, allowed);
+            if (placeholder == null) {
+                literal.append(template.charAt(position++));
+                continue;
+            }
+
+            if (literal.length() > 0) {
+                fragments.add(new Fragment(null, literal.toString()));
+                literal.setLength(0);
+            }
+            fragments.add(new Fragment(placeholder, null));
+            position += placeholder.token.length();
+        }
+        if (literal.length() > 0) {
+            fragments.add(new Fragment(null, literal.toString()));
+        }
+
+        return new MessageTemplate(template, fragments.toArray(new Fragment[fragments.size()]));
+    }
+
+    private static Placeholder placeholderAt(String template, int position, Set<Placeholder> allowed) {
+        if (template.charAt(position) != '{') {
+            return null;
+        }
+        for (Placeholder placeholder : allowed) {
+            if (template.startsWith(placeholder.token, position)) {
+                return placeholder;
+            }
+        }
+        return null;
+    }
+
+    String getSource() {
+        return source;
+    }
+
+    boolean isEmpty() {
+        return fragments.length == 0;
+    }
+
+    String renderTopic(BeaconResult beacon, String event, long timestamp) {
+        if (fragments.length == 1 && fragments[0].placeholder == null) {
+            return source; // Plain topic, nothing to render
+        }
+
+        StringBuilder topic = new StringBuilder(source.length() + 32);
+        for (Fragment fragment : fragments) {
+            if (fragment.placeholder == null) {
+                topic.append(fragment.text);
+                continue;
+            }
+
+            switch (fragment.placeholder) {
+                case UUID:
+                    appendTopicLevel(topic, beacon.getUuid());
+                    break;
+                case MAJOR:
+                    appendTopicLevel(topic, beacon.getMajor());
+                    break;
+                case MINOR:
+                    appendTopicLevel(topic, beacon.getMinor());
+                    break;
+                case NAME:
+                    if (hasName(beacon)) {
+                        appendTopicLevel(topic, beacon.getInformalName());
+                    } else {
+                        appendTopicLevel(topic, beacon.getUuid());
+                        topic.append('-');
+                        appendTopicLevel(topic, beacon.getMajor());
+                        topic.append('-');
+                        appendTopicLevel(topic, beacon.getMinor());
+                    }
+                    break;
+                case EVENT:
+                    appendTopicLevel(topic, event);
+                    break;
+                case TS:
+                    topic.append(timestamp);
+                    break;
+            }
+        }
+        return topic.toString();
+    }
+
+    void renderPayload(JsonPayloadWriter writer, BeaconResult beacon, String event, long timestamp, String topic) {
+        writer.begin();
+        for (Fragment fragment : fragments) {
+            if (fragment.placeholder == null) {
+                writer.raw(fragment.bytes);
+                continue;
+            }
+
+            switch (fragment.placeholder) {
+                case UUID:
+                    writer.escaped(beacon.getUuid());
+                    break;
+                case MAJOR:
+                    writer.escaped(beacon.getMajor());
+                    break;
+                case MINOR:
+                    writer.escaped(beacon.getMinor());
+                    break;
+                case NAME:
+                    if (hasName(beacon)) {
+                        writer.escaped(beacon.getInformalName());
+                    } else {
+                        writer.escaped(beacon.getUuid()).escaped("-").escaped(beacon.getMajor()).escaped("-").escaped(beacon.getMinor());
+                    }
+                    break;
+                case EVENT:
+                    writer.escaped(event);
+                    break;
+                case TS:
+                    writer.number(timestamp);
+                    break;
+                case TOPIC:
+                    writer.escaped(topic);
+                    break;
+            }
+        }
+    }
+
+    private static void appendTopicLevel(StringBuilder topic, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            topic.append(c == '/' || c == '+' || c == '#' || c == '\0' ? '_' : c);
+        }
+    }
+
+    private static boolean hasName(BeaconResult beacon) {
+        return beacon.getInformalName() != null && !beacon.getInformalName().isEmpty();
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,726 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A small MQTT 5 client over TCP or TLS that only publishes, which is all the app
+ * needs. Compared to 3.1.1 it lets the broker expire the session and stale
+ * messages, sends user properties with every message, and replaces topics that
+ * were sent before by a two byte topic alias, up to the broker's Topic Alias
+ * Maximum.
+ *
+ * The socket is read on a thread of its own and written on a single writer
+ * thread, so packets go out in the order they were published. Messages wait
+ * on the writer thread while the broker's Receive Maximum of unacknowledged
+ * ones is reached, and messages over its Maximum Packet Size fail right away.
+ * Callbacks are handed to the callback executor.
+ */
+class Mqtt5Transport implements MqttTransport {
+
+    /**
+     * The broker does not speak MQTT 5: it answered with a 3.1.1 CONNACK or
+     * with "unsupported protocol version". A broker that hangs up on the
+     * CONNECT is not taken for one, that could just as well be the network.
+     */
+    static class UnsupportedProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The message is larger than the broker's Maximum Packet Size, sending it
+     * would only get the connection closed.
+     */
+    static class PacketTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PacketTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    static class ReasonCodeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int reasonCode;
+
+        ReasonCodeException(String message, int reasonCode) {
+            super(message + ", reason code 0x" + Integer.toHexString(reasonCode));
+            this.reasonCode = reasonCode;
+        }
+
+        int getReasonCode() {
+            return reasonCode;
+        }
+    }
+
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    private static final int MESSAGE_EXPIRY_INTERVAL = 0x02;
+    private static final int SESSION_EXPIRY_INTERVAL = 0x11;
+    private static final int SERVER_KEEP_ALIVE = 0x13;
+    private static final int RECEIVE_MAXIMUM = 0x21;
+    private static final int TOPIC_ALIAS_MAXIMUM = 0x22;
+    private static final int TOPIC_ALIAS = 0x23;
+    private static final int MAXIMUM_QOS = 0x24;
+    private static final int RETAIN_AVAILABLE = 0x25;
+    private static final int USER_PROPERTY = 0x26;
+    private static final int MAXIMUM_PACKET_SIZE = 0x27;
+
+    private static final int PROTOCOL_VERSION = 5;
+    private static final int REASON_UNSUPPORTED_PROTOCOL_VERSION = 0x84;
+    private static final int REASON_FAILURE = 0x80;
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    private static final long MAX_EXPIRY_SECONDS = 0xffffffffL;
+    private static final int DEFAULT_RECEIVE_MAXIMUM = 65535;
+    private static final Object NO_CONTEXT = new Object();
+
+    private static final class Publish {
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+        private final boolean retained;
+        private final long messageExpiry;
+        private final Object context;
+
+        private Publish(String topic, byte[] payload, int qos, boolean retained, long messageExpiry, Object context) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.messageExpiry = messageExpiry;
+            this.context = context;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final TlsSocketFactory tlsSocketFactory;
+    private final String clientId;
+    private final long sessionExpiry;
+    private final Map<String, String> userProperties;
+    private final Executor callbackExecutor;
+    private final Listener listener;
+    private final PublishListener publishListener;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Mqtt5Transport writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Map<Integer, Object> pending = new ConcurrentHashMap<>();
+    private final Runnable ping = new Runnable() {
+        @Override
+        public void run() {
+            write(PINGREQ << 4, new PacketBuilder());
+        }
+    };
+    private final Runnable resetConnection = new Runnable() {
+        @Override
+        public void run() {
+            topicAliases.clear(); // Aliases only last as long as the connection
+            Publish message;
+            while ((message = waiting.poll()) != null) {
+                deliverPublishFailed(message.context, new IOException("Connection lost while publishing"));
+            }
+        }
+    };
+    private final Runnable sendWaiting = new Runnable() {
+        @Override
+        public void run() {
+            sendWaiting();
+        }
+    };
+
+    // Set from the CONNACK, before any writes are submitted
+    private int keepAlive = DEFAULT_KEEP_ALIVE_SECONDS;
+    private int topicAliasMaximum = 0;
+    private int maximumQos = 2;
+    private boolean retainAvailable = true;
+    private int receiveMaximum = DEFAULT_RECEIVE_MAXIMUM;
+    private long maximumPacketSize = 0; // No limit
+
+    // Only used on the writer thread
+    private final Map<String, Integer> topicAliases = new HashMap<>();
+    private final Queue<Publish> waiting = new ArrayDeque<>(); // Until the broker's Receive Maximum allows them
+    private int nextPacketId = 1;
+
+    private volatile Socket socket;
+    private volatile ScheduledFuture<?> pingFuture;
+    private volatile OutputStream out;
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param sessionExpiry   seconds the broker keeps the session after a disconnect. It is never
+     *                        resumed, the transport starts clean on every connect
+     * @param userProperties  sent with the CONNECT and every message
+     * @param tlsSocketFactory for a TLS connection, or null for plain TCP
+     */
+    Mqtt5Transport(String host, int port, TlsSocketFactory tlsSocketFactory, String clientId, long sessionExpiry,
+                   Map<String, String> userProperties, Executor callbackExecutor, Listener listener,
+                   PublishListener publishListener) {
+        this.host = host;
+        this.port = port;
+        this.tlsSocketFactory = tlsSocketFactory;
+        this.clientId = clientId;
+        this.sessionExpiry = Math.min(Math.max(0, sessionExpiry), MAX_EXPIRY_SECONDS);
+        this.userProperties = userProperties;
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+        this.publishListener = publishListener;
+    }
+
+    @Override
+    public void connect(final ActionCallback callback) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runConnection(callback);
+            }
+        }, "Mqtt5Transport reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void publish(final String topic, final byte[] payload, final int qos, final boolean retained,
+                        final long messageExpiry, final Object context) {
+        if (!connected) {
+            deliverPublishFailed(context, new IOException("Not connected"));
+            return;
+        }
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                waiting.add(new Publish(topic, payload, qos, retained, messageExpiry, context));
+                sendWaiting();
+            }
+        });
+    }
+
+    @Override
+    public void disconnect(final ActionCallback callback) {
+        closed = true;
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (connected) {
+                        write(DISCONNECT << 4, new PacketBuilder()); // Normal disconnection, no reason code needed
+                    }
+                    closeSocket();
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSuccess();
+                        }
+                    });
+                }
+            });
+            writer.shutdown();
+        } catch (RejectedExecutionException e) {
+            closeSocket();
+            callback.onSuccess();
+        }
+    }
+
+    private void runConnection(final ActionCallback callback) {
+        keepAlive = DEFAULT_KEEP_ALIVE_SECONDS;
+        topicAliasMaximum = 0;
+        maximumQos = 2;
+        retainAvailable = true;
+        receiveMaximum = DEFAULT_RECEIVE_MAXIMUM;
+        maximumPacketSize = 0;
+
+        DataInputStream in;
+        try {
+            // Writes still queued for the last connection fail on its closed stream, before the new one
+            // is visible to the writer, so none of them go out with that connection's topic aliases
+            try {
+                writer.submit(resetConnection).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Could not reset the connection state", e);
+            }
+
+            Socket socket = tlsSocketFactory != null ? tlsSocketFactory.createSocket() : new Socket();
+            this.socket = socket;
+            if (closed) {
+                throw new IOException("Disconnected while connecting");
+            }
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            if (tlsSocketFactory != null) {
+                tlsSocketFactory.startHandshake((SSLSocket) socket);
+            }
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+
+            out.write(encodeConnect());
+            out.flush();
+            readConnack(in);
+
+            // Pings keep the connection alive, so a silent socket for 1.5 keep alive intervals is a dead one
+            socket.setSoTimeout(keepAlive * 1500);
+            if (keepAlive > 0) {
+                pingFuture = writer.scheduleWithFixedDelay(ping, keepAlive, keepAlive, TimeUnit.SECONDS);
+            }
+            connected = true;
+        } catch (final IOException | RuntimeException e) {
+            closeSocket();
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onFailure(e);
+                }
+            });
+            return;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSuccess();
+            }
+        });
+
+        try {
+            while (true) {
+                readPacket(in);
+            }
+        } catch (final IOException | RuntimeException e) {
+            connected = false;
+            pending.clear(); // Nothing is resumed, the pipeline rewinds its journal on the next connect
+            closeSocket();
+            if (pingFuture != null) {
+                pingFuture.cancel(false);
+            }
+            if (!closed) {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onConnectionLost(e);
+                    }
+                });
+            }
+        }
+    }
+
+    private byte[] encodeConnect() {
+        PacketBuilder properties = new PacketBuilder();
+        if (sessionExpiry > 0) {
+            properties.writeByte(SESSION_EXPIRY_INTERVAL).writeInt((int) sessionExpiry);
+        }
+        writeUserProperties(properties);
+
+        PacketBuilder connect = new PacketBuilder()
+                .writeString("MQTT")
+                .writeByte(PROTOCOL_VERSION)
+                .writeByte(0x02) // Clean start, PublishPipeline replays unacknowledged messages from its journal
+                .writeShort(DEFAULT_KEEP_ALIVE_SECONDS)
+                .writeProperties(properties)
+                .writeString(clientId);
+        return connect.toPacket(CONNECT << 4);
+    }
+
+    private void readConnack(DataInputStream in) throws IOException {
+        int header = in.readUnsignedByte();
+        byte[] body = readBody(in);
+
+        if (header >> 4 != CONNACK) {
+            throw new IOException("Expected CONNACK, got packet type " + (header >> 4));
+        }
+        if (body.length == 2) {
+            // A 3.1.1 CONNACK has no properties, it is most likely "unacceptable protocol version"
+            throw new UnsupportedProtocolException("Broker answered with an MQTT 3.1.1 CONNACK, return code " + body[1]);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        buffer.get(); // Acknowledge flags
+        int reasonCode = buffer.get() & 0xff;
+        if (reasonCode == REASON_UNSUPPORTED_PROTOCOL_VERSION) {
+            throw new UnsupportedProtocolException("Broker does not support MQTT 5");
+        }
+        if (reasonCode >= REASON_FAILURE) {
+            throw new ReasonCodeException("Connection refused", reasonCode);
+        }
+
+        int end = readVariableInt(buffer) + buffer.position();
+        while (buffer.position() < end) {
+            int id = readVariableInt(buffer);
+            switch (id) {
+                case SERVER_KEEP_ALIVE:
+                    keepAlive = buffer.getShort() & 0xffff;
+                    break;
+                case TOPIC_ALIAS_MAXIMUM:
+                    topicAliasMaximum = buffer.getShort() & 0xffff;
+                    break;
+                case MAXIMUM_QOS:
+                    maximumQos = buffer.get();
+                    break;
+                case RETAIN_AVAILABLE:
+                    retainAvailable = buffer.get() != 0;
+                    break;
+                case RECEIVE_MAXIMUM:
+                    receiveMaximum = Math.max(1, buffer.getShort() & 0xffff);
+                    break;
+                case MAXIMUM_PACKET_SIZE:
+                    maximumPacketSize = buffer.getInt() & 0xffffffffL;
+                    break;
+                default:
+                    skipProperty(buffer, id);
+            }
+        }
+    }
+
+    private void readPacket(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte() >> 4;
+        ByteBuffer buffer = ByteBuffer.wrap(readBody(in));
+        switch (type) {
+            case PUBACK:
+            case PUBCOMP:
+                completePublish(buffer.getShort() & 0xffff, reasonCode(buffer));
+                break;
+            case PUBREC:
+                final int packetId = buffer.getShort() & 0xffff;
+                int reasonCode = reasonCode(buffer);
+                if (reasonCode >= REASON_FAILURE) {
+                    completePublish(packetId, reasonCode);
+                } else {
+                    writer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            write(PUBREL << 4 | 0x02, new PacketBuilder().writeShort(packetId));
+                        }
+                    });
+                }
+                break;
+            case DISCONNECT:
+                throw new ReasonCodeException("Disconnected by the broker", reasonCode(buffer));
+            case PINGRESP:
+            default:
+                break; // Nothing is subscribed, so there is nothing else to handle
+        }
+    }
+
+    private void completePublish(int packetId, int reasonCode) {
+        Object context = pending.remove(packetId);
+        if (context == null) {
+            return;
+        }
+        writer.execute(sendWaiting);
+
+        if (reasonCode >= REASON_FAILURE) {
+            deliverPublishFailed(context, new ReasonCodeException("Message rejected", reasonCode));
+        } else {
+            deliverPublishDelivered(context);
+        }
+    }
+
+    /**
+     * Sends waiting messages in order, for as long as the broker's Receive
+     * Maximum allows another unacknowledged one.
+     */
+    private void sendWaiting() {
+        Publish message;
+        while ((message = waiting.peek()) != null) {
+            if (Math.min(message.qos, maximumQos) > 0 && pending.size() >= receiveMaximum) {
+                return; // Sent when the broker acknowledges one of those in flight
+            }
+            waiting.poll();
+            writePublish(message);
+        }
+    }
+
+    private void writePublish(Publish message) {
+        String topic = message.topic;
+        Object context = message.context;
+        int qos = Math.min(message.qos, maximumQos);
+        boolean retained = message.retained && retainAvailable;
+        int packetId = qos > 0 ? nextPacketId() : 0;
+
+        Integer alias = topicAliases.get(topic);
+        boolean sendTopic = alias == null;
+        boolean newAlias = alias == null && topicAliases.size() < topicAliasMaximum;
+        if (newAlias) {
+            alias = topicAliases.size() + 1;
+        }
+
+        PacketBuilder properties = new PacketBuilder();
+        if (message.messageExpiry > 0) {
+            properties.writeByte(MESSAGE_EXPIRY_INTERVAL).writeInt((int) Math.min(message.messageExpiry, MAX_EXPIRY_SECONDS));
+        }
+        if (alias != null) {
+            properties.writeByte(TOPIC_ALIAS).writeShort(alias);
+        }
+        writeUserProperties(properties);
+
+        PacketBuilder publish = new PacketBuilder().writeString(sendTopic ? topic : "");
+        if (qos > 0) {
+            publish.writeShort(packetId);
+        }
+        publish.writeProperties(properties).writeBytes(message.payload);
+
+        byte[] packet = publish.toPacket(PUBLISH << 4 | qos << 1 | (retained ? 1 : 0));
+        if (maximumPacketSize > 0 && packet.length > maximumPacketSize) {
+            deliverPublishFailed(context, new PacketTooLargeException("Message of " + packet.length
+                    + " bytes is larger than the broker's maximum packet size of " + maximumPacketSize));
+            return;
+        }
+
+        // Only taken once it is sure to be sent, the broker would not know an alias of a refused message
+        if (newAlias) {
+            topicAliases.put(topic, alias);
+        }
+        if (qos > 0) {
+            pending.put(packetId, context != null ? context : NO_CONTEXT);
+        }
+        if (write(packet)) {
+            deliverPublishSent(context);
+        } else {
+            pending.remove(packetId);
+            deliverPublishFailed(context, new IOException("Connection lost while publishing"));
+        }
+    }
+
+    private int nextPacketId() {
+        do {
+            nextPacketId = nextPacketId % 0xffff + 1;
+        } while (pending.containsKey(nextPacketId));
+        return nextPacketId;
+    }
+
+    private void writeUserProperties(PacketBuilder properties) {
+        for (Map.Entry<String, String> property : userProperties.entrySet()) {
+            properties.writeByte(USER_PROPERTY).writeString(property.getKey()).writeString(property.getValue());
+        }
+    }
+
+    /**
+     * Writes a packet on the writer thread. A failed write closes the socket,
+     * so the reader notices the connection is gone.
+     */
+    private boolean write(int header, PacketBuilder body) {
+        return write(body.toPacket(header));
+    }
+
+    private boolean write(byte[] packet) {
+        try {
+            out.write(packet);
+            out.flush();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            closeSocket();
+            return false;
+        }
+    }
+
+    private void closeSocket() {
+        Socket socket = this.socket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void deliver(Runnable callback) {
+        callbackExecutor.execute(callback);
+    }
+
+    private void deliverPublishSent(final Object context) {
+        if (context != null) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    publishListener.onPublishSent(context);
+                }
+            });
+        }
+    }
+
+    private void deliverPublishDelivered(final Object context) {
+        if (context != NO_CONTEXT) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    publishListener.onPublishDelivered(context);
+                }
+            });
+        }
+    }
+
+    private void deliverPublishFailed(final Object context, final Throwable exception) {
+        if (context != null && context != NO_CONTEXT) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    publishListener.onPublishFailed(context, exception);
+                }
+            });
+        }
+    }
+
+    private static int reasonCode(ByteBuffer buffer) {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : 0; // Left out when it is success
+    }
+
+    private static byte[] readBody(DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 28);
+
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+
+    static int readVariableInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buffer.get() & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 28);
+        return value;
+    }
+
+    private static void skipProperty(ByteBuffer buffer, int id) throws IOException {
+        switch (id) {
+            case 0x01: case 0x17: case 0x19: case 0x24: case 0x25: case 0x28: case 0x29: case 0x2a:
+                buffer.get();
+                break;
+            case 0x13: case 0x21: case 0x22: case 0x23:
+                buffer.getShort();
+                break;
+            case 0x02: case 0x11: case 0x18: case 0x27:
+                buffer.getInt();
+                break;
+            case 0x0b:
+                readVariableInt(buffer);
+                break;
+            case 0x03: case 0x08: case 0x09: case 0x12: case 0x15: case 0x16: case 0x1a: case 0x1c: case 0x1f:
+                skipLengthPrefixed(buffer);
+                break;
+            case USER_PROPERTY:
+                skipLengthPrefixed(buffer);
+                skipLengthPrefixed(buffer);
+                break;
+            default:
+                throw new IOException("Unknown property 0x" + Integer.toHexString(id));
+        }
+    }
+
+    private static void skipLengthPrefixed(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        buffer.position(buffer.position() + length);
+    }
+
+    private static final class PacketBuilder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        PacketBuilder writeByte(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        PacketBuilder writeShort(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        PacketBuilder writeInt(int value) {
+            writeShort(value >>> 16);
+            return writeShort(value & 0xffff);
+        }
+
+        PacketBuilder writeVariableInt(int value) {
+            do {
+                int b = value & 0x7f;
+                value >>>= 7;
+                bytes.write(value > 0 ? b | 0x80 : b);
+            } while (value > 0);
+            return this;
+        }
+
+        PacketBuilder writeString(String value) {
+            byte[] encoded = encode(value);
+            writeShort(encoded.length);
+            return writeBytes(encoded);
+        }
+
+        PacketBuilder writeBytes(byte[] value) {
+            bytes.write(value, 0, value.length);
+            return this;
+        }
+
+        PacketBuilder writeProperties(PacketBuilder properties) {
+            writeVariableInt(properties.bytes.size());
+            return writeBytes(properties.bytes.toByteArray());
+        }
+
+        byte[] toPacket(int header) {
+            PacketBuilder packet = new PacketBuilder().writeByte(header).writeVariableInt(bytes.size());
+            packet.writeBytes(bytes.toByteArray());
+            return packet.bytes.toByteArray();
+        }
+
+        private static byte[] encode(String value) {
+            try {
+                return value.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -2,144 +2,262 @@
 package com.gjermundbjaanes.beaconmqtt.mqtt;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
-import android.util.Log;
-import android.widget.Toast;
+import android.os.Handler;
 
-import com.gjermundbjaanes.beaconmqtt.R;
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconPresenceStore;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
 import com.gjermundbjaanes.beaconmqtt.db.log.LogPersistence;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
 
-import org.eclipse.paho.android.service.MqttAndroidClient;
-import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
-import org.eclipse.paho.client.mqttv3.IMqttActionListener;
-import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
-import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.GENEARL_LOG_KEY;
+import java.util.Collection;
+import java.util.List;
+
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ADDITIONAL_BROKERS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BATCH_ENABLED_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BEACON_STATE_TOPIC_KEY;
 import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ENTER_TOPIC_KEY;
 import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_EXIT_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_PAYLOAD_TEMPLATE_KEY;
 import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_PORT_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_PROTOCOL_VERSION_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_RETAINED_ENABLED_KEY;
 import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_SERVER_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_SESSION_EXPIRY_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_SNAPSHOT_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_TLS_CA_CERTIFICATE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_TLS_CLIENT_CERTIFICATE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_TLS_CLIENT_CERTIFICATE_PASSWORD_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_TLS_ENABLED_KEY;
 
 public class MqttBroadcaster {
 
-    private static final String TAG = MqttBroadcaster.class.getName();
-    private static final String CLIENT_ID = "AndroidMqttBeacon";
-    private static final String DEFAULT_ENTER_TOPIC = "beacon/enter";
-    private static final String DEFAULT_EXIT_TOPIC = "beacon/exit";
-    private final Context context;
-
-    private MqttAndroidClient mqttAndroidClient = null;
-    private SharedPreferences.OnSharedPreferenceChangeListener listener;
-    private final SharedPreferences defaultSharedPreferences;
-    private final LogPersistence logPersistence;
+    private final AppConfigHolder appConfigHolder;
+    private final Handler handler;
+    private final BrokerFanOut brokers;
+    private final RetainedPresencePublisher retainedPresencePublisher;
+    private final MessageBatcher messageBatcher = new MessageBatcher();
+    private final PayloadCache payloadCache = new PayloadCache();
+    private final JsonPayloadWriter jsonWriter = new JsonPayloadWriter();
+    private volatile MessageTemplate enterTopicTemplate;
+    private volatile MessageTemplate exitTopicTemplate;
+    private volatile MessageTemplate payloadTemplate;
+    private final Runnable flushBatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushBatch();
+        }
+    };
 
-    public MqttBroadcaster(final Context context) {
-        this.context = context;
-        logPersistence = new LogPersistence(context);
-        defaultSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    public MqttBroadcaster(Context context, AppConfigHolder appConfigHolder, Handler handler) {
+        this.appConfigHolder = appConfigHolder;
+        this.handler = handler;
+        brokers = new BrokerFanOut(context, appConfigHolder, new LogPersistence(context), handler);
+        retainedPresencePublisher = new RetainedPresencePublisher(appConfigHolder, brokers, payloadCache, new RetainedPresencePublisher.Scheduler() {
+            @Override
+            public void schedule(Runnable runnable, long delayMillis) {
+                MqttBroadcaster.this.handler.removeCallbacks(runnable);
+                MqttBroadcaster.this.handler.postDelayed(runnable, delayMillis);
+            }
+        });
 
         registerSettingsChangeListener();
 
-        String mqttServer = defaultSharedPreferences.getString(MQTT_SERVER_KEY, null);
-        String mqttPort = defaultSharedPreferences.getString(MQTT_PORT_KEY, null);
-        connectToMqttServer(mqttServer, mqttPort);
+        AppConfig config = appConfigHolder.get();
+        enterTopicTemplate = MessageTemplate.compileTopic(config.getMqttEnterTopic());
+        exitTopicTemplate = MessageTemplate.compileTopic(config.getMqttExitTopic());
+        payloadTemplate = MessageTemplate.compilePayload(config.getMqttPayloadTemplate());
+        brokers.configure(config);
     }
 
-    public void publishEnterMessage(String uuid, String major, String minor) {
-        String preferenceEnterTopic = defaultSharedPreferences.getString(MQTT_ENTER_TOPIC_KEY, DEFAULT_ENTER_TOPIC);
-        publishMessage(uuid, major, minor, preferenceEnterTopic);
+    /**
+     * The connection to the primary broker.
+     */
+    public MqttConnectionManager getConnectionManager() {
+        return brokers.getPrimary().getConnectionManager();
     }
 
-    public void publishExitMessage(String uuid, String major, String minor) {
-        String preferenceEnterTopic = defaultSharedPreferences.getString(MQTT_EXIT_TOPIC_KEY, DEFAULT_EXIT_TOPIC);
-        publishMessage(uuid, major, minor, preferenceEnterTopic);
+    /**
+     * The queue of the primary broker.
+     */
+    public PublishPipeline getPublishPipeline() {
+        return brokers.getPrimary().getPublishPipeline();
     }
 
-    private void registerSettingsChangeListener() {
-        listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
-            @Override
-            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-                if (MQTT_SERVER_KEY.equals(key) || MQTT_PORT_KEY.equals(key)) {
-                    String mqttServer = defaultSharedPreferences.getString(MQTT_SERVER_KEY, null);
-                    String mqttPort = defaultSharedPreferences.getString(MQTT_PORT_KEY, null);
+    /**
+     * Every broker with its connection and queue, the primary one first.
+     */
+    public List<BrokerConnection> getBrokers() {
+        return brokers.getBrokers();
+    }
 
-                    connectToMqttServer(mqttServer, mqttPort);
-                }
-            }
-        };
-        defaultSharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+    /**
+     * Publishes what is left of a batch and disconnects. Messages that were not
+     * acknowledged stay in the journal for the next start.
+     */
+    public void shutdown() {
+        flushBatch();
+        brokers.shutdown();
     }
 
-    private void connectToMqttServer(String mqttServer, String mqttPort) {
-        if (mqttServer != null && mqttPort != null) {
-            final String serverUri = "tcp://" + mqttServer + ":" + mqttPort;
+    public void publishEnterMessage(BeaconResult beacon, long timestamp) {
+        AppConfig config = appConfigHolder.get();
+        publishMessage(beacon, BinaryPresencePayload.EVENT_ENTER, timestamp,
+                enterTopicTemplate, config.getMqttEnterPayloadFormat(), config.getMqttEnterQos());
+    }
 
-            mqttAndroidClient = new MqttAndroidClient(context, serverUri, CLIENT_ID);
+    public void publishExitMessage(BeaconResult beacon, long timestamp) {
+        AppConfig config = appConfigHolder.get();
+        publishMessage(beacon, BinaryPresencePayload.EVENT_EXIT, timestamp,
+                exitTopicTemplate, config.getMqttExitPayloadFormat(), config.getMqttExitQos());
+    }
 
-            MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
-            mqttConnectOptions.setAutomaticReconnect(true);
-            mqttConnectOptions.setCleanSession(false);
+    /**
+     * Call when saved beacons were loaded, added or removed, so their payloads can be encoded up front.
+     */
+    public void beaconsChanged(Collection<BeaconResult> beacons) {
+        payloadCache.update(beacons);
+        retainedPresencePublisher.beaconsChanged(beacons);
+    }
 
-            Toast.makeText(context, R.string.connecting_to_mqtt_server, Toast.LENGTH_SHORT).show();
-            mqttAndroidClient.connect(mqttConnectOptions, context, new IMqttActionListener() {
+    /**
+     * Call on the main thread with every presence change, to keep the retained presence topics up to date.
+     */
+    public void presenceChanged(BeaconPresenceStore.Snapshot snapshot) {
+        retainedPresencePublisher.presenceChanged(snapshot.getBeacons());
+    }
 
-                @Override
-                public void onSuccess(IMqttToken asyncActionToken) {
-                    Toast.makeText(context, R.string.connection_successful, Toast.LENGTH_SHORT).show();
-                    DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                    disconnectedBufferOptions.setBufferEnabled(true);
-                    disconnectedBufferOptions.setBufferSize(100);
-                    disconnectedBufferOptions.setPersistBuffer(false);
-                    disconnectedBufferOptions.setDeleteOldestMessages(false);
-                    mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
-                }
+    public void publishZoneEnterMessage(String zone) {
+        publishZoneMessage(zone, appConfigHolder.get().getMqttZoneEnterTopic());
+    }
 
-                @Override
-                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                    mqttAndroidClient = null;
-                    logPersistence.saveNewLog(context.getString(R.string.failed_to_connect_mqtt_server, serverUri), "");
-                    Toast.makeText(context, context.getString(R.string.failed_to_connect_mqtt_server, serverUri), Toast.LENGTH_LONG).show();
-                    Log.e(TAG, context.getString(R.string.failed_to_connect_mqtt_server, serverUri), exception);
+    public void publishZoneExitMessage(String zone) {
+        publishZoneMessage(zone, appConfigHolder.get().getMqttZoneExitTopic());
+    }
+
+    private void registerSettingsChangeListener() {
+        appConfigHolder.addListener(new AppConfigHolder.Listener() {
+            @Override
+            public void onConfigChanged(AppConfig config, String key) {
+                if (MQTT_SERVER_KEY.equals(key) || MQTT_PORT_KEY.equals(key)
+                        || MQTT_PROTOCOL_VERSION_KEY.equals(key) || MQTT_SESSION_EXPIRY_KEY.equals(key)
+                        || MQTT_TLS_ENABLED_KEY.equals(key) || MQTT_TLS_CA_CERTIFICATE_KEY.equals(key)
+                        || MQTT_TLS_CLIENT_CERTIFICATE_KEY.equals(key) || MQTT_TLS_CLIENT_CERTIFICATE_PASSWORD_KEY.equals(key)) {
+                    brokers.connectionSettingsChanged(config);
+                } else if (MQTT_ADDITIONAL_BROKERS_KEY.equals(key)) {
+                    brokers.brokersChanged(config);
+                    retainedPresencePublisher.republish();
+                } else if (MQTT_BATCH_ENABLED_KEY.equals(key)) {
+                    flushBatch();
+                } else if (MQTT_ENTER_TOPIC_KEY.equals(key)) {
+                    enterTopicTemplate = MessageTemplate.compileTopic(config.getMqttEnterTopic());
+                } else if (MQTT_EXIT_TOPIC_KEY.equals(key)) {
+                    exitTopicTemplate = MessageTemplate.compileTopic(config.getMqttExitTopic());
+                } else if (MQTT_PAYLOAD_TEMPLATE_KEY.equals(key)) {
+                    payloadTemplate = MessageTemplate.compilePayload(config.getMqttPayloadTemplate());
+                } else if (MQTT_RETAINED_ENABLED_KEY.equals(key) || MQTT_SNAPSHOT_TOPIC_KEY.equals(key)
+                        || MQTT_BEACON_STATE_TOPIC_KEY.equals(key)) {
+                    retainedPresencePublisher.configChanged();
                 }
-            });
+            }
+        });
+    }
 
-        } else {
-            mqttAndroidClient = null;
-            logPersistence.saveNewLog(context.getString(R.string.mqtt_missing_server_or_port), "");
-            Toast.makeText(context, R.string.mqtt_missing_server_or_port, Toast.LENGTH_LONG).show();
-            Log.i(TAG, context.getString(R.string.mqtt_missing_server_or_port));
+    private void publishMessage(BeaconResult beacon, int eventType, long timestamp, MessageTemplate topicTemplate, PayloadFormat format, int qos) {
+        String event = eventType == BinaryPresencePayload.EVENT_ENTER ? "enter" : "exit";
+        String topic = topicTemplate.renderTopic(beacon, event, timestamp);
+        BeaconIdentity identity = beacon.getIdentity();
+        if (format == PayloadFormat.BINARY) {
+            byte[] payload = BinaryPresencePayload.encode(eventType, identity.getUuid(),
+                    identity.getMajor(), identity.getMinor(), timestamp, BinaryPresencePayload.NO_RSSI);
+            brokers.publish(PublishLane.CRITICAL, topic, qos, false, expiresAt(timestamp), payload, payload.length);
+            return;
         }
 
+        MessageTemplate payloadTemplate = this.payloadTemplate;
+        synchronized (jsonWriter) {
+            if (payloadTemplate.isEmpty()) {
+                jsonWriter.beginObject(payloadCache.getFields(identity));
+                publishJson(PublishLane.CRITICAL, topic, qos, timestamp);
+            } else {
+                payloadTemplate.renderPayload(jsonWriter, beacon, event, timestamp, topic);
+                publishWritten(PublishLane.CRITICAL, topic, qos, timestamp);
+            }
+        }
     }
 
-    private void publishMessage(String uuid, String major, String minor, String topic) {
-        if (mqttAndroidClient != null) {
-            try {
-                JSONObject jsonObject = new JSONObject();
-                jsonObject.put("uuid", uuid);
-                jsonObject.put("major", major);
-                jsonObject.put("minor", minor);
-                MqttMessage mqttMessage = new MqttMessage();
-                mqttMessage.setPayload(jsonObject.toString().getBytes());
-                mqttAndroidClient.publish(topic, mqttMessage);
+    private void publishZoneMessage(String zone, String topic) {
+        synchronized (jsonWriter) {
+            jsonWriter.beginObject().field("zone", zone);
+            publishJson(PublishLane.NORMAL, topic, appConfigHolder.get().getMqttZoneQos(), System.currentTimeMillis());
+        }
+    }
 
-                boolean logEvent = defaultSharedPreferences.getBoolean(GENEARL_LOG_KEY, false);
-                if (logEvent) {
-                    String logMessage = context.getString(R.string.published_mqtt_message_to_topic, mqttMessage, topic);
-                    logPersistence.saveNewLog(logMessage, "");
-                }
-            } catch (JSONException e) {
-                logPersistence.saveNewLog(context.getString(R.string.error_publishing_on_topic, topic), "");
-                Log.e(TAG, context.getString(R.string.error_publishing_on_topic, topic), e);
-            }
+    /**
+     * Finishes the object in {@link #jsonWriter} and publishes it, on its own
+     * in {@code lane} or as part of a batch with the batch QoS. The caller holds
+     * the writer's lock.
+     */
+    private void publishJson(PublishLane lane, String topic, int qos, long timestamp) {
+        AppConfig config = appConfigHolder.get();
+        if (config.isMqttBatchEnabled()) {
+            jsonWriter.field("topic", topic).endObject();
+            addToBatch(jsonWriter.buffer(), jsonWriter.size(), lane, timestamp, config);
         } else {
-            Log.i(TAG, context.getString(R.string.publish_failed_not_set_up));
+            jsonWriter.endObject();
+            brokers.publish(lane, topic, qos, false, expiresAt(timestamp), jsonWriter.buffer(), jsonWriter.size());
         }
     }
+
+    /**
+     * Publishes a templated payload from {@link #jsonWriter} as it is. In a
+     * batch it is not given a topic field, templates can use {topic} for that.
+     */
+    private void publishWritten(PublishLane lane, String topic, int qos, long timestamp) {
+        AppConfig config = appConfigHolder.get();
+        if (config.isMqttBatchEnabled()) {
+            addToBatch(jsonWriter.buffer(), jsonWriter.size(), lane, timestamp, config);
+        } else {
+            brokers.publish(lane, topic, qos, false, expiresAt(timestamp), jsonWriter.buffer(), jsonWriter.size());
+        }
+    }
+
+    /**
+     * The first event of a batch starts the linger timer, and a full batch is
+     * published right away.
+     */
+    private void addToBatch(byte[] event, int length, PublishLane lane, long timestamp, AppConfig config) {
+        int batchSize = messageBatcher.add(event, length, lane, timestamp);
+        if (batchSize >= config.getMqttBatchMaxEvents()) {
+            flushBatch();
+        } else if (batchSize == 1) {
+            handler.postDelayed(flushBatchRunnable, config.getMqttBatchLinger());
+        }
+    }
+
+    private void flushBatch() {
+        handler.removeCallbacks(flushBatchRunnable);
+        PublishLane lane;
+        long firstTimestamp;
+        byte[] payload;
+        synchronized (messageBatcher) {
+            lane = messageBatcher.getLane();
+            firstTimestamp = messageBatcher.getFirstTimestamp();
+            payload = messageBatcher.drain();
+        }
+        if (payload != null) {
+            AppConfig config = appConfigHolder.get();
+            brokers.publish(lane, config.getMqttBatchTopic(), config.getMqttBatchQos(), false,
+                    expiresAt(firstTimestamp), payload, payload.length);
+        }
+    }
+
+    /**
+     * When a message about something that happened at {@code timestamp} is no longer worth delivering.
+     */
+    private long expiresAt(long timestamp) {
+        long messageExpiry = appConfigHolder.get().getMqttMessageExpiry();
+        return messageExpiry > 0 ? timestamp + messageExpiry * 1000 : 0;
+    }
 }
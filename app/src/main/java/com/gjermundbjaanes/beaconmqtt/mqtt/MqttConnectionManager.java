@@ -0,0 +1,429 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.gjermundbjaanes.beaconmqtt.R;
+import com.gjermundbjaanes.beaconmqtt.db.log.LogPersistence;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Owns the {@link MqttTransport} to one broker. Server changes are
+ * debounced, so typing in the settings screen does not connect on every key,
+ * and the previous transport is disconnected and closed before a new one is
+ * made. With MQTT 5 selected, a broker that only speaks 3.1.1 gets a Paho
+ * transport instead until the settings change. Failed and lost connections
+ * are retried with {@link ReconnectBackoff} until the server changes or the
+ * manager is shut down.
+ *
+ * All work happens on the handler's thread; state and metrics can be read
+ * from any thread.
+ */
+public class MqttConnectionManager {
+
+    public enum State {
+        DISCONNECTED,
+        CONNECTING,
+        CONNECTED,
+        WAITING_TO_RECONNECT
+    }
+
+    interface Listener {
+        /**
+         * The transport is ready to publish until {@link #onDisconnected()}.
+         */
+        void onConnected(MqttTransport transport);
+
+        void onDisconnected();
+    }
+
+    private static final String TAG = MqttConnectionManager.class.getName();
+    private static final long RECONFIGURE_DELAY_MS = 1500;
+    private static final long RECONNECT_INITIAL_DELAY_MS = 1000;
+    private static final long RECONNECT_MAX_DELAY_MS = 5 * 60 * 1000;
+
+    private final Context context;
+    private final Handler handler;
+    private final LogPersistence logPersistence;
+    private final String clientId;
+    private final Listener listener;
+    private final MqttTransport.PublishListener publishListener;
+    private final Map<String, String> userProperties = new LinkedHashMap<>();
+    private final Executor mainThreadExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+    private final TlsHandshakeMetrics tlsHandshakeMetrics = new TlsHandshakeMetrics();
+    private final ReconnectBackoff backoff = new ReconnectBackoff(RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS, new Random());
+    private final Runnable connectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+    private final Runnable reconfigureRunnable = new Runnable() {
+        @Override
+        public void run() {
+            BrokerEndpoint endpoint;
+            AppConfig config;
+            synchronized (MqttConnectionManager.this) {
+                endpoint = pendingEndpoint;
+                config = pendingConfig;
+            }
+            configure(endpoint, config);
+        }
+    };
+
+    private MqttTransport transport = null;
+    private String server = null;
+    private int port = 0;
+    private String serverUri = null;
+    private int protocolVersion = 0;
+    private long sessionExpiry = 0;
+    private TlsSocketFactory tlsSocketFactory = null;
+    private BrokerEndpoint pendingEndpoint = null;
+    private AppConfig pendingConfig = null;
+    private boolean shutDown = false;
+    private volatile State state = State.DISCONNECTED;
+    private volatile int reconnectAttempts = 0;
+    private volatile int connectionCount = 0;
+    private volatile long connectedSince = 0;
+
+    MqttConnectionManager(Context context, Handler handler, LogPersistence logPersistence, String clientId,
+                          Listener listener, MqttTransport.PublishListener publishListener) {
+        this.context = context;
+        this.handler = handler;
+        this.logPersistence = logPersistence;
+        this.clientId = clientId;
+        this.listener = listener;
+        this.publishListener = publishListener;
+        userProperties.put("client", clientId);
+        if (Build.MODEL != null) {
+            userProperties.put("device", Build.MODEL);
+        }
+    }
+
+    /**
+     * Connects to the broker right away, replacing the current transport if
+     * the broker or protocol changed. The protocol and TLS certificates come
+     * from {@code config}. Must be called on the handler's thread.
+     */
+    void configure(BrokerEndpoint endpoint, AppConfig config) {
+        handler.removeCallbacks(reconfigureRunnable);
+        String newServerUri = endpoint.isComplete() ? endpoint.getServerUri() : null;
+        int newProtocolVersion = config.getMqttProtocolVersion();
+        long newSessionExpiry = config.getMqttSessionExpiry();
+        TlsSocketFactory newTlsSocketFactory = endpoint.isComplete() && endpoint.isTls()
+                ? getTlsSocketFactory(endpoint.getHost(), config) : null;
+
+        synchronized (this) {
+            if (shutDown || (newServerUri != null && newServerUri.equals(serverUri) && transport != null
+                    && newProtocolVersion == protocolVersion && newSessionExpiry == sessionExpiry
+                    && newTlsSocketFactory == tlsSocketFactory)) {
+                return;
+            }
+        }
+
+        closeTransport();
+        if (newServerUri == null) {
+            logPersistence.saveNewLog(context.getString(R.string.mqtt_missing_server_or_port), "");
+            Toast.makeText(context, R.string.mqtt_missing_server_or_port, Toast.LENGTH_LONG).show();
+            Log.i(TAG, context.getString(R.string.mqtt_missing_server_or_port));
+            return;
+        }
+
+        synchronized (this) {
+            server = endpoint.getHost();
+            port = endpoint.getPort();
+            serverUri = newServerUri;
+            protocolVersion = newProtocolVersion;
+            sessionExpiry = newSessionExpiry;
+            tlsSocketFactory = newTlsSocketFactory;
+            transport = createTransport(protocolVersion);
+            backoff.reset();
+        }
+
+        Toast.makeText(context, R.string.connecting_to_mqtt_server, Toast.LENGTH_SHORT).show();
+        connect();
+    }
+
+    /**
+     * Like {@link #configure}, but waits until the settings have not changed
+     * for a moment. Must be called on the handler's thread.
+     */
+    void reconfigure(BrokerEndpoint endpoint, AppConfig config) {
+        synchronized (this) {
+            pendingEndpoint = endpoint;
+            pendingConfig = config;
+        }
+        handler.removeCallbacks(reconfigureRunnable);
+        handler.postDelayed(reconfigureRunnable, RECONFIGURE_DELAY_MS);
+    }
+
+    /**
+     * Disconnects for good. Must be called on the handler's thread.
+     */
+    void shutdown() {
+        synchronized (this) {
+            shutDown = true;
+        }
+        handler.removeCallbacks(reconfigureRunnable);
+        closeTransport();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Number of reconnect attempts since the app started.
+     */
+    public int getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    /**
+     * Number of failed attempts since the last successful connection.
+     */
+    public synchronized int getConsecutiveFailures() {
+        return backoff.getAttempts();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * {@link SystemClock#elapsedRealtime()} of the current connection, 0 when not connected.
+     */
+    public long getConnectedSince() {
+        return connectedSince;
+    }
+
+    public TlsHandshakeMetrics getTlsHandshakeMetrics() {
+        return tlsHandshakeMetrics;
+    }
+
+    /**
+     * The current factory when nothing changed, so reconnects resume its TLS sessions.
+     */
+    private synchronized TlsSocketFactory getTlsSocketFactory(String host, AppConfig config) {
+        File caCertificate = resolve(config.getMqttTlsCaCertificate());
+        File clientCertificate = resolve(config.getMqttTlsClientCertificate());
+        String password = config.getMqttTlsClientCertificatePassword();
+        if (tlsSocketFactory != null && tlsSocketFactory.isFor(host, caCertificate, clientCertificate, password)) {
+            return tlsSocketFactory;
+        }
+        return new TlsSocketFactory(host, caCertificate, clientCertificate, password, tlsHandshakeMetrics);
+    }
+
+    private File resolve(String path) {
+        if (path.isEmpty()) {
+            return null;
+        }
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(context.getFilesDir(), path);
+    }
+
+    /**
+     * MQTT 5 unless the setting or the broker says otherwise.
+     */
+    private MqttTransport createTransport(int version) {
+        ConnectionLostListener connectionLostListener = new ConnectionLostListener();
+        MqttTransport newTransport;
+        if (version == 5) {
+            newTransport = new Mqtt5Transport(server, port, tlsSocketFactory, clientId, sessionExpiry, userProperties,
+                    mainThreadExecutor, connectionLostListener, publishListener);
+        } else {
+            newTransport = new PahoTransport(context, serverUri, tlsSocketFactory, clientId,
+                    connectionLostListener, publishListener);
+        }
+        connectionLostListener.transport = newTransport;
+        return newTransport;
+    }
+
+    private void connect() {
+        final MqttTransport connectingTransport;
+        synchronized (this) {
+            if (transport == null || shutDown) {
+                return;
+            }
+            connectingTransport = transport;
+            state = State.CONNECTING;
+        }
+
+        try {
+            connectingTransport.connect(new MqttTransport.ActionCallback() {
+                @Override
+                public void onSuccess() {
+                    onConnected(connectingTransport);
+                }
+
+                @Override
+                public void onFailure(Throwable exception) {
+                    onConnectFailed(connectingTransport, exception);
+                }
+            });
+        } catch (RuntimeException e) {
+            onConnectFailed(connectingTransport, e);
+        }
+    }
+
+    private void onConnected(MqttTransport connectedTransport) {
+        int attempts;
+        synchronized (this) {
+            if (connectedTransport != transport) {
+                return;
+            }
+            attempts = backoff.getAttempts();
+            backoff.reset();
+            state = State.CONNECTED;
+            connectionCount++;
+            connectedSince = SystemClock.elapsedRealtime();
+        }
+
+        Log.i(TAG, "Connected to " + serverUri + " after " + attempts + " failed attempts");
+        if (attempts == 0) {
+            Toast.makeText(context, R.string.connection_successful, Toast.LENGTH_SHORT).show();
+        }
+        listener.onConnected(connectedTransport);
+    }
+
+    private void onConnectFailed(MqttTransport failedTransport, Throwable exception) {
+        String failedServerUri;
+        boolean firstFailure;
+        synchronized (this) {
+            if (failedTransport != transport) {
+                return;
+            }
+            failedServerUri = serverUri;
+            firstFailure = backoff.getAttempts() == 0;
+        }
+
+        if (exception instanceof Mqtt5Transport.UnsupportedProtocolException) {
+            fallBackToMqtt3(failedTransport, exception);
+            return;
+        }
+
+        String message = context.getString(R.string.failed_to_connect_mqtt_server, failedServerUri);
+        Log.e(TAG, message, exception);
+        if (firstFailure) {
+            logPersistence.saveNewLog(message, "");
+            Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+        }
+        scheduleReconnect(failedTransport);
+    }
+
+    /**
+     * Replaces the MQTT 5 transport by a 3.1.1 one, until the settings change.
+     */
+    private void fallBackToMqtt3(MqttTransport failedTransport, Throwable exception) {
+        String message;
+        synchronized (this) {
+            if (failedTransport != transport) {
+                return;
+            }
+            message = context.getString(R.string.mqtt_protocol_fallback, serverUri);
+            transport = createTransport(3);
+        }
+
+        Log.w(TAG, message, exception);
+        logPersistence.saveNewLog(message, "");
+        failedTransport.disconnect(new MqttTransport.ActionCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure(Throwable exception) {
+            }
+        });
+        connect();
+    }
+
+    private void onConnectionLost(MqttTransport lostTransport, Throwable cause) {
+        synchronized (this) {
+            if (lostTransport != transport) {
+                return;
+            }
+            connectedSince = 0;
+        }
+
+        Log.w(TAG, "Lost connection to " + serverUri, cause);
+        listener.onDisconnected();
+        scheduleReconnect(lostTransport);
+    }
+
+    private void scheduleReconnect(MqttTransport currentTransport) {
+        long delay;
+        synchronized (this) {
+            if (currentTransport != transport || shutDown) {
+                return;
+            }
+            delay = backoff.nextDelay();
+            reconnectAttempts++;
+            state = State.WAITING_TO_RECONNECT;
+        }
+
+        Log.i(TAG, "Reconnecting in " + delay + " ms, attempt " + backoff.getAttempts());
+        handler.removeCallbacks(connectRunnable);
+        handler.postDelayed(connectRunnable, delay);
+    }
+
+    private void closeTransport() {
+        handler.removeCallbacks(connectRunnable);
+
+        final MqttTransport oldTransport;
+        boolean wasConnected;
+        synchronized (this) {
+            oldTransport = transport;
+            wasConnected = state == State.CONNECTED;
+            transport = null;
+            serverUri = null;
+            state = State.DISCONNECTED;
+            connectedSince = 0;
+        }
+        if (oldTransport == null) {
+            return;
+        }
+
+        if (wasConnected) {
+            listener.onDisconnected();
+        }
+        try {
+            oldTransport.disconnect(new MqttTransport.ActionCallback() {
+                @Override
+                public void onSuccess() {
+                }
+
+                @Override
+                public void onFailure(Throwable exception) {
+                    Log.w(TAG, "Failed to disconnect cleanly", exception);
+                }
+            });
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to disconnect cleanly", e);
+        }
+    }
+
+    private class ConnectionLostListener implements MqttTransport.Listener {
+        private MqttTransport transport;
+
+        @Override
+        public void onConnectionLost(Throwable cause) {
+            MqttConnectionManager.this.onConnectionLost(transport, cause);
+        }
+    }
+}
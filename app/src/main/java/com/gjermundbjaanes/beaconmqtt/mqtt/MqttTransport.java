@@ -0,0 +1,45 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+/**
+ * One connection to the broker, in whatever protocol version it speaks. Made
+ * and owned by {@link MqttConnectionManager}. Callbacks are delivered on the
+ * main thread.
+ */
+interface MqttTransport {
+
+    interface ActionCallback {
+        void onSuccess();
+
+        void onFailure(Throwable exception);
+    }
+
+    interface Listener {
+        void onConnectionLost(Throwable cause);
+    }
+
+    /**
+     * Follows each publish with a {@code context}. A QoS 0 message is done when
+     * it is sent, QoS 1 and 2 messages when they are delivered.
+     */
+    interface PublishListener {
+        void onPublishSent(Object context);
+
+        void onPublishDelivered(Object context);
+
+        void onPublishFailed(Object context, Throwable exception);
+    }
+
+    void connect(ActionCallback callback);
+
+    /**
+     * @param messageExpiry seconds until the broker may discard the message, 0 to keep it;
+     *                      ignored by protocol versions without message expiry
+     * @param context       handed to the {@link PublishListener}, or null to not be told
+     */
+    void publish(String topic, byte[] payload, int qos, boolean retained, long messageExpiry, Object context);
+
+    /**
+     * Disconnects and frees everything, the transport cannot be used afterwards.
+     */
+    void disconnect(ActionCallback callback);
+}
@@ -0,0 +1,420 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of outbound MQTT messages, kept in a memory-mapped ring
+ * file so that queued messages survive process death and reboots.
+ *
+ * Every record carries a sequence number and a checksum. On open the journal
+ * reads forward from the persisted head for as long as records have the next
+ * expected sequence number and a valid checksum; leftovers from earlier laps
+ * around the ring or a torn write end the scan. Messages leave the journal when
+ * they are acknowledged, and the head only moves over a contiguous run of
+ * acknowledged records, so replay after a crash is at-least-once and in order.
+ * When the ring is full the oldest records are dropped.
+ */
+class OutboundJournal {
+
+    static final class Record {
+        private final long seq;
+        private final int qos;
+        private final boolean retained;
+        private final long expiresAt;
+        private final String topic;
+        private final byte[] payload;
+
+        private Record(long seq, int qos, boolean retained, long expiresAt, String topic, byte[] payload) {
+            this.seq = seq;
+            this.qos = qos;
+            this.retained = retained;
+            this.expiresAt = expiresAt;
+            this.topic = topic;
+            this.payload = payload;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+
+        int getQos() {
+            return qos;
+        }
+
+        boolean isRetained() {
+            return retained;
+        }
+
+        /**
+         * Wall clock time after which the message is not worth sending anymore, 0 for never.
+         */
+        long getExpiresAt() {
+            return expiresAt;
+        }
+
+        String getTopic() {
+            return topic;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static final int MAGIC = 0x424d4a33; // "BMJ3", records carry their QoS since version 2 and expiry since 3
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_HEAD_POSITION = 8;
+    private static final int HEADER_HEAD_SEQ = 16;
+    private static final int RECORD_OVERHEAD = 4 + 4 + 8 + 1 + 8 + 2;
+    private static final int WRAP_MARKER = -1;
+    private static final int QOS_MASK = 0x03;
+    private static final int RETAINED_FLAG = 0x04;
+    private static final int MAX_ENCODED_TOPICS = 64;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final CRC32 crc = new CRC32();
+    private final Set<Long> acknowledged = new HashSet<>();
+    private final byte[] recordHeader = new byte[8 + 1 + 8 + 2]; // Sequence number, QoS and flags, expiry, topic length, big endian like the buffer
+    private final Map<String, byte[]> encodedTopics = new HashMap<>();
+
+    private int headPosition;
+    private long headSeq;
+    private int tailPosition;
+    private long nextSeq;
+    private int sendPosition;
+    private long sendSeq;
+    private int droppedCount;
+
+    private OutboundJournal(RandomAccessFile file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+    }
+
+    /**
+     * Opens the journal in {@code file}, creating it with {@code capacity}
+     * bytes if it does not exist or is not a journal.
+     */
+    static OutboundJournal open(File file, int capacity) throws IOException {
+        if (capacity <= HEADER_SIZE + RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("Journal capacity is too small: " + capacity);
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            boolean existing = randomAccessFile.length() > HEADER_SIZE + RECORD_OVERHEAD
+                    && randomAccessFile.readInt() == MAGIC;
+            if (!existing) {
+                randomAccessFile.setLength(0);
+                randomAccessFile.setLength(capacity);
+            }
+
+            MappedByteBuffer buffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+            OutboundJournal journal = new OutboundJournal(randomAccessFile, buffer);
+            if (existing) {
+                journal.recover();
+            } else {
+                journal.initialize();
+            }
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a message and flushes it to disk.
+     *
+     * @return false if the message is larger than the whole journal
+     */
+    synchronized boolean append(String topic, int qos, byte[] payload) {
+        return append(topic, qos, false, 0, payload, payload.length);
+    }
+
+    /**
+     * Appends the first {@code length} bytes of {@code payload}, see {@link #append(String, int, byte[])}.
+     */
+    synchronized boolean append(String topic, int qos, boolean retained, long expiresAt, byte[] payload, int length) {
+        byte[] topicBytes = encodeTopic(topic);
+        int recordSize = RECORD_OVERHEAD + topicBytes.length + length;
+        if (topicBytes.length > Short.MAX_VALUE || recordSize > capacity - HEADER_SIZE) {
+            return false;
+        }
+
+        int position;
+        while ((position = findSpace(recordSize)) < 0) {
+            dropOldest();
+        }
+        if (position != tailPosition && capacity - tailPosition >= 4) {
+            buffer.putInt(tailPosition, WRAP_MARKER);
+        }
+
+        long seq = nextSeq++;
+        for (int i = 0; i < 8; i++) {
+            recordHeader[i] = (byte) (seq >>> (56 - 8 * i));
+        }
+        recordHeader[8] = (byte) ((qos & QOS_MASK) | (retained ? RETAINED_FLAG : 0));
+        for (int i = 0; i < 8; i++) {
+            recordHeader[9 + i] = (byte) (expiresAt >>> (56 - 8 * i));
+        }
+        recordHeader[17] = (byte) (topicBytes.length >> 8);
+        recordHeader[18] = (byte) topicBytes.length;
+        crc.reset();
+        crc.update(recordHeader);
+        crc.update(topicBytes);
+        crc.update(payload, 0, length);
+
+        buffer.position(position + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(recordHeader);
+        buffer.put(topicBytes);
+        buffer.put(payload, 0, length);
+        buffer.putInt(position, recordSize);
+        tailPosition = position + recordSize;
+
+        buffer.force();
+        return true;
+    }
+
+    /**
+     * Returns the next message that has not been handed out since the last
+     * {@link #rewind()}, or null if there is none.
+     */
+    synchronized Record poll() {
+        while (sendSeq < nextSeq) {
+            sendPosition = resolveWrap(sendPosition);
+            Record record = read(sendPosition);
+            sendPosition += buffer.getInt(sendPosition);
+            sendSeq++;
+            if (!acknowledged.contains(record.seq)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks a message as delivered. Acknowledging a message twice, or one
+     * that was already dropped, is harmless.
+     */
+    synchronized void acknowledge(long seq) {
+        if (seq < headSeq || seq >= nextSeq) {
+            return;
+        }
+
+        acknowledged.add(seq);
+        while (headSeq < nextSeq && acknowledged.remove(headSeq)) {
+            advanceHead();
+        }
+        writeHead();
+        if (sendSeq < headSeq) {
+            rewind(); // The records behind the head may be overwritten from now on
+        }
+    }
+
+    /**
+     * Makes every unacknowledged message available to {@link #poll()} again,
+     * e.g. after the connection was lost with messages in flight.
+     */
+    synchronized void rewind() {
+        sendPosition = headPosition;
+        sendSeq = headSeq;
+    }
+
+    synchronized int size() {
+        return (int) (nextSeq - headSeq) - acknowledged.size();
+    }
+
+    /**
+     * Returns the number of messages dropped because the journal was full,
+     * and resets the count.
+     */
+    synchronized int takeDroppedCount() {
+        int dropped = droppedCount;
+        droppedCount = 0;
+        return dropped;
+    }
+
+    synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private void initialize() {
+        buffer.putInt(0, MAGIC);
+        headPosition = HEADER_SIZE;
+        headSeq = 1;
+        tailPosition = HEADER_SIZE;
+        nextSeq = 1;
+        writeHead();
+        rewind();
+        buffer.force();
+    }
+
+    private void recover() {
+        headPosition = buffer.getInt(HEADER_HEAD_POSITION);
+        headSeq = buffer.getLong(HEADER_HEAD_SEQ);
+        if (headPosition < HEADER_SIZE || headPosition > capacity || headSeq < 1) {
+            initialize();
+            return;
+        }
+
+        int position = headPosition;
+        long seq = headSeq;
+        boolean empty = true;
+        while (true) {
+            int recordPosition = resolveWrap(position);
+            if (!isValid(recordPosition, seq)) {
+                break;
+            }
+            empty = false;
+            position = recordPosition + buffer.getInt(recordPosition);
+            seq++;
+        }
+
+        tailPosition = position;
+        nextSeq = seq;
+        if (empty) {
+            headPosition = HEADER_SIZE;
+            tailPosition = HEADER_SIZE;
+            writeHead();
+        } else {
+            headPosition = resolveWrap(headPosition);
+        }
+        rewind();
+    }
+
+    /**
+     * Returns where a record of {@code recordSize} bytes can be written without
+     * overwriting unacknowledged records, or -1 if there is no room.
+     */
+    private int findSpace(int recordSize) {
+        if (headSeq == nextSeq) {
+            headPosition = HEADER_SIZE;
+            tailPosition = HEADER_SIZE;
+            writeHead();
+            rewind();
+            return HEADER_SIZE;
+        }
+
+        if (tailPosition > headPosition) {
+            if (capacity - tailPosition >= recordSize) {
+                return tailPosition;
+            }
+            return headPosition - HEADER_SIZE >= recordSize ? HEADER_SIZE : -1;
+        }
+        return headPosition - tailPosition >= recordSize ? tailPosition : -1;
+    }
+
+    private void dropOldest() {
+        acknowledged.remove(headSeq);
+        advanceHead();
+        writeHead();
+        droppedCount++;
+        if (sendSeq < headSeq) {
+            rewind();
+        }
+    }
+
+    private void advanceHead() {
+        headPosition += buffer.getInt(headPosition);
+        headSeq++;
+        if (headSeq < nextSeq) {
+            headPosition = resolveWrap(headPosition);
+        } else {
+            headPosition = tailPosition;
+        }
+    }
+
+    private void writeHead() {
+        buffer.putInt(HEADER_HEAD_POSITION, headPosition);
+        buffer.putLong(HEADER_HEAD_SEQ, headSeq);
+    }
+
+    private int resolveWrap(int position) {
+        if (capacity - position < RECORD_OVERHEAD || buffer.getInt(position) == WRAP_MARKER) {
+            return HEADER_SIZE;
+        }
+        return position;
+    }
+
+    private boolean isValid(int position, long seq) {
+        int recordSize = buffer.getInt(position);
+        if (recordSize < RECORD_OVERHEAD || recordSize > capacity - position) {
+            return false;
+        }
+        if (buffer.getLong(position + 8) != seq) {
+            return false;
+        }
+
+        return checksum(position, recordSize) == buffer.getInt(position + 4);
+    }
+
+    private int checksum(int position, int recordSize) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + 8);
+        byte[] body = new byte[recordSize - 8];
+        record.get(body);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private Record read(int position) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(position);
+        int recordSize = record.getInt();
+        record.getInt(); // checksum, verified on recovery
+        long seq = record.getLong();
+        int flags = record.get();
+        long expiresAt = record.getLong();
+        byte[] topicBytes = new byte[record.getShort()];
+        record.get(topicBytes);
+        byte[] payload = new byte[recordSize - RECORD_OVERHEAD - topicBytes.length];
+        record.get(payload);
+        return new Record(seq, flags & QOS_MASK, (flags & RETAINED_FLAG) != 0, expiresAt, decode(topicBytes), payload);
+    }
+
+    private byte[] encodeTopic(String topic) {
+        byte[] topicBytes = encodedTopics.get(topic);
+        if (topicBytes == null) {
+            if (encodedTopics.size() >= MAX_ENCODED_TOPICS) {
+                encodedTopics.clear();
+            }
+            topicBytes = encode(topic);
+            encodedTopics.put(topic, topicBytes);
+        }
+        return topicBytes;
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(byte[] value) {
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import javax.net.SocketFactory;
+
+/**
+ * MQTT 3.1.1 through Paho's {@link MqttAndroidClient}.
+ */
+class PahoTransport implements MqttTransport {
+
+    private static final String TAG = PahoTransport.class.getName();
+    private static final long DISCONNECT_QUIESCE_MS = 1000;
+
+    private final Context context;
+    private final MqttAndroidClient client;
+    private final SocketFactory socketFactory;
+    private final PublishListener publishListener;
+    private final IMqttActionListener publishActionListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            publishListener.onPublishSent(asyncActionToken.getUserContext());
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            publishListener.onPublishFailed(asyncActionToken.getUserContext(), exception);
+        }
+    };
+
+    /**
+     * @param socketFactory for an ssl:// server URI, or null for tcp://
+     */
+    PahoTransport(Context context, String serverUri, SocketFactory socketFactory, String clientId,
+                  final Listener listener, final PublishListener publishListener) {
+        this.context = context;
+        this.client = new MqttAndroidClient(context, serverUri, clientId);
+        this.socketFactory = socketFactory;
+        this.publishListener = publishListener;
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                listener.onConnectionLost(cause);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+                publishListener.onPublishDelivered(token.getUserContext());
+            }
+        });
+    }
+
+    @Override
+    public void connect(final ActionCallback callback) {
+        MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
+        mqttConnectOptions.setAutomaticReconnect(false); // Reconnects are up to MqttConnectionManager, with jitter
+        mqttConnectOptions.setCleanSession(true); // PublishPipeline replays unacknowledged messages from its journal
+        mqttConnectOptions.setMaxInflight(PublishPipeline.MAX_IN_FLIGHT);
+        if (socketFactory != null) {
+            mqttConnectOptions.setSocketFactory(socketFactory);
+        }
+
+        client.connect(mqttConnectOptions, context, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                callback.onFailure(exception);
+            }
+        });
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload, int qos, boolean retained, long messageExpiry, Object context) {
+        MqttMessage mqttMessage = new MqttMessage(payload);
+        mqttMessage.setQos(qos);
+        mqttMessage.setRetained(retained);
+        if (context != null) {
+            client.publish(topic, mqttMessage, context, publishActionListener);
+        } else {
+            client.publish(topic, mqttMessage);
+        }
+    }
+
+    @Override
+    public void disconnect(final ActionCallback callback) {
+        client.setCallback(null);
+        try {
+            client.disconnect(DISCONNECT_QUIESCE_MS, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    release();
+                    callback.onSuccess();
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    release();
+                    callback.onFailure(exception);
+                }
+            });
+        } catch (RuntimeException e) {
+            release();
+            callback.onFailure(e);
+        }
+    }
+
+    private void release() {
+        try {
+            client.unregisterResources();
+            client.close();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to close MQTT client", e);
+        }
+    }
+}
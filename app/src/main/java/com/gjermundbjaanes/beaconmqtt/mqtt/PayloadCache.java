@@ -0,0 +1,53 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * UTF-8 encoded uuid, major and minor fields of the saved beacons, encoded
+ * once when the beacons are loaded or changed instead of on every publish.
+ */
+class PayloadCache {
+
+    private final JsonPayloadWriter writer = new JsonPayloadWriter();
+    private volatile Map<BeaconIdentity, byte[]> fieldsByIdentity = Collections.emptyMap();
+
+    synchronized void update(Collection<BeaconResult> beacons) {
+        Map<BeaconIdentity, byte[]> newFieldsByIdentity = new HashMap<>();
+        for (BeaconResult beacon : beacons) {
+            BeaconIdentity identity = beacon.getIdentity();
+            if (identity != null) {
+                byte[] fields = fieldsByIdentity.get(identity);
+                newFieldsByIdentity.put(identity, fields != null ? fields : encode(identity));
+            }
+        }
+        fieldsByIdentity = newFieldsByIdentity;
+    }
+
+    /**
+     * Returns the encoded fields for {@link JsonPayloadWriter#beginObject(byte[])}.
+     */
+    byte[] getFields(BeaconIdentity identity) {
+        byte[] fields = fieldsByIdentity.get(identity);
+        if (fields != null) {
+            return fields;
+        }
+
+        synchronized (this) {
+            return encode(identity); // Not saved (anymore), so not worth keeping
+        }
+    }
+
+    private byte[] encode(BeaconIdentity identity) {
+        return writer.beginObject()
+                .field("uuid", identity.getUuid().toString())
+                .field("major", String.valueOf(identity.getMajor()))
+                .field("minor", String.valueOf(identity.getMinor()))
+                .encodeFields();
+    }
+}
@@ -0,0 +1,22 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+/**
+ * Wire format of the beacon enter/exit messages on a topic.
+ */
+public enum PayloadFormat {
+    /** {"uuid": ..., "major": ..., "minor": ...} as text. */
+    JSON,
+    /** Fixed layout, see {@link BinaryPresencePayload}. */
+    BINARY;
+
+    public static PayloadFormat fromString(String value, PayloadFormat defaultFormat) {
+        if (value != null) {
+            for (PayloadFormat format : values()) {
+                if (format.name().equals(value)) {
+                    return format;
+                }
+            }
+        }
+        return defaultFormat;
+    }
+}
@@ -0,0 +1,22 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+/**
+ * Classes of outbound messages, from most to least urgent. Each lane has its
+ * own queue and rate limit, and a lane only gets to send when no lane above
+ * it has a message that may be sent. A batch of events goes in the lane of
+ * its most urgent event.
+ */
+public enum PublishLane {
+    /**
+     * Beacon enter and exit events.
+     */
+    CRITICAL,
+    /**
+     * Zone events and the retained presence.
+     */
+    NORMAL,
+    /**
+     * Bulk data that can wait for everything else. Not for events, batched or not.
+     */
+    BULK
+}
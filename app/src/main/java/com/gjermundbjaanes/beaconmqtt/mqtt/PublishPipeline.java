@@ -0,0 +1,352 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.gjermundbjaanes.beaconmqtt.R;
+import com.gjermundbjaanes.beaconmqtt.db.log.LogPersistence;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends journaled messages with their own QoS while connected, keeping at most
+ * {@link #MAX_IN_FLIGHT} of them unacknowledged so Paho's in-flight limit is
+ * never hit. A message leaves the journal when the {@link MqttTransport}
+ * reports it delivered: once sent for QoS 0, once acknowledged by the broker
+ * for QoS 1 and 2. Every delivery sends the next message, so a backlog drains
+ * as fast as the broker acknowledges.
+ *
+ * Every {@link PublishLane} has a journal and a rate limit of its own, and a
+ * {@link LaneScheduler} picks the next message from the most urgent lane that
+ * may send, keeping the last {@link #CRITICAL_RESERVED_SLOTS} in-flight slots
+ * for critical messages. A backlog of bulk data replayed after a reconnect, or
+ * retried, does not hold up enter and exit events.
+ *
+ * A publish that fails while connected is retried a few times before it is
+ * given up on, and everything still unacknowledged when the connection is lost
+ * is sent again after the next connect. The journal is the only thing that
+ * replays messages, transports start a clean session on every connect so the
+ * broker does not replay them as well. Messages past their expiry time are
+ * dropped instead of sent, and otherwise sent with the time they have left.
+ */
+public class PublishPipeline {
+
+    static final int MAX_IN_FLIGHT = 10; // Paho's default max inflight
+
+    private static final String TAG = PublishPipeline.class.getName();
+    private static final int CRITICAL_RESERVED_SLOTS = 2;
+    private static final int MAX_PUBLISH_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Context context;
+    private final AppConfigHolder appConfigHolder;
+    private final LogPersistence logPersistence;
+    private final Handler handler;
+    private final LaneScheduler scheduler;
+    private final Set<LaneScheduler.Message> inFlight = new HashSet<>();
+    private final MqttTransport.PublishListener publishListener = new MqttTransport.PublishListener() {
+        @Override
+        public void onPublishSent(Object context) {
+            if (context instanceof LaneScheduler.Message) {
+                onSent((LaneScheduler.Message) context);
+            }
+        }
+
+        @Override
+        public void onPublishDelivered(Object context) {
+            if (context instanceof LaneScheduler.Message) {
+                onDelivered((LaneScheduler.Message) context);
+            }
+        }
+
+        @Override
+        public void onPublishFailed(Object context, Throwable exception) {
+            if (context instanceof LaneScheduler.Message) {
+                PublishPipeline.this.onPublishFailed((LaneScheduler.Message) context, exception);
+            }
+        }
+    };
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private MqttTransport transport = null;
+    private boolean connected = false;
+    private int connectionCount = 0;
+    private long deliveredCount = 0;
+    private long retriedCount = 0;
+    private long failedCount = 0;
+    private long expiredCount = 0;
+
+    /**
+     * @param journals where the messages of each lane wait for delivery; a lane
+     *                 without a journal is only published while connected
+     */
+    PublishPipeline(Context context, AppConfigHolder appConfigHolder, LogPersistence logPersistence,
+                    Map<PublishLane, OutboundJournal> journals, Handler handler) {
+        this.context = context;
+        this.appConfigHolder = appConfigHolder;
+        this.logPersistence = logPersistence;
+        this.handler = handler;
+
+        long now = SystemClock.elapsedRealtime();
+        scheduler = new LaneScheduler(journals, MAX_IN_FLIGHT, CRITICAL_RESERVED_SLOTS, now);
+        updateRates(now);
+    }
+
+    /**
+     * Only the first {@code length} bytes of {@code payload} are published, the
+     * array may be reused once this returns.
+     *
+     * @param expiresAt wall clock time after which the message is dropped, 0 to always send it
+     */
+    void publish(PublishLane lane, String topic, int qos, boolean retained, long expiresAt, byte[] payload, int length) {
+        OutboundJournal journal = scheduler.getJournal(lane);
+        if (journal == null) {
+            publishDirectly(topic, qos, retained, expiresAt, Arrays.copyOf(payload, length));
+            return;
+        }
+
+        if (!journal.append(topic, qos, retained, expiresAt, payload, length)) {
+            logPersistence.saveNewLog(context.getString(R.string.error_publishing_on_topic, topic), "");
+            Log.e(TAG, context.getString(R.string.error_publishing_on_topic, topic));
+        }
+        int droppedCount = journal.takeDroppedCount();
+        if (droppedCount > 0) {
+            synchronized (this) {
+                scheduler.addDroppedCount(lane, droppedCount);
+            }
+            logPersistence.saveNewLog(context.getString(R.string.mqtt_journal_full, droppedCount), "");
+            Log.w(TAG, context.getString(R.string.mqtt_journal_full, droppedCount));
+        }
+        drain();
+    }
+
+    MqttTransport.PublishListener getPublishListener() {
+        return publishListener;
+    }
+
+    synchronized void onConnected(MqttTransport transport) {
+        this.transport = transport;
+        connected = true;
+        connectionCount++;
+        inFlight.clear();
+        scheduler.rewind();
+        if (getQueuedCount() > 0) {
+            logBacklog();
+        }
+        drain();
+    }
+
+    synchronized void onDisconnected() {
+        transport = null;
+        connected = false;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Messages in the journals that were not delivered yet, including those in flight.
+     */
+    public int getQueuedCount() {
+        int queuedCount = 0;
+        for (PublishLane priority : PublishLane.values()) {
+            queuedCount += getQueuedCount(priority);
+        }
+        return queuedCount;
+    }
+
+    /**
+     * Messages of one lane that were not delivered yet, including those in flight.
+     */
+    public synchronized int getQueuedCount(PublishLane lane) {
+        return scheduler.getQueuedCount(lane);
+    }
+
+    /**
+     * Messages of one lane that were dropped because its journal was full or
+     * because they expired before they could be sent.
+     */
+    public synchronized long getDroppedCount(PublishLane lane) {
+        return scheduler.getDroppedCount(lane);
+    }
+
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    public synchronized long getRetriedCount() {
+        return retriedCount;
+    }
+
+    /**
+     * Messages given up on after {@link #MAX_PUBLISH_ATTEMPTS} failed publishes.
+     */
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Messages dropped because they expired before they could be sent.
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    private synchronized void publishDirectly(String topic, int qos, boolean retained, long expiresAt, byte[] payload) {
+        long messageExpiry = messageExpiry(expiresAt);
+        if (connected && messageExpiry >= 0) {
+            transport.publish(topic, payload, qos, retained, messageExpiry, null);
+            logPublished(payload, topic);
+        } else {
+            Log.i(TAG, context.getString(R.string.publish_failed_not_set_up));
+        }
+    }
+
+    private synchronized void drain() {
+        if (!connected) {
+            Log.i(TAG, context.getString(R.string.mqtt_message_queued, getQueuedCount()));
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        updateRates(now);
+        while (connected) {
+            LaneScheduler.Message message = scheduler.next(inFlight.size(), now);
+            if (message == null) {
+                long waitMillis = scheduler.getWaitMillis();
+                if (waitMillis >= 0) { // A lane waits for a token or a retry, otherwise the next delivery drains again
+                    handler.removeCallbacks(drainRunnable);
+                    handler.postDelayed(drainRunnable, waitMillis);
+                }
+                return;
+            }
+            if (!send(message)) {
+                return; // Retried later, see onPublishFailed
+            }
+        }
+    }
+
+    private void updateRates(long now) {
+        AppConfig config = appConfigHolder.get();
+        for (PublishLane lane : PublishLane.values()) {
+            scheduler.setRate(lane, config.getMqttLaneRate(lane), now);
+        }
+    }
+
+    private boolean send(LaneScheduler.Message message) {
+        OutboundJournal.Record record = message.getRecord();
+        long messageExpiry = messageExpiry(record.getExpiresAt());
+        if (messageExpiry < 0) {
+            expiredCount++;
+            scheduler.drop(message);
+            return true;
+        }
+
+        message.setConnection(connectionCount);
+        message.setAttempts(message.getAttempts() + 1);
+        inFlight.add(message);
+        try {
+            transport.publish(record.getTopic(), record.getPayload(), record.getQos(), record.isRetained(), messageExpiry, message);
+            logPublished(record.getPayload(), record.getTopic());
+            return true;
+        } catch (RuntimeException e) {
+            onPublishFailed(message, e);
+            return false;
+        }
+    }
+
+    private synchronized void onSent(LaneScheduler.Message message) {
+        if (message.getRecord().getQos() == 0) {
+            onDelivered(message); // There is no acknowledgement to wait for
+        }
+    }
+
+    private synchronized void onDelivered(LaneScheduler.Message message) {
+        if (message.getConnection() != connectionCount || !inFlight.remove(message)) {
+            // Already delivered, or sent on a lost connection and rewound to be sent again on this one
+            return;
+        }
+
+        scheduler.acknowledge(message);
+        deliveredCount++;
+        drain();
+    }
+
+    private synchronized void onPublishFailed(LaneScheduler.Message message, Throwable exception) {
+        OutboundJournal.Record record = message.getRecord();
+        if (!connected || !inFlight.remove(message)) {
+            return; // Sent again after the next connect
+        }
+
+        if (isMaxInflightReached(exception)) {
+            message.setAttempts(message.getAttempts() - 1); // Paho was busy, the message itself is fine
+        }
+        if (message.getAttempts() < MAX_PUBLISH_ATTEMPTS && !(exception instanceof Mqtt5Transport.PacketTooLargeException)) {
+            retriedCount++;
+            scheduler.retry(message, RETRY_DELAY_MS * Math.max(1, message.getAttempts()), SystemClock.elapsedRealtime());
+            Log.w(TAG, "Retrying message " + record.getSeq() + " on " + record.getTopic(), exception);
+            handler.removeCallbacks(drainRunnable);
+            handler.post(drainRunnable); // Other lanes go on while the message waits
+            return;
+        }
+
+        // The broker keeps rejecting the message or it is too large, retrying it would block the journal
+        failedCount++;
+        scheduler.acknowledge(message);
+        logPersistence.saveNewLog(context.getString(R.string.error_publishing_on_topic, record.getTopic()), "");
+        Log.e(TAG, context.getString(R.string.error_publishing_on_topic, record.getTopic()), exception);
+        drain();
+    }
+
+    private static boolean isMaxInflightReached(Throwable exception) {
+        return exception instanceof MqttException
+                && ((MqttException) exception).getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT;
+    }
+
+    /**
+     * Seconds the message has left, 0 if it never expires and -1 if it already has.
+     */
+    private static long messageExpiry(long expiresAt) {
+        if (expiresAt == 0) {
+            return 0;
+        }
+        long remaining = expiresAt - System.currentTimeMillis();
+        return remaining > 0 ? (remaining + 999) / 1000 : -1;
+    }
+
+    /**
+     * Queue depth and drops per lane, once per connect that has a backlog to send.
+     */
+    private void logBacklog() {
+        String message = context.getString(R.string.mqtt_lane_backlog,
+                scheduler.getQueuedCount(PublishLane.CRITICAL), scheduler.getDroppedCount(PublishLane.CRITICAL),
+                scheduler.getQueuedCount(PublishLane.NORMAL), scheduler.getDroppedCount(PublishLane.NORMAL),
+                scheduler.getQueuedCount(PublishLane.BULK), scheduler.getDroppedCount(PublishLane.BULK));
+        logPersistence.saveNewLog(message, "");
+        Log.i(TAG, message);
+    }
+
+    private void logPublished(byte[] payload, String topic) {
+        if (appConfigHolder.get().isLogEnabled()) {
+            String logMessage = context.getString(R.string.published_mqtt_message_to_topic, new String(payload, UTF_8), topic);
+            logPersistence.saveNewLog(logMessage, "");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnect attempts. The ceiling doubles
+ * with every failed attempt up to the maximum, and the delay is picked at
+ * random from the upper half of it, so clients that lost the broker together
+ * do not all come back at the same moment.
+ */
+class ReconnectBackoff {
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random;
+    private int attempts = 0;
+
+    ReconnectBackoff(long initialDelay, long maxDelay, Random random) {
+        this.initialDelay = Math.max(1, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.random = random;
+    }
+
+    /**
+     * Returns the delay before the next attempt and counts the attempt.
+     */
+    long nextDelay() {
+        long ceiling = initialDelay;
+        for (int i = 0; i < attempts && ceiling < maxDelay; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxDelay);
+        attempts++;
+
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    void reset() {
+        attempts = 0;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+}
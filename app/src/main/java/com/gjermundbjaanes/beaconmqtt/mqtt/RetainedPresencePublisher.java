@@ -0,0 +1,214 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfig;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps retained messages with the current presence, so that a consumer that
+ * subscribes late gets the full state at once instead of waiting for events.
+ * The snapshot topic holds a JSON array of the present beacons, and every saved
+ * beacon has a state topic with {"state":"present"} or {"state":"absent"}.
+ *
+ * Changes are collected for {@link #DEBOUNCE_MS} and then only what differs
+ * from the last published state is sent. State topics of beacons that are no
+ * longer saved are cleared, and so is everything when the feature is turned
+ * off. Must be used on the scheduler's thread.
+ */
+class RetainedPresencePublisher {
+
+    interface Scheduler {
+        /**
+         * Runs {@code runnable} after {@code delayMillis}, replacing an earlier schedule of it.
+         */
+        void schedule(Runnable runnable, long delayMillis);
+    }
+
+    private static final long DEBOUNCE_MS = 1000;
+    private static final int RETAINED_QOS = 1;
+    private static final long NEVER_EXPIRES = 0; // A late state is still the current state
+    private static final byte[] EMPTY_SNAPSHOT = {'[', ']'};
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final AppConfigHolder appConfigHolder;
+    private final MessagePublisher brokers;
+    private final PayloadCache payloadCache;
+    private final Scheduler scheduler;
+    private final JsonPayloadWriter writer = new JsonPayloadWriter();
+    private final MessageBatcher snapshotBuilder = new MessageBatcher();
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    private List<BeaconResult> presentBeacons = Collections.emptyList();
+    private Collection<BeaconResult> savedBeacons = Collections.emptyList();
+    private MessageTemplate stateTopicTemplate = null;
+
+    private String publishedSnapshotTopic = null;
+    private Set<BeaconIdentity> publishedSnapshot = Collections.emptySet();
+    private final Map<BeaconIdentity, String> publishedStateTopics = new HashMap<>();
+    private final Map<BeaconIdentity, Boolean> publishedStates = new HashMap<>();
+
+    RetainedPresencePublisher(AppConfigHolder appConfigHolder, MessagePublisher brokers,
+                              PayloadCache payloadCache, Scheduler scheduler) {
+        this.appConfigHolder = appConfigHolder;
+        this.brokers = brokers;
+        this.payloadCache = payloadCache;
+        this.scheduler = scheduler;
+    }
+
+    void presenceChanged(List<BeaconResult> presentBeacons) {
+        this.presentBeacons = presentBeacons;
+        schedule();
+    }
+
+    void beaconsChanged(Collection<BeaconResult> savedBeacons) {
+        this.savedBeacons = new ArrayList<>(savedBeacons);
+        schedule();
+    }
+
+    /**
+     * Call when one of the retained settings changed.
+     */
+    void configChanged() {
+        schedule();
+    }
+
+    /**
+     * Publishes all of the state again, for brokers that were just added.
+     */
+    void republish() {
+        forgetPublished();
+        schedule();
+    }
+
+    private void schedule() {
+        scheduler.schedule(publishRunnable, DEBOUNCE_MS);
+    }
+
+    private void publish() {
+        AppConfig config = appConfigHolder.get();
+        if (!config.isMqttRetainedEnabled()) {
+            clearPublished();
+            forgetPublished(); // Start from scratch when enabled again, the broker may have been changed meanwhile
+            return;
+        }
+
+        Set<BeaconIdentity> present = new HashSet<>();
+        for (BeaconResult beacon : presentBeacons) {
+            present.add(beacon.getIdentity());
+        }
+        publishSnapshot(config.getMqttSnapshotTopic(), present);
+        publishStates(config.getMqttBeaconStateTopic(), present);
+    }
+
+    private void publishSnapshot(String topic, Set<BeaconIdentity> present) {
+        if (topic.equals(publishedSnapshotTopic) && present.equals(publishedSnapshot)) {
+            return;
+        }
+
+        for (BeaconResult beacon : presentBeacons) {
+            writer.beginObject(payloadCache.getFields(beacon.getIdentity()));
+            if (beacon.getInformalName() != null && !beacon.getInformalName().isEmpty()) {
+                writer.field("name", beacon.getInformalName());
+            }
+            writer.endObject();
+            snapshotBuilder.add(writer.buffer(), writer.size());
+        }
+        byte[] payload = snapshotBuilder.drain();
+        if (payload == null) {
+            payload = EMPTY_SNAPSHOT;
+        }
+
+        if (publishedSnapshotTopic != null && !publishedSnapshotTopic.equals(topic)) {
+            clear(publishedSnapshotTopic);
+        }
+        brokers.publish(PublishLane.NORMAL, topic, RETAINED_QOS, true, NEVER_EXPIRES, payload, payload.length);
+        publishedSnapshotTopic = topic;
+        publishedSnapshot = present;
+    }
+
+    private void publishStates(String topicTemplate, Set<BeaconIdentity> present) {
+        if (stateTopicTemplate == null || !stateTopicTemplate.getSource().equals(topicTemplate)) {
+            stateTopicTemplate = MessageTemplate.compileTopic(topicTemplate);
+        }
+
+        Set<BeaconIdentity> saved = new HashSet<>();
+        long timestamp = System.currentTimeMillis();
+        for (BeaconResult beacon : savedBeacons) {
+            BeaconIdentity identity = beacon.getIdentity();
+            if (identity == null) {
+                continue;
+            }
+            saved.add(identity);
+
+            boolean isPresent = present.contains(identity);
+            String topic = stateTopicTemplate.renderTopic(beacon, "", timestamp);
+            String publishedTopic = publishedStateTopics.get(identity);
+            if (topic.equals(publishedTopic) && Boolean.valueOf(isPresent).equals(publishedStates.get(identity))) {
+                continue;
+            }
+
+            if (publishedTopic != null && !publishedTopic.equals(topic)) {
+                clear(publishedTopic);
+            }
+            writer.beginObject(payloadCache.getFields(identity))
+                    .field("state", isPresent ? "present" : "absent")
+                    .field("ts", timestamp)
+                    .endObject();
+            brokers.publish(PublishLane.NORMAL, topic, RETAINED_QOS, true, NEVER_EXPIRES, writer.buffer(), writer.size());
+            publishedStateTopics.put(identity, topic);
+            publishedStates.put(identity, isPresent);
+        }
+
+        Iterator<Map.Entry<BeaconIdentity, String>> iterator = publishedStateTopics.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<BeaconIdentity, String> entry = iterator.next();
+            if (!saved.contains(entry.getKey())) {
+                clear(entry.getValue());
+                publishedStates.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Leaves nothing retained for late subscribers to mistake for the current state.
+     */
+    private void clearPublished() {
+        if (publishedSnapshotTopic != null) {
+            clear(publishedSnapshotTopic);
+        }
+        for (String topic : publishedStateTopics.values()) {
+            clear(topic);
+        }
+    }
+
+    private void forgetPublished() {
+        publishedSnapshotTopic = null;
+        publishedSnapshot = Collections.emptySet();
+        publishedStateTopics.clear();
+        publishedStates.clear();
+    }
+
+    /**
+     * An empty retained message makes the broker forget the topic.
+     */
+    private void clear(String topic) {
+        brokers.publish(PublishLane.NORMAL, topic, RETAINED_QOS, true, NEVER_EXPIRES, NO_PAYLOAD, 0);
+    }
+}
@@ -0,0 +1,52 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+/**
+ * How long TLS connections took to set up, counting from when the socket was
+ * created until the handshake completed. Resumed sessions skip most of the
+ * handshake, so they are counted separately.
+ */
+public class TlsHandshakeMetrics {
+
+    private long fullHandshakeCount = 0;
+    private long fullHandshakeMillis = 0;
+    private long resumedHandshakeCount = 0;
+    private long resumedHandshakeMillis = 0;
+    private long lastHandshakeMillis = 0;
+    private boolean lastHandshakeResumed = false;
+
+    synchronized void record(long millis, boolean resumed) {
+        if (resumed) {
+            resumedHandshakeCount++;
+            resumedHandshakeMillis += millis;
+        } else {
+            fullHandshakeCount++;
+            fullHandshakeMillis += millis;
+        }
+        lastHandshakeMillis = millis;
+        lastHandshakeResumed = resumed;
+    }
+
+    public synchronized long getHandshakeCount() {
+        return fullHandshakeCount + resumedHandshakeCount;
+    }
+
+    public synchronized long getResumedHandshakeCount() {
+        return resumedHandshakeCount;
+    }
+
+    public synchronized long getLastHandshakeMillis() {
+        return lastHandshakeMillis;
+    }
+
+    public synchronized boolean isLastHandshakeResumed() {
+        return lastHandshakeResumed;
+    }
+
+    public synchronized long getAverageFullHandshakeMillis() {
+        return fullHandshakeCount > 0 ? fullHandshakeMillis / fullHandshakeCount : 0;
+    }
+
+    public synchronized long getAverageResumedHandshakeMillis() {
+        return resumedHandshakeCount > 0 ? resumedHandshakeMillis / resumedHandshakeCount : 0;
+    }
+}
@@ -0,0 +1,262 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Makes the TLS sockets to one broker. The {@link SSLContext} is built the
+ * first time a socket is needed, on the connecting thread, and kept for every
+ * reconnect after that: certificates are only loaded once, and its session
+ * cache lets a reconnect resume the last TLS session instead of doing a full
+ * handshake. Session tickets are turned on where the platform has them, for
+ * brokers that do not keep a session cache of their own.
+ *
+ * Paho 1.1 does not check that the certificate is for the host it connects
+ * to, so every handshake is checked here.
+ */
+class TlsSocketFactory extends SSLSocketFactory {
+
+    private static final String TAG = TlsSocketFactory.class.getName();
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private final String host;
+    private final File caCertificate;
+    private final File clientCertificate;
+    private final String clientCertificatePassword;
+    private final TlsHandshakeMetrics metrics;
+    private final HostnameVerifier hostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+
+    private SSLSocketFactory delegate = null;
+
+    /**
+     * @param caCertificate     PEM or DER certificates to trust, or null for the system's
+     * @param clientCertificate PKCS#12 file with the client's key and certificate, or null for none
+     */
+    TlsSocketFactory(String host, File caCertificate, File clientCertificate, String clientCertificatePassword,
+                     TlsHandshakeMetrics metrics) {
+        this.host = host;
+        this.caCertificate = caCertificate;
+        this.clientCertificate = clientCertificate;
+        this.clientCertificatePassword = clientCertificatePassword != null ? clientCertificatePassword : "";
+        this.metrics = metrics;
+    }
+
+    /**
+     * True when this factory was made for the same broker and certificates, so
+     * its sessions can be reused.
+     */
+    boolean isFor(String host, File caCertificate, File clientCertificate, String clientCertificatePassword) {
+        return this.host.equals(host)
+                && equal(this.caCertificate, caCertificate)
+                && equal(this.clientCertificate, clientCertificate)
+                && this.clientCertificatePassword.equals(clientCertificatePassword != null ? clientCertificatePassword : "");
+    }
+
+    /**
+     * Handshakes right away instead of on the first write, so a certificate
+     * for another host fails the connect before anything is sent.
+     */
+    void startHandshake(SSLSocket socket) throws IOException {
+        socket.startHandshake();
+        verifyHostname(socket.getSession());
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        long createdAt = System.currentTimeMillis();
+        return prepare(delegate().createSocket(), createdAt);
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        long createdAt = System.currentTimeMillis();
+        return prepare(delegate().createSocket(socket, host, port, autoClose), createdAt);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        long createdAt = System.currentTimeMillis();
+        return prepare(delegate().createSocket(host, port), createdAt);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        long createdAt = System.currentTimeMillis();
+        return prepare(delegate().createSocket(host, port, localHost, localPort), createdAt);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        long createdAt = System.currentTimeMillis();
+        return prepare(delegate().createSocket(host, port), createdAt);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        long createdAt = System.currentTimeMillis();
+        return prepare(delegate().createSocket(address, port, localAddress, localPort), createdAt);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return ((SSLSocketFactory) SSLSocketFactory.getDefault()).getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return ((SSLSocketFactory) SSLSocketFactory.getDefault()).getSupportedCipherSuites();
+    }
+
+    private synchronized SSLSocketFactory delegate() throws IOException {
+        if (delegate == null) {
+            try {
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(loadKeyManagers(), loadTrustManagers(), null);
+                sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+                delegate = sslContext.getSocketFactory();
+            } catch (GeneralSecurityException | IOException e) {
+                // Not kept, so a fixed certificate file is picked up by the next reconnect
+                Log.e(TAG, "Could not set up TLS for " + host, e);
+                throw new IOException("Could not set up TLS: " + e.getMessage(), e);
+            }
+        }
+        return delegate;
+    }
+
+    private KeyManager[] loadKeyManagers() throws GeneralSecurityException, IOException {
+        if (clientCertificate == null) {
+            return null;
+        }
+
+        char[] password = clientCertificatePassword.toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = new BufferedInputStream(new FileInputStream(clientCertificate));
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+        return keyManagerFactory.getKeyManagers();
+    }
+
+    private TrustManager[] loadTrustManagers() throws GeneralSecurityException, IOException {
+        if (caCertificate == null) {
+            return null;
+        }
+
+        Collection<? extends Certificate> certificates;
+        InputStream in = new BufferedInputStream(new FileInputStream(caCertificate));
+        try {
+            certificates = CertificateFactory.getInstance("X.509").generateCertificates(in);
+        } finally {
+            in.close();
+        }
+        if (certificates.isEmpty()) {
+            throw new CertificateException("No certificates in " + caCertificate);
+        }
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        int index = 0;
+        for (Certificate certificate : certificates) {
+            keyStore.setCertificateEntry("ca" + index++, certificate);
+        }
+
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        return trustManagerFactory.getTrustManagers();
+    }
+
+    private Socket prepare(Socket socket, final long createdAt) {
+        if (!(socket instanceof SSLSocket)) {
+            return socket;
+        }
+
+        SSLSocket sslSocket = (SSLSocket) socket;
+        // TLS 1.1 and 1.2 are supported but not enabled by default before API 20
+        sslSocket.setEnabledProtocols(tlsProtocols(sslSocket.getSupportedProtocols()));
+        enableSessionTickets(sslSocket);
+        sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                SSLSession session = event.getSession();
+                metrics.record(System.currentTimeMillis() - createdAt, session.getCreationTime() < createdAt);
+                try {
+                    verifyHostname(session);
+                } catch (SSLPeerUnverifiedException e) {
+                    Log.e(TAG, e.getMessage());
+                    try {
+                        event.getSocket().close();
+                    } catch (IOException closeException) {
+                        // Closing anyway
+                    }
+                }
+            }
+        });
+        return sslSocket;
+    }
+
+    private void verifyHostname(SSLSession session) throws SSLPeerUnverifiedException {
+        if (!hostnameVerifier.verify(host, session)) {
+            throw new SSLPeerUnverifiedException("The broker's certificate is not for " + host);
+        }
+    }
+
+    /**
+     * Conscrypt, Android's TLS provider, only sends session tickets when asked to.
+     */
+    private static void enableSessionTickets(SSLSocket socket) {
+        try {
+            socket.getClass().getMethod("setUseSessionTickets", boolean.class).invoke(socket, true);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            // Another provider, sessions are still resumed from the session cache
+        }
+    }
+
+    private static String[] tlsProtocols(String[] supportedProtocols) {
+        List<String> protocols = new ArrayList<>();
+        for (String protocol : supportedProtocols) {
+            if (protocol.startsWith("TLS")) {
+                protocols.add(protocol);
+            }
+        }
+        return protocols.toArray(new String[protocols.size()]);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
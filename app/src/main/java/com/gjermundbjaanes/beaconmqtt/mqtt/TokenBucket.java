@@ -0,0 +1,70 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+/**
+ * Allows {@code rate} messages per second on average, in bursts of up to
+ * {@code capacity} messages after a quiet period. A rate of 0 allows
+ * everything. Times are in milliseconds from any monotonic clock.
+ */
+class TokenBucket {
+
+    private double rate;
+    private double capacity;
+    private double tokens;
+    private long updatedAt;
+
+    TokenBucket(double rate, double capacity, long now) {
+        this.rate = Math.max(0, rate);
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.updatedAt = now;
+    }
+
+    /**
+     * Changes the limit, keeping the tokens that were saved up so far. A
+     * bucket that was unlimited starts out full.
+     */
+    void setRate(double rate, double capacity, long now) {
+        rate = Math.max(0, rate);
+        capacity = Math.max(1, capacity);
+        if (rate == this.rate && capacity == this.capacity) {
+            return;
+        }
+
+        refill(now);
+        tokens = this.rate == 0 ? capacity : Math.min(tokens, capacity);
+        this.rate = rate;
+        this.capacity = capacity;
+    }
+
+    boolean tryTake(long now) {
+        if (rate == 0) {
+            return true;
+        }
+
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return 0 if {@link #tryTake(long)} would succeed now
+     */
+    long millisUntilAvailable(long now) {
+        if (rate == 0) {
+            return 0;
+        }
+
+        refill(now);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * 1000 / rate);
+    }
+
+    private void refill(long now) {
+        if (now > updatedAt && rate > 0) {
+            tokens = Math.min(capacity, tokens + (now - updatedAt) * rate / 1000);
+        }
+        updatedAt = Math.max(updatedAt, now);
+    }
+}
@@ -20,8 +20,10 @@ import android.widget.TextView;
 
 import com.gjermundbjaanes.beaconmqtt.BeaconApplication;
 import com.gjermundbjaanes.beaconmqtt.R;
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
 import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconPersistence;
-import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconRegistry;
+import com.gjermundbjaanes.beaconmqtt.db.zone.ZonePersistence;
 
 import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconConsumer;
@@ -41,9 +43,10 @@ public class NewBeaconActivity extends AppCompatActivity implements BeaconConsum
     private BeaconManager beaconManager = BeaconManager.getInstanceForApplication(this);
 
     private ListView beaconSearchListView;
-    private List<BeaconResult> persistedBeaconList = new ArrayList<>();
+    private BeaconRegistry beaconRegistry = BeaconRegistry.getInstance();
     private BeaconListAdapter beaconListAdapter;
     private BeaconPersistence beaconPersistence;
+    private ZonePersistence zonePersistence;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -70,7 +73,7 @@ public class NewBeaconActivity extends AppCompatActivity implements BeaconConsum
         beaconSearchListView.setAdapter(beaconListAdapter);
 
         beaconPersistence = new BeaconPersistence(this);
-        persistedBeaconList = beaconPersistence.getBeacons();
+        zonePersistence = new ZonePersistence(this);
 
         beaconSearchListView.setOnItemClickListener(new OnBeaconClickListener());
 
@@ -100,7 +103,9 @@ public class NewBeaconActivity extends AppCompatActivity implements BeaconConsum
         beaconManager.addRangeNotifier(new RangeNotifier() {
             @Override
             public void didRangeBeaconsInRegion(Collection<Beacon> beacons, Region region) {
-                handleNewBeaconsInRange(beacons);
+                if (REGION_ID_FOR_RANGING.equals(region.getUniqueId())) {
+                    handleNewBeaconsInRange(beacons);
+                }
             }
 
             private void handleNewBeaconsInRange(Collection<Beacon> beacons) {
@@ -129,15 +134,8 @@ public class NewBeaconActivity extends AppCompatActivity implements BeaconConsum
             }
 
             private boolean beaconIsSaved(Beacon beacon) {
-                for (BeaconResult beaconResult : persistedBeaconList) {
-                    if (beacon.getId1().toString().equals(beaconResult.getUuid()) &&
-                            beacon.getId2().toString().equals(beaconResult.getMajor()) &&
-                            beacon.getId3().toString().equals(beaconResult.getMinor())) {
-                        return true;
-                    }
-                }
-
-                return false;
+                BeaconIdentity identity = BeaconIdentity.fromBeacon(beacon);
+                return identity != null && beaconRegistry.getBeacon(identity) != null;
             }
         });
 
@@ -203,9 +201,15 @@ public class NewBeaconActivity extends AppCompatActivity implements BeaconConsum
                                 TextView newBeaconNameTextView = (TextView) dialogLayout.findViewById(R.id.dailog_new_beacon_name);
                                 String informalBeaconName = newBeaconNameTextView.getText().toString();
 
-                                beaconPersistence.saveBeacon(beaconListElement.getBeacon(), informalBeaconName);
-                                persistedBeaconList = beaconPersistence.getBeacons();
-                                ((BeaconApplication) getApplication()).restartBeaconSearch();
+                                TextView newBeaconExitTimeoutTextView = (TextView) dialogLayout.findViewById(R.id.dailog_new_beacon_exit_timeout);
+                                long exitTimeout = parseExitTimeout(newBeaconExitTimeoutTextView.getText().toString());
+
+                                TextView newBeaconZoneTextView = (TextView) dialogLayout.findViewById(R.id.dailog_new_beacon_zone);
+                                String zoneName = newBeaconZoneTextView.getText().toString();
+
+                                beaconPersistence.saveBeacon(beaconListElement.getBeacon(), informalBeaconName, exitTimeout);
+                                saveZone(zoneName, BeaconIdentity.fromBeacon(beaconListElement.getBeacon()));
+                                ((BeaconApplication) getApplication()).updateBeaconSearch();
                             }
                         })
                         .setNegativeButton(R.string.dialog_cancel_beacon, null)
@@ -235,9 +239,34 @@ public class NewBeaconActivity extends AppCompatActivity implements BeaconConsum
             TextView newBeaconMinorTextView = (TextView) dialogLayout.findViewById(R.id.manual_dailog_new_beacon_minor);
             String beaconMinor = newBeaconMinorTextView.getText().toString();
 
-            beaconPersistence.saveBeacon(beaconUuid, beaconMajor, beaconMinor, informalBeaconName);
-            persistedBeaconList = beaconPersistence.getBeacons();
-            ((BeaconApplication) getApplication()).restartBeaconSearch();
+            TextView newBeaconExitTimeoutTextView = (TextView) dialogLayout.findViewById(R.id.manual_dailog_new_beacon_exit_timeout);
+            long exitTimeout = parseExitTimeout(newBeaconExitTimeoutTextView.getText().toString());
+
+            TextView newBeaconZoneTextView = (TextView) dialogLayout.findViewById(R.id.manual_dailog_new_beacon_zone);
+            String zoneName = newBeaconZoneTextView.getText().toString();
+
+            beaconPersistence.saveBeacon(beaconUuid, beaconMajor, beaconMinor, informalBeaconName, exitTimeout);
+            try {
+                saveZone(zoneName, BeaconIdentity.fromStrings(beaconUuid, beaconMajor, beaconMinor));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Not adding beacon with invalid identity to zone " + zoneName, e);
+            }
+            ((BeaconApplication) getApplication()).updateBeaconSearch();
+        }
+    }
+
+    private static long parseExitTimeout(String exitTimeout) {
+        try {
+            return Math.max(0, Long.parseLong(exitTimeout.trim()));
+        } catch (NumberFormatException e) {
+            return 0; // Left empty, use the default
+        }
+    }
+
+    private void saveZone(String zoneName, BeaconIdentity identity) {
+        zoneName = zoneName.trim();
+        if (!zoneName.isEmpty() && identity != null) {
+            zonePersistence.addBeaconToZone(zoneName, identity);
         }
     }
 }
@@ -0,0 +1,170 @@
+package com.gjermundbjaanes.beaconmqtt.notification;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.gjermundbjaanes.beaconmqtt.MainActivity;
+import com.gjermundbjaanes.beaconmqtt.R;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces beacon notifications. Enter and exit events are collected per
+ * channel for {@link #WINDOW_MS} and shown as one notification, a summary when
+ * more than one beacon is involved. Each channel posts under its own id, so a
+ * new notification replaces the previous one, and notifies at most once every
+ * {@link #MIN_INTERVAL_MS}; events arriving in between wait for the next one.
+ */
+public class BeaconNotifier {
+
+    private static final long WINDOW_MS = 2000;
+    private static final long MIN_INTERVAL_MS = 10000;
+    private static final int MAX_SUMMARY_LINES = 5;
+    private static final int MAX_SUMMARY_NAMES = 3;
+    private static final int ENTER_NOTIFICATION_ID = 1;
+    private static final int EXIT_NOTIFICATION_ID = 2;
+
+    private final Context context;
+    private final Handler handler;
+    private final Channel enterChannel;
+    private final Channel exitChannel;
+
+    public BeaconNotifier(Context context, Handler handler) {
+        this.context = context;
+        this.handler = handler;
+        enterChannel = new Channel(ENTER_NOTIFICATION_ID,
+                R.string.beacon_spotted_notification_title,
+                R.string.beacon_spotted_notification_message,
+                R.string.beacon_spotted_notification_summary_title);
+        exitChannel = new Channel(EXIT_NOTIFICATION_ID,
+                R.string.beacon_exit_notification_title,
+                R.string.beacon_exit_notification_message,
+                R.string.beacon_exit_notification_summary_title);
+    }
+
+    /**
+     * Safe to call from any thread.
+     */
+    public void beaconEntered(BeaconResult beacon) {
+        enterChannel.add(beacon);
+    }
+
+    /**
+     * Safe to call from any thread.
+     */
+    public void beaconExited(BeaconResult beacon) {
+        exitChannel.add(beacon);
+    }
+
+    private Notification buildNotification(String title, String message, Notification.Style style) {
+        Intent notifyIntent = new Intent(context, MainActivity.class);
+        notifyIntent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent pendingIntent = PendingIntent.getActivities(context, 0,
+                new Intent[] { notifyIntent }, PendingIntent.FLAG_UPDATE_CURRENT);
+        Notification.Builder builder = new Notification.Builder(context)
+                .setSmallIcon(android.R.drawable.ic_dialog_info)
+                .setContentTitle(title)
+                .setContentText(message)
+                .setAutoCancel(true)
+                .setContentIntent(pendingIntent);
+        if (style != null) {
+            builder.setStyle(style);
+        }
+
+        Notification notification = builder.build();
+        notification.defaults |= Notification.DEFAULT_SOUND;
+        return notification;
+    }
+
+    private String getName(BeaconResult beacon) {
+        String informalName = beacon.getInformalName();
+        if (informalName != null && !informalName.isEmpty()) {
+            return informalName;
+        }
+        return context.getString(R.string.beacon_notification_unnamed, beacon.getUuid(), beacon.getMajor(), beacon.getMinor());
+    }
+
+    private class Channel implements Runnable {
+        private final int notificationId;
+        private final int titleRes;
+        private final int messageRes;
+        private final int summaryTitleRes;
+        private final List<BeaconResult> pending = new ArrayList<>();
+        private long lastNotifiedAt = -MIN_INTERVAL_MS;
+        private boolean flushScheduled = false;
+
+        Channel(int notificationId, int titleRes, int messageRes, int summaryTitleRes) {
+            this.notificationId = notificationId;
+            this.titleRes = titleRes;
+            this.messageRes = messageRes;
+            this.summaryTitleRes = summaryTitleRes;
+        }
+
+        synchronized void add(BeaconResult beacon) {
+            pending.remove(beacon); // Only the latest event per beacon matters
+            pending.add(beacon);
+
+            if (!flushScheduled) {
+                long now = SystemClock.uptimeMillis();
+                long flushAt = Math.max(now + WINDOW_MS, lastNotifiedAt + MIN_INTERVAL_MS);
+                handler.postAtTime(this, flushAt);
+                flushScheduled = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            List<BeaconResult> beacons;
+            synchronized (this) {
+                beacons = new ArrayList<>(pending);
+                pending.clear();
+                flushScheduled = false;
+                lastNotifiedAt = SystemClock.uptimeMillis();
+            }
+
+            if (!beacons.isEmpty()) {
+                NotificationManager notificationManager =
+                        (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+                notificationManager.notify(notificationId, build(beacons));
+            }
+        }
+
+        private Notification build(List<BeaconResult> beacons) {
+            if (beacons.size() == 1) {
+                BeaconResult beacon = beacons.get(0);
+                String message = context.getString(messageRes, beacon.getUuid(), beacon.getMajor(), beacon.getMinor());
+                if (beacon.getInformalName() != null) {
+                    message = beacon.getInformalName() + " " + message;
+                }
+                return buildNotification(context.getString(titleRes), message, null);
+            }
+
+            String title = context.getString(summaryTitleRes, beacons.size());
+            StringBuilder message = new StringBuilder();
+            Notification.InboxStyle style = new Notification.InboxStyle().setBigContentTitle(title);
+            for (int i = 0; i < beacons.size(); i++) {
+                String name = getName(beacons.get(i));
+                if (i < MAX_SUMMARY_NAMES) {
+                    message.append(i == 0 ? "" : ", ").append(name);
+                } else if (i == MAX_SUMMARY_NAMES) {
+                    message.append(", ...");
+                }
+                if (i < MAX_SUMMARY_LINES) {
+                    style.addLine(name);
+                }
+            }
+            if (beacons.size() > MAX_SUMMARY_LINES) {
+                style.setSummaryText(context.getString(R.string.beacon_notification_more, beacons.size() - MAX_SUMMARY_LINES));
+            }
+
+            return buildNotification(title, message.toString(), style);
+        }
+    }
+}
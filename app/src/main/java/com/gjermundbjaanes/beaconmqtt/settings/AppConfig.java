@@ -0,0 +1,515 @@
+package com.gjermundbjaanes.beaconmqtt.settings;
+
+import android.content.SharedPreferences;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconFormat;
+import com.gjermundbjaanes.beaconmqtt.beacon.PresenceMode;
+import com.gjermundbjaanes.beaconmqtt.event.BackpressurePolicy;
+import com.gjermundbjaanes.beaconmqtt.mqtt.BrokerEndpoint;
+import com.gjermundbjaanes.beaconmqtt.mqtt.PayloadFormat;
+import com.gjermundbjaanes.beaconmqtt.mqtt.PublishLane;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_ADAPTIVE_MAX_BETWEEN_SCANS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_ADAPTIVE_MIN_BETWEEN_SCANS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_ADAPTIVE_SCANNING_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_COMPACT_REGIONS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_FORMATS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_NOTIFICATIONS_ENTER_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_NOTIFICATIONS_EXIT_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_PERIOD_BETWEEN_SCANS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_PRESENCE_MODE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_RANGING_EXIT_TIMEOUT_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_RSSI_ENTER_THRESHOLD_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_RSSI_EXIT_THRESHOLD_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_RSSI_MIN_DWELL_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_SCAN_PERIOD_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.GENEARL_LOG_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.GENERAL_EVENT_QUEUE_POLICY_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ADDITIONAL_BROKERS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BATCH_ENABLED_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BATCH_LINGER_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BATCH_MAX_EVENTS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BATCH_QOS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BATCH_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BEACON_STATE_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BULK_RATE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_CRITICAL_RATE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ENTER_PAYLOAD_FORMAT_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ENTER_QOS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ENTER_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_EXIT_PAYLOAD_FORMAT_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_EXIT_QOS_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_EXIT_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_MESSAGE_EXPIRY_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_NORMAL_RATE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_PAYLOAD_TEMPLATE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_PORT_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_PROTOCOL_VERSION_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_RETAINED_ENABLED_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_SERVER_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_SESSION_EXPIRY_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_SNAPSHOT_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_TLS_CA_CERTIFICATE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_TLS_CLIENT_CERTIFICATE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_TLS_CLIENT_CERTIFICATE_PASSWORD_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_TLS_ENABLED_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ZONE_ENTER_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ZONE_EVENTS_ONLY_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ZONE_EXIT_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_ZONE_QOS_KEY;
+import static org.altbeacon.beacon.BeaconManager.DEFAULT_BACKGROUND_BETWEEN_SCAN_PERIOD;
+import static org.altbeacon.beacon.BeaconManager.DEFAULT_BACKGROUND_SCAN_PERIOD;
+import static org.altbeacon.beacon.BeaconManager.DEFAULT_FOREGROUND_SCAN_PERIOD;
+
+/**
+ * Immutable, already parsed view of all the settings in {@link SettingsActivity}.
+ * A new instance is built by {@link AppConfigHolder} whenever a setting changes.
+ */
+public final class AppConfig {
+
+    public static final String DEFAULT_ENTER_TOPIC = "beacon/enter";
+    public static final String DEFAULT_EXIT_TOPIC = "beacon/exit";
+    public static final String DEFAULT_ZONE_ENTER_TOPIC = "zone/enter";
+    public static final String DEFAULT_ZONE_EXIT_TOPIC = "zone/exit";
+    public static final String DEFAULT_BATCH_TOPIC = "beacon/batch";
+    public static final long DEFAULT_BATCH_LINGER = 1000;
+    public static final int DEFAULT_BATCH_MAX_EVENTS = 50;
+    public static final int DEFAULT_QOS = 1; // MqttMessage's default
+    public static final String DEFAULT_SNAPSHOT_TOPIC = "beacon/present";
+    public static final String DEFAULT_BEACON_STATE_TOPIC = "beacon/state/{uuid}/{major}/{minor}";
+    public static final long DEFAULT_SESSION_EXPIRY = 0;
+    public static final long DEFAULT_ADAPTIVE_MIN_BETWEEN_SCAN_PERIOD = 5000;
+    public static final int DEFAULT_RSSI_ENTER_THRESHOLD = -80;
+    public static final int DEFAULT_RSSI_EXIT_THRESHOLD = -90;
+    public static final long DEFAULT_RSSI_MIN_DWELL_TIME = 5000;
+    public static final long DEFAULT_RANGING_EXIT_TIMEOUT = 3000;
+
+    private final boolean logEnabled;
+    private final BackpressurePolicy eventQueuePolicy;
+
+    private final String mqttServer;
+    private final String mqttPort;
+    private final String mqttEnterTopic;
+    private final String mqttExitTopic;
+    private final String mqttPayloadTemplate;
+    private final PayloadFormat mqttEnterPayloadFormat;
+    private final PayloadFormat mqttExitPayloadFormat;
+
+    private final boolean notificationsOnEnter;
+    private final boolean notificationsOnExit;
+    private final long backgroundBetweenScanPeriod;
+    private final long backgroundScanPeriod;
+    private final boolean compactRegions;
+    private final boolean adaptiveScanning;
+    private final long adaptiveMinBetweenScanPeriod;
+    private final long adaptiveMaxBetweenScanPeriod;
+    private final PresenceMode presenceMode;
+    private final int rssiEnterThreshold;
+    private final int rssiExitThreshold;
+    private final long rssiMinDwellTime;
+    private final long rangingExitTimeout;
+    private final Set<BeaconFormat> beaconFormats;
+    private final String mqttZoneEnterTopic;
+    private final String mqttZoneExitTopic;
+    private final boolean mqttZoneEventsOnly;
+    private final boolean mqttBatchEnabled;
+    private final String mqttBatchTopic;
+    private final long mqttBatchLinger;
+    private final int mqttBatchMaxEvents;
+    private final int mqttEnterQos;
+    private final int mqttExitQos;
+    private final int mqttZoneQos;
+    private final int mqttBatchQos;
+    private final boolean mqttRetainedEnabled;
+    private final String mqttSnapshotTopic;
+    private final String mqttBeaconStateTopic;
+    private final int mqttProtocolVersion;
+    private final long mqttSessionExpiry;
+    private final long mqttMessageExpiry;
+    private final boolean mqttTlsEnabled;
+    private final String mqttTlsCaCertificate;
+    private final String mqttTlsClientCertificate;
+    private final String mqttTlsClientCertificatePassword;
+    private final BrokerEndpoint mqttPrimaryBroker;
+    private final List<BrokerEndpoint> mqttAdditionalBrokers;
+    private final double mqttCriticalRate;
+    private final double mqttNormalRate;
+    private final double mqttBulkRate;
+
+    private AppConfig(SharedPreferences sharedPreferences) {
+        logEnabled = sharedPreferences.getBoolean(GENEARL_LOG_KEY, false);
+        eventQueuePolicy = BackpressurePolicy.fromString(sharedPreferences.getString(GENERAL_EVENT_QUEUE_POLICY_KEY, null), BackpressurePolicy.DROP_OLDEST);
+
+        mqttServer = sharedPreferences.getString(MQTT_SERVER_KEY, null);
+        mqttPort = sharedPreferences.getString(MQTT_PORT_KEY, null);
+        mqttEnterTopic = sharedPreferences.getString(MQTT_ENTER_TOPIC_KEY, DEFAULT_ENTER_TOPIC);
+        mqttExitTopic = sharedPreferences.getString(MQTT_EXIT_TOPIC_KEY, DEFAULT_EXIT_TOPIC);
+        mqttPayloadTemplate = sharedPreferences.getString(MQTT_PAYLOAD_TEMPLATE_KEY, "");
+        mqttEnterPayloadFormat = PayloadFormat.fromString(sharedPreferences.getString(MQTT_ENTER_PAYLOAD_FORMAT_KEY, null), PayloadFormat.JSON);
+        mqttExitPayloadFormat = PayloadFormat.fromString(sharedPreferences.getString(MQTT_EXIT_PAYLOAD_FORMAT_KEY, null), PayloadFormat.JSON);
+
+        notificationsOnEnter = sharedPreferences.getBoolean(BEACON_NOTIFICATIONS_ENTER_KEY, false);
+        notificationsOnExit = sharedPreferences.getBoolean(BEACON_NOTIFICATIONS_EXIT_KEY, false);
+        backgroundBetweenScanPeriod = getLong(sharedPreferences, BEACON_PERIOD_BETWEEN_SCANS_KEY, DEFAULT_BACKGROUND_BETWEEN_SCAN_PERIOD);
+        backgroundScanPeriod = getLong(sharedPreferences, BEACON_SCAN_PERIOD_KEY, DEFAULT_BACKGROUND_SCAN_PERIOD);
+        compactRegions = sharedPreferences.getBoolean(BEACON_COMPACT_REGIONS_KEY, false);
+        adaptiveScanning = sharedPreferences.getBoolean(BEACON_ADAPTIVE_SCANNING_KEY, false);
+        adaptiveMinBetweenScanPeriod = getLong(sharedPreferences, BEACON_ADAPTIVE_MIN_BETWEEN_SCANS_KEY, DEFAULT_ADAPTIVE_MIN_BETWEEN_SCAN_PERIOD);
+        adaptiveMaxBetweenScanPeriod = getLong(sharedPreferences, BEACON_ADAPTIVE_MAX_BETWEEN_SCANS_KEY, DEFAULT_BACKGROUND_BETWEEN_SCAN_PERIOD);
+        presenceMode = PresenceMode.fromString(sharedPreferences.getString(BEACON_PRESENCE_MODE_KEY, null), PresenceMode.MONITORING);
+        rssiEnterThreshold = (int) getLong(sharedPreferences, BEACON_RSSI_ENTER_THRESHOLD_KEY, DEFAULT_RSSI_ENTER_THRESHOLD);
+        rssiExitThreshold = (int) getLong(sharedPreferences, BEACON_RSSI_EXIT_THRESHOLD_KEY, DEFAULT_RSSI_EXIT_THRESHOLD);
+        rssiMinDwellTime = getLong(sharedPreferences, BEACON_RSSI_MIN_DWELL_KEY, DEFAULT_RSSI_MIN_DWELL_TIME);
+        rangingExitTimeout = getLong(sharedPreferences, BEACON_RANGING_EXIT_TIMEOUT_KEY, DEFAULT_RANGING_EXIT_TIMEOUT);
+        beaconFormats = getBeaconFormats(sharedPreferences);
+        mqttZoneEnterTopic = sharedPreferences.getString(MQTT_ZONE_ENTER_TOPIC_KEY, DEFAULT_ZONE_ENTER_TOPIC);
+        mqttZoneExitTopic = sharedPreferences.getString(MQTT_ZONE_EXIT_TOPIC_KEY, DEFAULT_ZONE_EXIT_TOPIC);
+        mqttZoneEventsOnly = sharedPreferences.getBoolean(MQTT_ZONE_EVENTS_ONLY_KEY, true);
+        mqttBatchEnabled = sharedPreferences.getBoolean(MQTT_BATCH_ENABLED_KEY, false);
+        mqttBatchTopic = sharedPreferences.getString(MQTT_BATCH_TOPIC_KEY, DEFAULT_BATCH_TOPIC);
+        mqttBatchLinger = Math.max(0, getLong(sharedPreferences, MQTT_BATCH_LINGER_KEY, DEFAULT_BATCH_LINGER));
+        mqttBatchMaxEvents = (int) Math.max(1, getLong(sharedPreferences, MQTT_BATCH_MAX_EVENTS_KEY, DEFAULT_BATCH_MAX_EVENTS));
+        mqttEnterQos = getQos(sharedPreferences, MQTT_ENTER_QOS_KEY);
+        mqttExitQos = getQos(sharedPreferences, MQTT_EXIT_QOS_KEY);
+        mqttZoneQos = getQos(sharedPreferences, MQTT_ZONE_QOS_KEY);
+        mqttBatchQos = getQos(sharedPreferences, MQTT_BATCH_QOS_KEY);
+        mqttRetainedEnabled = sharedPreferences.getBoolean(MQTT_RETAINED_ENABLED_KEY, false);
+        mqttSnapshotTopic = sharedPreferences.getString(MQTT_SNAPSHOT_TOPIC_KEY, DEFAULT_SNAPSHOT_TOPIC);
+        mqttBeaconStateTopic = sharedPreferences.getString(MQTT_BEACON_STATE_TOPIC_KEY, DEFAULT_BEACON_STATE_TOPIC);
+        mqttProtocolVersion = getLong(sharedPreferences, MQTT_PROTOCOL_VERSION_KEY, 3) == 5 ? 5 : 3;
+        mqttSessionExpiry = Math.max(0, getLong(sharedPreferences, MQTT_SESSION_EXPIRY_KEY, DEFAULT_SESSION_EXPIRY));
+        mqttMessageExpiry = Math.max(0, getLong(sharedPreferences, MQTT_MESSAGE_EXPIRY_KEY, 0));
+        mqttTlsEnabled = sharedPreferences.getBoolean(MQTT_TLS_ENABLED_KEY, false);
+        mqttTlsCaCertificate = sharedPreferences.getString(MQTT_TLS_CA_CERTIFICATE_KEY, "").trim();
+        mqttTlsClientCertificate = sharedPreferences.getString(MQTT_TLS_CLIENT_CERTIFICATE_KEY, "").trim();
+        mqttTlsClientCertificatePassword = sharedPreferences.getString(MQTT_TLS_CLIENT_CERTIFICATE_PASSWORD_KEY, "");
+        mqttPrimaryBroker = new BrokerEndpoint(mqttServer, BrokerEndpoint.parsePort(mqttPort), mqttTlsEnabled, "");
+        mqttAdditionalBrokers = BrokerEndpoint.parseList(sharedPreferences.getString(MQTT_ADDITIONAL_BROKERS_KEY, null));
+        mqttCriticalRate = Math.max(0, getDouble(sharedPreferences, MQTT_CRITICAL_RATE_KEY, 0));
+        mqttNormalRate = Math.max(0, getDouble(sharedPreferences, MQTT_NORMAL_RATE_KEY, 0));
+        mqttBulkRate = Math.max(0, getDouble(sharedPreferences, MQTT_BULK_RATE_KEY, 0));
+    }
+
+    public static AppConfig fromPreferences(SharedPreferences sharedPreferences) {
+        return new AppConfig(sharedPreferences);
+    }
+
+    /**
+     * Numbers are stored as strings by EditTextPreference, so they are parsed
+     * here once instead of on every read. Unparseable values fall back to the default.
+     */
+    static long getLong(SharedPreferences sharedPreferences, String key, long defaultValue) {
+        String value = sharedPreferences.getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static double getDouble(SharedPreferences sharedPreferences, String key, double defaultValue) {
+        String value = sharedPreferences.getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            return Double.isNaN(parsed) || Double.isInfinite(parsed) ? defaultValue : parsed;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static int getQos(SharedPreferences sharedPreferences, String key) {
+        long qos = getLong(sharedPreferences, key, DEFAULT_QOS);
+        return qos >= 0 && qos <= 2 ? (int) qos : DEFAULT_QOS;
+    }
+
+    /**
+     * Nothing could be detected without any format, so an empty selection means all of them.
+     */
+    private static Set<BeaconFormat> getBeaconFormats(SharedPreferences sharedPreferences) {
+        Set<String> values = sharedPreferences.getStringSet(BEACON_FORMATS_KEY, null);
+        EnumSet<BeaconFormat> formats = EnumSet.noneOf(BeaconFormat.class);
+        if (values != null) {
+            for (String value : values) {
+                BeaconFormat format = BeaconFormat.fromString(value);
+                if (format != null) {
+                    formats.add(format);
+                }
+            }
+        }
+
+        if (formats.isEmpty()) {
+            return Collections.unmodifiableSet(EnumSet.allOf(BeaconFormat.class));
+        }
+        return Collections.unmodifiableSet(formats);
+    }
+
+    public boolean isLogEnabled() {
+        return logEnabled;
+    }
+
+    public BackpressurePolicy getEventQueuePolicy() {
+        return eventQueuePolicy;
+    }
+
+    public String getMqttServer() {
+        return mqttServer;
+    }
+
+    public String getMqttPort() {
+        return mqttPort;
+    }
+
+    public String getMqttEnterTopic() {
+        return mqttEnterTopic;
+    }
+
+    public String getMqttExitTopic() {
+        return mqttExitTopic;
+    }
+
+    /**
+     * Template for JSON enter/exit payloads, empty for the default {"uuid", "major", "minor"} object.
+     */
+    public String getMqttPayloadTemplate() {
+        return mqttPayloadTemplate;
+    }
+
+    public PayloadFormat getMqttEnterPayloadFormat() {
+        return mqttEnterPayloadFormat;
+    }
+
+    public PayloadFormat getMqttExitPayloadFormat() {
+        return mqttExitPayloadFormat;
+    }
+
+    public boolean isNotificationsOnEnter() {
+        return notificationsOnEnter;
+    }
+
+    public boolean isNotificationsOnExit() {
+        return notificationsOnExit;
+    }
+
+    public long getBackgroundBetweenScanPeriod() {
+        return backgroundBetweenScanPeriod;
+    }
+
+    public long getBackgroundScanPeriod() {
+        return backgroundScanPeriod;
+    }
+
+    public boolean isCompactRegions() {
+        return compactRegions;
+    }
+
+    public boolean isAdaptiveScanning() {
+        return adaptiveScanning;
+    }
+
+    public long getAdaptiveMinBetweenScanPeriod() {
+        return adaptiveMinBetweenScanPeriod;
+    }
+
+    public long getAdaptiveMaxBetweenScanPeriod() {
+        return adaptiveMaxBetweenScanPeriod;
+    }
+
+    public PresenceMode getPresenceMode() {
+        return presenceMode;
+    }
+
+    /**
+     * True when presence is decided by ranging saved beacons rather than by region monitoring.
+     */
+    public boolean isRangedPresence() {
+        return presenceMode != PresenceMode.MONITORING;
+    }
+
+    public int getRssiEnterThreshold() {
+        return rssiEnterThreshold;
+    }
+
+    public int getRssiExitThreshold() {
+        return rssiExitThreshold;
+    }
+
+    public long getRssiMinDwellTime() {
+        return rssiMinDwellTime;
+    }
+
+    public long getRangingExitTimeout() {
+        return rangingExitTimeout;
+    }
+
+    /**
+     * Scan period used in ranging mode. A beacon can only be exited a scan period
+     * after it was last ranged, so it is capped to make exits within seconds possible.
+     */
+    public long getRangingScanPeriod() {
+        return Math.min(backgroundScanPeriod, DEFAULT_FOREGROUND_SCAN_PERIOD);
+    }
+
+    public Set<BeaconFormat> getBeaconFormats() {
+        return beaconFormats;
+    }
+
+    public String getMqttZoneEnterTopic() {
+        return mqttZoneEnterTopic;
+    }
+
+    public String getMqttZoneExitTopic() {
+        return mqttZoneExitTopic;
+    }
+
+    /**
+     * True when beacons that are in a zone should only be published as part of their zone.
+     */
+    public boolean isMqttZoneEventsOnly() {
+        return mqttZoneEventsOnly;
+    }
+
+    /**
+     * True when events are collected and published together on the batch topic
+     * instead of one message per event on their own topics.
+     */
+    public boolean isMqttBatchEnabled() {
+        return mqttBatchEnabled;
+    }
+
+    public String getMqttBatchTopic() {
+        return mqttBatchTopic;
+    }
+
+    public long getMqttBatchLinger() {
+        return mqttBatchLinger;
+    }
+
+    public int getMqttBatchMaxEvents() {
+        return mqttBatchMaxEvents;
+    }
+
+    public int getMqttEnterQos() {
+        return mqttEnterQos;
+    }
+
+    public int getMqttExitQos() {
+        return mqttExitQos;
+    }
+
+    /**
+     * QoS of zone enter and exit messages.
+     */
+    public int getMqttZoneQos() {
+        return mqttZoneQos;
+    }
+
+    /**
+     * QoS of batches, which can hold events of every type.
+     */
+    public int getMqttBatchQos() {
+        return mqttBatchQos;
+    }
+
+    /**
+     * True when the present beacons are kept in retained messages, on the
+     * snapshot topic and on a state topic per saved beacon.
+     */
+    public boolean isMqttRetainedEnabled() {
+        return mqttRetainedEnabled;
+    }
+
+    public String getMqttSnapshotTopic() {
+        return mqttSnapshotTopic;
+    }
+
+    /**
+     * Topic template for the state of each saved beacon, see {@link #getMqttEnterTopic()}.
+     */
+    public String getMqttBeaconStateTopic() {
+        return mqttBeaconStateTopic;
+    }
+
+    /**
+     * 3 for MQTT 3.1.1 or 5 for MQTT 5.
+     */
+    public int getMqttProtocolVersion() {
+        return mqttProtocolVersion;
+    }
+
+    /**
+     * Seconds the broker keeps the session after a disconnect, MQTT 5 only.
+     */
+    public long getMqttSessionExpiry() {
+        return mqttSessionExpiry;
+    }
+
+    /**
+     * Seconds after which an undelivered event is dropped, 0 to keep it until delivered.
+     */
+    public long getMqttMessageExpiry() {
+        return mqttMessageExpiry;
+    }
+
+    public boolean isMqttTlsEnabled() {
+        return mqttTlsEnabled;
+    }
+
+    /**
+     * Path of the certificates to trust, empty to trust the system's CAs.
+     */
+    public String getMqttTlsCaCertificate() {
+        return mqttTlsCaCertificate;
+    }
+
+    /**
+     * Path of the PKCS#12 client certificate, empty for none.
+     */
+    public String getMqttTlsClientCertificate() {
+        return mqttTlsClientCertificate;
+    }
+
+    public String getMqttTlsClientCertificatePassword() {
+        return mqttTlsClientCertificatePassword;
+    }
+
+    /**
+     * The broker in the server, port and TLS settings. Not complete when the server or port is missing.
+     */
+    public BrokerEndpoint getMqttPrimaryBroker() {
+        return mqttPrimaryBroker;
+    }
+
+    /**
+     * Brokers that get every message as well, each with its own queue.
+     */
+    public List<BrokerEndpoint> getMqttAdditionalBrokers() {
+        return mqttAdditionalBrokers;
+    }
+
+    /**
+     * Messages per second that may be sent in {@code lane}, 0 for no limit.
+     */
+    public double getMqttLaneRate(PublishLane lane) {
+        switch (lane) {
+            case CRITICAL:
+                return mqttCriticalRate;
+            case BULK:
+                return mqttBulkRate;
+            default:
+                return mqttNormalRate;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.gjermundbjaanes.beaconmqtt.settings;
+
+import android.content.SharedPreferences;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.PresenceMode;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_PRESENCE_MODE_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.BEACON_RSSI_SMOOTHING_KEY;
+
+/**
+ * Keeps the current {@link AppConfig} in a single volatile field. The config
+ * is rebuilt and swapped in one step whenever a shared preference changes,
+ * after which the registered listeners are told which key changed.
+ */
+public class AppConfigHolder {
+
+    public interface Listener {
+        void onConfigChanged(AppConfig config, String key);
+    }
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceChangeListener; // SharedPreferences only keeps a weak reference
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile AppConfig config;
+
+    public AppConfigHolder(SharedPreferences sharedPreferences) {
+        migratePreferences(sharedPreferences);
+        config = AppConfig.fromPreferences(sharedPreferences);
+
+        preferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                AppConfig newConfig = AppConfig.fromPreferences(sharedPreferences);
+                config = newConfig;
+                for (Listener listener : listeners) {
+                    listener.onConfigChanged(newConfig, key);
+                }
+            }
+        };
+        sharedPreferences.registerOnSharedPreferenceChangeListener(preferenceChangeListener);
+    }
+
+    /**
+     * RSSI smoothing used to be a switch of its own before presence modes were added.
+     */
+    private static void migratePreferences(SharedPreferences sharedPreferences) {
+        if (sharedPreferences.contains(BEACON_RSSI_SMOOTHING_KEY) && !sharedPreferences.contains(BEACON_PRESENCE_MODE_KEY)) {
+            PresenceMode presenceMode = sharedPreferences.getBoolean(BEACON_RSSI_SMOOTHING_KEY, false) ? PresenceMode.RSSI_SMOOTHING : PresenceMode.MONITORING;
+            sharedPreferences.edit()
+                    .putString(BEACON_PRESENCE_MODE_KEY, presenceMode.name())
+                    .remove(BEACON_RSSI_SMOOTHING_KEY)
+                    .apply();
+        }
+    }
+
+    public AppConfig get() {
+        return config;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -35,16 +35,56 @@ import java.util.List;
 public class SettingsActivity extends AppCompatPreferenceActivity {
 
     public static final String GENEARL_LOG_KEY = "general_create_log";
+    public static final String GENERAL_EVENT_QUEUE_POLICY_KEY = "general_event_queue_policy";
 
     public static final String MQTT_SERVER_KEY = "mqtt_server";
     public static final String MQTT_PORT_KEY = "mqtt_port";
     public static final String MQTT_ENTER_TOPIC_KEY = "mqtt_enter_topic";
     public static final String MQTT_EXIT_TOPIC_KEY = "mqtt_exit_topic";
+    public static final String MQTT_PAYLOAD_TEMPLATE_KEY = "mqtt_payload_template";
+    public static final String MQTT_ENTER_PAYLOAD_FORMAT_KEY = "mqtt_enter_payload_format";
+    public static final String MQTT_EXIT_PAYLOAD_FORMAT_KEY = "mqtt_exit_payload_format";
+    public static final String MQTT_ZONE_ENTER_TOPIC_KEY = "mqtt_zone_enter_topic";
+    public static final String MQTT_ZONE_EXIT_TOPIC_KEY = "mqtt_zone_exit_topic";
+    public static final String MQTT_ZONE_EVENTS_ONLY_KEY = "mqtt_zone_events_only";
+    public static final String MQTT_BATCH_ENABLED_KEY = "mqtt_batch_enabled";
+    public static final String MQTT_BATCH_TOPIC_KEY = "mqtt_batch_topic";
+    public static final String MQTT_BATCH_LINGER_KEY = "mqtt_batch_linger";
+    public static final String MQTT_BATCH_MAX_EVENTS_KEY = "mqtt_batch_max_events";
+    public static final String MQTT_ENTER_QOS_KEY = "mqtt_enter_qos";
+    public static final String MQTT_EXIT_QOS_KEY = "mqtt_exit_qos";
+    public static final String MQTT_ZONE_QOS_KEY = "mqtt_zone_qos";
+    public static final String MQTT_BATCH_QOS_KEY = "mqtt_batch_qos";
+    public static final String MQTT_RETAINED_ENABLED_KEY = "mqtt_retained_enabled";
+    public static final String MQTT_SNAPSHOT_TOPIC_KEY = "mqtt_snapshot_topic";
+    public static final String MQTT_BEACON_STATE_TOPIC_KEY = "mqtt_beacon_state_topic";
+    public static final String MQTT_PROTOCOL_VERSION_KEY = "mqtt_protocol_version";
+    public static final String MQTT_SESSION_EXPIRY_KEY = "mqtt_session_expiry";
+    public static final String MQTT_MESSAGE_EXPIRY_KEY = "mqtt_message_expiry";
+    public static final String MQTT_TLS_ENABLED_KEY = "mqtt_tls_enabled";
+    public static final String MQTT_TLS_CA_CERTIFICATE_KEY = "mqtt_tls_ca_certificate";
+    public static final String MQTT_TLS_CLIENT_CERTIFICATE_KEY = "mqtt_tls_client_certificate";
+    public static final String MQTT_TLS_CLIENT_CERTIFICATE_PASSWORD_KEY = "mqtt_tls_client_certificate_password";
+    public static final String MQTT_ADDITIONAL_BROKERS_KEY = "mqtt_additional_brokers";
+    public static final String MQTT_CRITICAL_RATE_KEY = "mqtt_critical_rate";
+    public static final String MQTT_NORMAL_RATE_KEY = "mqtt_normal_rate";
+    public static final String MQTT_BULK_RATE_KEY = "mqtt_bulk_rate";
 
     public static final String BEACON_NOTIFICATIONS_ENTER_KEY = "beacon_notifications_enter";
     public static final String BEACON_NOTIFICATIONS_EXIT_KEY = "beacon_notifications_exit";
     public static final String BEACON_PERIOD_BETWEEN_SCANS_KEY = "beacon_period_between_scans";
     public static final String BEACON_SCAN_PERIOD_KEY = "beacon_scan_period";
+    public static final String BEACON_COMPACT_REGIONS_KEY = "beacon_compact_regions";
+    public static final String BEACON_ADAPTIVE_SCANNING_KEY = "beacon_adaptive_scanning";
+    public static final String BEACON_ADAPTIVE_MIN_BETWEEN_SCANS_KEY = "beacon_adaptive_min_between_scans";
+    public static final String BEACON_ADAPTIVE_MAX_BETWEEN_SCANS_KEY = "beacon_adaptive_max_between_scans";
+    public static final String BEACON_PRESENCE_MODE_KEY = "beacon_presence_mode";
+    public static final String BEACON_RSSI_SMOOTHING_KEY = "beacon_rssi_smoothing"; // Replaced by BEACON_PRESENCE_MODE_KEY, only read when migrating
+    public static final String BEACON_RSSI_ENTER_THRESHOLD_KEY = "beacon_rssi_enter_threshold";
+    public static final String BEACON_RSSI_EXIT_THRESHOLD_KEY = "beacon_rssi_exit_threshold";
+    public static final String BEACON_RSSI_MIN_DWELL_KEY = "beacon_rssi_min_dwell";
+    public static final String BEACON_RANGING_EXIT_TIMEOUT_KEY = "beacon_ranging_exit_timeout";
+    public static final String BEACON_FORMATS_KEY = "beacon_formats";
 
     /**
      * A preference value change listener that updates the preference's summary
@@ -182,6 +222,29 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             bindPreferenceSummaryToValue(findPreference(MQTT_PORT_KEY));
             bindPreferenceSummaryToValue(findPreference(MQTT_ENTER_TOPIC_KEY));
             bindPreferenceSummaryToValue(findPreference(MQTT_EXIT_TOPIC_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_PAYLOAD_TEMPLATE_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_ENTER_PAYLOAD_FORMAT_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_EXIT_PAYLOAD_FORMAT_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_ZONE_ENTER_TOPIC_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_ZONE_EXIT_TOPIC_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_BATCH_TOPIC_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_BATCH_LINGER_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_BATCH_MAX_EVENTS_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_ENTER_QOS_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_EXIT_QOS_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_ZONE_QOS_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_BATCH_QOS_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_SNAPSHOT_TOPIC_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_BEACON_STATE_TOPIC_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_PROTOCOL_VERSION_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_SESSION_EXPIRY_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_MESSAGE_EXPIRY_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_TLS_CA_CERTIFICATE_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_TLS_CLIENT_CERTIFICATE_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_ADDITIONAL_BROKERS_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_CRITICAL_RATE_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_NORMAL_RATE_KEY));
+            bindPreferenceSummaryToValue(findPreference(MQTT_BULK_RATE_KEY));
         }
 
         @Override
@@ -213,6 +276,13 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             // guidelines.
             bindPreferenceSummaryToValue(findPreference(BEACON_PERIOD_BETWEEN_SCANS_KEY));
             bindPreferenceSummaryToValue(findPreference(BEACON_SCAN_PERIOD_KEY));
+            bindPreferenceSummaryToValue(findPreference(BEACON_ADAPTIVE_MIN_BETWEEN_SCANS_KEY));
+            bindPreferenceSummaryToValue(findPreference(BEACON_ADAPTIVE_MAX_BETWEEN_SCANS_KEY));
+            bindPreferenceSummaryToValue(findPreference(BEACON_PRESENCE_MODE_KEY));
+            bindPreferenceSummaryToValue(findPreference(BEACON_RSSI_ENTER_THRESHOLD_KEY));
+            bindPreferenceSummaryToValue(findPreference(BEACON_RSSI_EXIT_THRESHOLD_KEY));
+            bindPreferenceSummaryToValue(findPreference(BEACON_RSSI_MIN_DWELL_KEY));
+            bindPreferenceSummaryToValue(findPreference(BEACON_RANGING_EXIT_TIMEOUT_KEY));
         }
 
         @Override
@@ -242,6 +312,7 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             // to their values. When their values change, their summaries are
             // updated to reflect the new value, per the Android Design
             // guidelines.
+            bindPreferenceSummaryToValue(findPreference(GENERAL_EVENT_QUEUE_POLICY_KEY));
             findPreference(GENEARL_LOG_KEY).setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
                 @Override
                 public boolean onPreferenceChange(Preference preference, Object newValue) {
@@ -0,0 +1,133 @@
+package com.gjermundbjaanes.beaconmqtt.zone;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.db.zone.ZoneResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns beacon enter/exit events into zone occupancy changes. A zone is
+ * entered when the first of its beacons enters and exited when the last one
+ * exits, so a room covered by several beacons produces one event per visit.
+ */
+public class ZoneAggregator {
+
+    public interface Listener {
+        void onZoneEntered(String zone);
+
+        void onZoneExited(String zone);
+    }
+
+    private final Listener listener;
+    private final Set<BeaconIdentity> presentBeacons = new HashSet<>();
+    private Map<BeaconIdentity, List<String>> zonesByBeacon = new HashMap<>();
+    private Map<String, Integer> presentCountByZone = new HashMap<>();
+
+    public ZoneAggregator(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replaces the zones, e.g. after a beacon was saved or deleted. Occupancy
+     * is recomputed from {@code presentBeacons}, and zones that became
+     * occupied or empty because of the change are reported.
+     */
+    public synchronized void setZones(Collection<ZoneResult> zones, Collection<BeaconIdentity> presentBeacons) {
+        Set<String> occupiedBefore = new LinkedHashSet<>(presentCountByZone.keySet());
+
+        Map<BeaconIdentity, List<String>> newZonesByBeacon = new HashMap<>();
+        for (ZoneResult zone : zones) {
+            for (BeaconIdentity beacon : zone.getBeacons()) {
+                List<String> beaconZones = newZonesByBeacon.get(beacon);
+                if (beaconZones == null) {
+                    beaconZones = new ArrayList<>(1);
+                    newZonesByBeacon.put(beacon, beaconZones);
+                }
+                if (!beaconZones.contains(zone.getName())) {
+                    beaconZones.add(zone.getName());
+                }
+            }
+        }
+        zonesByBeacon = newZonesByBeacon;
+
+        this.presentBeacons.clear();
+        this.presentBeacons.addAll(presentBeacons);
+        presentCountByZone = new HashMap<>();
+        for (BeaconIdentity beacon : this.presentBeacons) {
+            for (String zone : getZones(beacon)) {
+                Integer count = presentCountByZone.get(zone);
+                presentCountByZone.put(zone, count == null ? 1 : count + 1);
+            }
+        }
+
+        for (String zone : occupiedBefore) {
+            if (!presentCountByZone.containsKey(zone)) {
+                listener.onZoneExited(zone);
+            }
+        }
+        for (String zone : presentCountByZone.keySet()) {
+            if (!occupiedBefore.contains(zone)) {
+                listener.onZoneEntered(zone);
+            }
+        }
+    }
+
+    /**
+     * The beacons counted as present, whose enter was the last thing reported for them.
+     */
+    public synchronized Set<BeaconIdentity> getPresentBeacons() {
+        return new HashSet<>(presentBeacons);
+    }
+
+    public synchronized boolean isInZone(BeaconIdentity beacon) {
+        return zonesByBeacon.containsKey(beacon);
+    }
+
+    public synchronized void beaconEntered(BeaconIdentity beacon) {
+        if (!presentBeacons.add(beacon)) {
+            return;
+        }
+
+        for (String zone : getZones(beacon)) {
+            Integer count = presentCountByZone.get(zone);
+            if (count == null) {
+                presentCountByZone.put(zone, 1);
+                listener.onZoneEntered(zone);
+            } else {
+                presentCountByZone.put(zone, count + 1);
+            }
+        }
+    }
+
+    public synchronized void beaconExited(BeaconIdentity beacon) {
+        if (!presentBeacons.remove(beacon)) {
+            return;
+        }
+
+        for (String zone : getZones(beacon)) {
+            Integer count = presentCountByZone.get(zone);
+            if (count == null) {
+                continue;
+            }
+            if (count <= 1) {
+                presentCountByZone.remove(zone);
+                listener.onZoneExited(zone);
+            } else {
+                presentCountByZone.put(zone, count - 1);
+            }
+        }
+    }
+
+    private List<String> getZones(BeaconIdentity beacon) {
+        List<String> zones = zonesByBeacon.get(beacon);
+        return zones != null ? zones : Collections.<String>emptyList();
+    }
+}
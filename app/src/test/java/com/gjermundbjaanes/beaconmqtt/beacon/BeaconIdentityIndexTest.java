@@ -0,0 +1,54 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BeaconIdentityIndexTest {
+
+    private static final String UUID_STRING = "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6";
+
+    private final BeaconIdentityIndex index = new BeaconIdentityIndex();
+
+    @Test
+    public void findsIdentityByEqualUuidKey() throws Exception {
+        BeaconIdentity identity = BeaconIdentity.fromStrings(UUID_STRING, "1", "2");
+        index.put(identity.getUuid(), identity);
+
+        assertSame(identity, index.get(UUID.fromString(UUID_STRING), 1, 2));
+    }
+
+    @Test
+    public void returnsNullForUnknownBeacon() throws Exception {
+        BeaconIdentity identity = BeaconIdentity.fromStrings(UUID_STRING, "1", "2");
+        index.put(identity.getUuid(), identity);
+
+        assertNull(index.get(UUID.fromString(UUID_STRING), 2, 1));
+        assertNull(index.get(UUID.fromString("00000000-0000-0000-0000-000000000000"), 1, 2));
+    }
+
+    @Test
+    public void keepsAllIdentitiesWhenGrowing() throws Exception {
+        for (int minor = 0; minor < 1000; minor++) {
+            BeaconIdentity identity = BeaconIdentity.fromStrings(UUID_STRING, "65535", String.valueOf(minor));
+            index.put(identity.getUuid(), identity);
+        }
+
+        assertEquals(1000, index.size());
+        for (int minor = 0; minor < 1000; minor++) {
+            assertEquals(minor, index.get(UUID.fromString(UUID_STRING), 65535, minor).getMinor());
+        }
+    }
+
+    @Test
+    public void clearRemovesEverything() throws Exception {
+        BeaconIdentity identity = BeaconIdentity.fromStrings(UUID_STRING, "1", "2");
+        index.put(identity.getUuid(), identity);
+        index.clear();
+
+        assertEquals(0, index.size());
+        assertNull(index.get(UUID.fromString(UUID_STRING), 1, 2));
+    }
+}
@@ -0,0 +1,42 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BeaconIdentityTest {
+
+    private static final String UUID = "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6";
+
+    @Test
+    public void majorAndMinorDoNotRunTogether() throws Exception {
+        BeaconIdentity first = BeaconIdentity.fromStrings(UUID, "1", "23");
+        BeaconIdentity second = BeaconIdentity.fromStrings(UUID, "12", "3");
+
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void equalForSameBeaconWrittenDifferently() throws Exception {
+        BeaconIdentity first = BeaconIdentity.fromStrings(UUID, "1", "2");
+        BeaconIdentity second = BeaconIdentity.fromStrings(" " + UUID.toUpperCase(), "01", "2 ");
+
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    @Test
+    public void keepsFullMajorMinorRange() throws Exception {
+        BeaconIdentity identity = BeaconIdentity.fromStrings(UUID, "65535", "0");
+
+        assertEquals(65535, identity.getMajor());
+        assertEquals(0, identity.getMinor());
+        assertEquals(UUID, identity.getUuid().toString());
+        assertEquals(UUID + ":65535:0", identity.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMajorOutOfRange() throws Exception {
+        BeaconIdentity.fromStrings(UUID, "65536", "0");
+    }
+}
@@ -0,0 +1,135 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconParser;
+import org.altbeacon.beacon.logging.LogManager;
+import org.altbeacon.beacon.logging.Loggers;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Replays the advertisements in advertisements.hex through different parser
+ * sets and compares parses per second, where one parse is one advertisement
+ * tried against the parsers until one matches, like the library does.
+ * Skipped in the normal unit test run, run it with
+ *
+ * ./gradlew testDebugUnitTest -Dbenchmark=true --tests '*BeaconParserBenchmark'
+ */
+public class BeaconParserBenchmark {
+
+    private static final int SCAN_RECORD_LENGTH = 62;
+    private static final long WARM_UP_NANOS = 500000000L;
+    private static final long MEASURE_NANOS = 2000000000L;
+
+    // What BeaconApplication registered before the formats became configurable
+    private static final List<String> HARD_CODED_LAYOUTS = Arrays.asList(
+            "m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24,d:25-25",
+            "s:0-1=feaa,m:2-2=00,p:3-3:-41,i:4-13,i:14-19",
+            "x,s:0-1=feaa,m:2-2=20,d:3-3,d:4-5,d:6-7,d:8-11,d:12-15",
+            "s:0-1=feaa,m:2-2=10,p:3-3:-41,i:4-20v",
+            "m:2-3=0215,i:4-19,i:20-21,i:22-23,p:24-24",
+            "m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24,d:25-25",
+            "m:0-3=4c000215,i:4-19,i:20-21,i:22-23,p:24-24");
+
+    @Test
+    public void parsesPerSecond() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        LogManager.setLogger(Loggers.empty()); // The library logs through android.util.Log, which unit tests do not have
+        List<byte[]> advertisements = loadAdvertisements();
+
+        List<BeaconParser> allFormats = parsers(EnumSet.allOf(BeaconFormat.class));
+        assertEquals(5, countBeacons(allFormats, advertisements));
+
+        List<BeaconParser> hardCoded = new ArrayList<>();
+        for (String layout : HARD_CODED_LAYOUTS) {
+            hardCoded.add(new BeaconParser().setBeaconLayout(layout));
+        }
+        hardCoded.add(0, new BeaconParser().setBeaconLayout(BeaconFormat.ALTBEACON.getLayout())); // The library's default parser
+
+        double hardCodedRate = measure(hardCoded, advertisements);
+        double allFormatsRate = measure(allFormats, advertisements);
+        double iBeaconRate = measure(parsers(EnumSet.of(BeaconFormat.IBEACON)), advertisements);
+
+        String rates = String.format("Parses/s: hard coded (8 parsers) %,.0f, all formats %,.0f, iBeacon %,.0f",
+                hardCodedRate, allFormatsRate, iBeaconRate);
+        assertTrue(rates, allFormatsRate > hardCodedRate);
+        assertTrue(rates, iBeaconRate > allFormatsRate);
+    }
+
+    private static List<BeaconParser> parsers(Collection<BeaconFormat> formats) {
+        return BeaconFormat.createParsers(BeaconFormat.getLayouts(formats));
+    }
+
+    /**
+     * @return parses per second
+     */
+    private static double measure(List<BeaconParser> parsers, List<byte[]> advertisements) {
+        run(parsers, advertisements, WARM_UP_NANOS);
+        long start = System.nanoTime();
+        long parses = run(parsers, advertisements, MEASURE_NANOS);
+        return parses / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static long run(List<BeaconParser> parsers, List<byte[]> advertisements, long durationNanos) {
+        long end = System.nanoTime() + durationNanos;
+        long parses = 0;
+        int beacons = 0;
+        while (System.nanoTime() < end) {
+            beacons += countBeacons(parsers, advertisements);
+            parses += advertisements.size();
+        }
+        assertTrue(beacons >= 0); // Keeps the parsing from being optimised away
+        return parses;
+    }
+
+    private static int countBeacons(List<BeaconParser> parsers, List<byte[]> advertisements) {
+        int beacons = 0;
+        for (int i = 0; i < advertisements.size(); i++) {
+            for (int j = 0; j < parsers.size(); j++) {
+                Beacon beacon = parsers.get(j).fromScanData(advertisements.get(i), -60, null);
+                if (beacon != null) {
+                    beacons++;
+                    break;
+                }
+            }
+        }
+        return beacons;
+    }
+
+    private List<byte[]> loadAdvertisements() throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("advertisements.hex");
+        assertNotNull(inputStream);
+
+        List<byte[]> advertisements = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                byte[] advertisement = new byte[SCAN_RECORD_LENGTH];
+                for (int i = 0; i < line.length() / 2; i++) {
+                    advertisement[i] = (byte) Integer.parseInt(line.substring(i * 2, i * 2 + 2), 16);
+                }
+                advertisements.add(advertisement);
+            }
+        } finally {
+            reader.close();
+        }
+        return advertisements;
+    }
+}
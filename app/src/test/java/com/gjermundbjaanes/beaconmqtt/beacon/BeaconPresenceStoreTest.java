@@ -0,0 +1,140 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class BeaconPresenceStoreTest {
+
+    private static final String UUID = "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6";
+    private static final BeaconResult FIRST = new BeaconResult(UUID, "1", "1", "First");
+    private static final BeaconResult SECOND = new BeaconResult(UUID, "1", "2", "Second");
+    private static final BeaconResult THIRD = new BeaconResult(UUID, "1", "3", "Third");
+
+    private final List<Runnable> scheduled = new CopyOnWriteArrayList<>();
+    private final BeaconPresenceStore store = new BeaconPresenceStore(new BeaconPresenceStore.Scheduler() {
+        @Override
+        public void schedule(Runnable runnable, long delayMillis) {
+            scheduled.add(runnable);
+        }
+    });
+
+    @Test
+    public void addReturnsFalseForBeaconAlreadyPresent() throws Exception {
+        assertTrue(store.add(FIRST));
+        assertFalse(store.add(new BeaconResult(UUID, "01", "1", "Same beacon")));
+
+        assertEquals(Collections.singletonList(FIRST), store.getSnapshot().getBeacons());
+    }
+
+    @Test
+    public void removeReturnsFalseForBeaconNotPresent() throws Exception {
+        store.add(FIRST);
+
+        assertFalse(store.remove(SECOND));
+        assertTrue(store.remove(FIRST));
+        assertFalse(store.remove(FIRST));
+        assertTrue(store.getSnapshot().getBeacons().isEmpty());
+    }
+
+    @Test
+    public void versionGoesUpOncePerChange() throws Exception {
+        assertEquals(0, store.getSnapshot().getVersion());
+
+        store.add(FIRST);
+        store.add(FIRST);
+        assertEquals(1, store.getSnapshot().getVersion());
+
+        store.remove(SECOND);
+        store.remove(FIRST);
+        assertEquals(2, store.getSnapshot().getVersion());
+    }
+
+    @Test
+    public void retainAllKeepsOnlySavedBeacons() throws Exception {
+        store.add(FIRST);
+        store.add(SECOND);
+        store.add(THIRD);
+
+        assertTrue(store.retainAll(Arrays.asList(FIRST, THIRD)));
+
+        BeaconPresenceStore.Snapshot snapshot = store.getSnapshot();
+        assertEquals(Arrays.asList(FIRST, THIRD), snapshot.getBeacons());
+        assertFalse(snapshot.contains(SECOND.getIdentity()));
+        assertEquals(4, snapshot.getVersion());
+    }
+
+    @Test
+    public void retainAllReturnsFalseWhenNothingChanges() throws Exception {
+        store.add(FIRST);
+
+        assertFalse(store.retainAll(Arrays.asList(FIRST, SECOND)));
+        assertEquals(1, store.getSnapshot().getVersion());
+    }
+
+    @Test
+    public void concurrentAddsAllEndUpInSnapshot() throws Exception {
+        final int numberOfThreads = 8;
+        final int beaconsPerThread = 100;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            final int major = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int minor = 0; minor < beaconsPerThread; minor++) {
+                        store.add(new BeaconResult(UUID, String.valueOf(major), String.valueOf(minor), null));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        BeaconPresenceStore.Snapshot snapshot = store.getSnapshot();
+        assertEquals(numberOfThreads * beaconsPerThread, snapshot.getBeacons().size());
+        assertEquals(numberOfThreads * beaconsPerThread, snapshot.getVersion());
+        for (int major = 0; major < numberOfThreads; major++) {
+            for (int minor = 0; minor < beaconsPerThread; minor++) {
+                assertTrue(snapshot.contains(BeaconIdentity.fromStrings(UUID, String.valueOf(major), String.valueOf(minor))));
+            }
+        }
+    }
+
+    @Test
+    public void listenersGetOneNotificationWithLatestSnapshot() throws Exception {
+        final List<BeaconPresenceStore.Snapshot> notified = new CopyOnWriteArrayList<>();
+        store.add(FIRST);
+        store.add(SECOND);
+        store.addListener(new BeaconPresenceStore.Listener() {
+            @Override
+            public void onPresenceChanged(BeaconPresenceStore.Snapshot snapshot) {
+                notified.add(snapshot);
+            }
+        });
+        scheduled.remove(1).run(); // The snapshot delivered on adding the listener
+
+        assertEquals(1, scheduled.size());
+        scheduled.get(0).run();
+
+        assertEquals(2, notified.size());
+        assertSame(store.getSnapshot(), notified.get(1));
+    }
+}
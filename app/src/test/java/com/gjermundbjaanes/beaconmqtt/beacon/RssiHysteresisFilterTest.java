@@ -0,0 +1,131 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class RssiHysteresisFilterTest {
+
+    private static final BeaconIdentity BEACON = BeaconIdentity.fromStrings("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", "1", "2");
+
+    private final RecordingCallback callback = new RecordingCallback();
+    private final RssiHysteresisFilter filter = new RssiHysteresisFilter(-80, -90, 5000);
+
+    @Test
+    public void entersOnlyAfterDwellTime() throws Exception {
+        filter.beaconRanged(BEACON, -60);
+        filter.cycleCompleted(0, callback);
+        assertTrue(callback.events.isEmpty());
+
+        filter.beaconRanged(BEACON, -60);
+        filter.cycleCompleted(5000, callback);
+        assertEquals(1, callback.events.size());
+        assertEquals("enter", callback.events.get(0));
+    }
+
+    @Test
+    public void doesNotFlapBetweenThresholds() throws Exception {
+        enter();
+
+        for (int cycle = 0; cycle < 20; cycle++) {
+            filter.beaconRanged(BEACON, cycle % 2 == 0 ? -84 : -88);
+            filter.cycleCompleted(10000 + cycle * 1000, callback);
+        }
+
+        assertEquals(1, callback.events.size());
+    }
+
+    @Test
+    public void exitsWhenMissingForLongEnough() throws Exception {
+        enter();
+
+        long now = 10000;
+        while (callback.events.size() == 1 && now < 100000) {
+            filter.cycleCompleted(now, callback);
+            now += 1000;
+        }
+
+        assertEquals(2, callback.events.size());
+        assertEquals("exit", callback.events.get(1));
+    }
+
+    @Test
+    public void rangingSavedBeaconsDoesNotAllocatePerSample() throws Exception {
+        int numberOfBeacons = 50;
+        BeaconIdentityIndex index = new BeaconIdentityIndex();
+        UUID[] rangedUuids = new UUID[numberOfBeacons];
+        for (int minor = 0; minor < numberOfBeacons; minor++) {
+            BeaconIdentity identity = BeaconIdentity.fromStrings(BEACON.getUuid().toString(), "1", String.valueOf(minor));
+            index.put(identity.getUuid(), identity);
+            rangedUuids[minor] = UUID.fromString(BEACON.getUuid().toString()); // Equal, but not the saved instance
+        }
+
+        Method getThreadAllocatedBytes = getThreadAllocatedBytesMethod();
+        assumeTrue(getThreadAllocatedBytes != null);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        rangeCycles(index, rangedUuids, 0, 1000);
+        long before = (Long) getThreadAllocatedBytes.invoke(threadMXBean, threadId);
+        rangeCycles(index, rangedUuids, 1000, 1000);
+        long allocated = (Long) getThreadAllocatedBytes.invoke(threadMXBean, threadId) - before;
+
+        assertEquals(numberOfBeacons, callback.events.size());
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1000 * numberOfBeacons);
+    }
+
+    private void rangeCycles(BeaconIdentityIndex index, UUID[] rangedUuids, int firstCycle, int cycles) {
+        for (int cycle = firstCycle; cycle < firstCycle + cycles; cycle++) {
+            for (int minor = 0; minor < rangedUuids.length; minor++) {
+                filter.beaconRanged(index.get(rangedUuids[minor], 1, minor), -60);
+            }
+            filter.cycleCompleted(cycle * 1000L, callback);
+        }
+    }
+
+    /**
+     * @return HotSpot's extension of ThreadMXBean, looked up so that other JVMs
+     * can still run these tests, or null if it isn't there
+     */
+    private static Method getThreadAllocatedBytesMethod() {
+        try {
+            return Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void enter() {
+        filter.beaconRanged(BEACON, -70);
+        filter.cycleCompleted(0, callback);
+        filter.beaconRanged(BEACON, -70);
+        filter.cycleCompleted(5000, callback);
+        assertEquals(1, callback.events.size());
+    }
+
+    private static class RecordingCallback implements RangedPresenceDetector.Callback {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void beaconEntered(BeaconIdentity identity) {
+            events.add("enter");
+        }
+
+        @Override
+        public void beaconExited(BeaconIdentity identity) {
+            events.add("exit");
+        }
+
+        @Override
+        public void beaconMoved(BeaconIdentity identity) {
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanBackoffPolicyTest {
+
+    @Test
+    public void backsOffExponentiallyUpToMaximum() throws Exception {
+        ScanBackoffPolicy policy = new ScanBackoffPolicy(5000, 30000);
+
+        assertEquals(10000, policy.nextBetweenScanPeriod(false));
+        assertEquals(20000, policy.nextBetweenScanPeriod(false));
+        assertEquals(30000, policy.nextBetweenScanPeriod(false));
+        assertEquals(30000, policy.nextBetweenScanPeriod(false));
+    }
+
+    @Test
+    public void activityResetsToMinimum() throws Exception {
+        ScanBackoffPolicy policy = new ScanBackoffPolicy(5000, 30000);
+        policy.nextBetweenScanPeriod(false);
+        policy.nextBetweenScanPeriod(false);
+
+        assertEquals(5000, policy.nextBetweenScanPeriod(true));
+        assertTrue(policy.isAtMinimum());
+    }
+
+    @Test
+    public void zeroMinimumStillBacksOff() throws Exception {
+        ScanBackoffPolicy policy = new ScanBackoffPolicy(0, 8);
+
+        assertEquals(2, policy.nextBetweenScanPeriod(false));
+        assertEquals(4, policy.nextBetweenScanPeriod(false));
+    }
+}
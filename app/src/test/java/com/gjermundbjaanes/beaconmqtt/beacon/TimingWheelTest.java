@@ -0,0 +1,114 @@
+package com.gjermundbjaanes.beaconmqtt.beacon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private static final BeaconIdentity BEACON_1 = BeaconIdentity.fromStrings("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", "1", "1");
+    private static final BeaconIdentity BEACON_2 = BeaconIdentity.fromStrings("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", "1", "2");
+
+    private final RecordingListener listener = new RecordingListener();
+    private final TimingWheel timingWheel = new TimingWheel(100, 8, 0);
+
+    @Test
+    public void expiresAfterTimeout() throws Exception {
+        timingWheel.schedule(BEACON_1, 0, 3000, listener);
+
+        timingWheel.advanceTo(2900);
+        assertTrue(listener.expired.isEmpty());
+
+        timingWheel.advanceTo(3000);
+        assertEquals(1, listener.expired.size());
+        assertEquals(BEACON_1, listener.expired.get(0));
+        assertEquals(0, timingWheel.size());
+    }
+
+    @Test
+    public void touchPushesDeadline() throws Exception {
+        TimingWheel.Timeout timeout = timingWheel.schedule(BEACON_1, 0, 1000, listener);
+
+        for (long now = 500; now <= 5000; now += 500) {
+            timingWheel.touch(timeout, now, 1000);
+            timingWheel.advanceTo(now);
+        }
+        assertTrue(listener.expired.isEmpty());
+
+        timingWheel.advanceTo(6000);
+        assertEquals(1, listener.expired.size());
+    }
+
+    @Test
+    public void shorterTimeoutMovesDeadlineForward() throws Exception {
+        TimingWheel.Timeout timeout = timingWheel.schedule(BEACON_1, 0, 5000, listener);
+        timingWheel.touch(timeout, 100, 500);
+
+        timingWheel.advanceTo(600);
+        assertEquals(1, listener.expired.size());
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotExpire() throws Exception {
+        TimingWheel.Timeout timeout = timingWheel.schedule(BEACON_1, 0, 1000, listener);
+        timingWheel.schedule(BEACON_2, 0, 1000, listener);
+        timingWheel.cancel(timeout);
+
+        timingWheel.advanceTo(1000);
+        assertEquals(1, listener.expired.size());
+        assertEquals(BEACON_2, listener.expired.get(0));
+    }
+
+    @Test
+    public void timeoutsLongerThanOneRoundWaitForTheirRound() throws Exception {
+        timingWheel.schedule(BEACON_1, 0, 250, listener);
+        timingWheel.schedule(BEACON_2, 0, 250 + 8 * 100, listener);
+
+        timingWheel.advanceTo(300);
+        assertEquals(1, listener.expired.size());
+        assertEquals(BEACON_1, listener.expired.get(0));
+
+        timingWheel.advanceTo(1100);
+        assertEquals(2, listener.expired.size());
+        assertEquals(BEACON_2, listener.expired.get(1));
+    }
+
+    @Test
+    public void reportsToTheListenerOfEachTimeout() throws Exception {
+        RecordingListener otherListener = new RecordingListener();
+        timingWheel.schedule(BEACON_1, 0, 500, listener);
+        timingWheel.schedule(BEACON_1, 0, 1000, otherListener);
+
+        timingWheel.advanceTo(500);
+        assertEquals(1, listener.expired.size());
+        assertTrue(otherListener.expired.isEmpty());
+
+        timingWheel.advanceTo(1000);
+        assertEquals(1, listener.expired.size());
+        assertEquals(1, otherListener.expired.size());
+    }
+
+    @Test
+    public void skipsIdleTimeWithoutLosingDeadlines() throws Exception {
+        timingWheel.advanceTo(100000);
+        timingWheel.schedule(BEACON_1, 100000, 1000, listener);
+
+        timingWheel.advanceTo(100900);
+        assertTrue(listener.expired.isEmpty());
+
+        timingWheel.advanceTo(101000);
+        assertEquals(1, listener.expired.size());
+    }
+
+    private static class RecordingListener implements TimingWheel.ExpiryListener {
+        private final List<BeaconIdentity> expired = new ArrayList<>();
+
+        @Override
+        public void timeoutExpired(BeaconIdentity identity) {
+            expired.add(identity);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.gjermundbjaanes.beaconmqtt.db.beacon;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BeaconPersistenceTest {
+
+    private static final String UUID = "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6";
+
+    @Test
+    public void rewritesOldRowsToTheKeyTheyAreLookedUpBy() throws Exception {
+        String[] canonicalKey = BeaconPersistence.getCanonicalKey(" " + UUID.toUpperCase() + " ", "01", "2");
+
+        BeaconIdentity identity = BeaconIdentity.fromStrings(UUID, "1", "2");
+        assertArrayEquals(new String[] {UUID, "1", "2"}, canonicalKey);
+        assertArrayEquals(BeaconPersistence.getPrimaryKey(identity), canonicalKey);
+    }
+
+    @Test
+    public void leavesCanonicalRowsAlone() throws Exception {
+        assertNull(BeaconPersistence.getCanonicalKey(UUID, "1", "2"));
+    }
+
+    @Test
+    public void leavesRowsWithoutAValidBeaconAlone() throws Exception {
+        assertNull(BeaconPersistence.getCanonicalKey("not a uuid", "1", "2"));
+        assertNull(BeaconPersistence.getCanonicalKey(UUID, "70000", "2"));
+    }
+}
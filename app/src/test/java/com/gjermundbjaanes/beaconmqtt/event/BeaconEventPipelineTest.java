@@ -0,0 +1,180 @@
+package com.gjermundbjaanes.beaconmqtt.event;
+
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BeaconEventPipelineTest {
+
+    private static final int CAPACITY = 4;
+    private static final BeaconResult BEACON = new BeaconResult("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", "1", "1", "kitchen");
+
+    private final RecordingHandler handler = new RecordingHandler();
+    private BackpressurePolicy policy = BackpressurePolicy.BLOCK;
+    private BeaconEventPipeline pipeline = new BeaconEventPipeline(CAPACITY, handler, new BeaconEventPipeline.PolicyProvider() {
+        @Override
+        public BackpressurePolicy getBackpressurePolicy() {
+            return policy;
+        }
+    });
+
+    @After
+    public void tearDown() throws Exception {
+        handler.gate.countDown();
+        pipeline.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void handlesEventsInOrderAcrossWrapAround() throws Exception {
+        handler.gate.countDown();
+        for (int i = 0; i < 3 * CAPACITY; i++) {
+            assertTrue(pipeline.enqueue(event(i)));
+        }
+
+        assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(range(0, 3 * CAPACITY), handler.handled);
+        assertEquals(0, pipeline.getDroppedEventCount());
+    }
+
+    @Test
+    public void dropNewestKeepsTheQueuedEvents() throws Exception {
+        policy = BackpressurePolicy.DROP_NEWEST;
+        fillWhileConsumerIsBusy();
+
+        assertFalse(pipeline.enqueue(event(CAPACITY + 1)));
+        assertEquals(1, pipeline.getDroppedEventCount());
+
+        handler.gate.countDown();
+        assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(range(0, CAPACITY + 1), handler.handled);
+        assertEquals(Arrays.asList(1L), handler.dropped);
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewEvent() throws Exception {
+        policy = BackpressurePolicy.DROP_OLDEST;
+        fillWhileConsumerIsBusy();
+
+        assertTrue(pipeline.enqueue(event(CAPACITY + 1)));
+        assertEquals(1, pipeline.getDroppedEventCount());
+
+        handler.gate.countDown();
+        assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+        List<Long> expected = range(2, CAPACITY + 2);
+        expected.add(0, 0L);
+        assertEquals(expected, handler.handled);
+        assertEquals(Arrays.asList(1L), handler.dropped);
+    }
+
+    @Test
+    public void blockWaitsUntilTheConsumerFreesSpace() throws Exception {
+        fillWhileConsumerIsBusy();
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.enqueue(event(CAPACITY + 1));
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        handler.gate.countDown();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+
+        assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(range(0, CAPACITY + 2), handler.handled);
+        assertEquals(0, pipeline.getDroppedEventCount());
+    }
+
+    @Test
+    public void runsTasksInOrderWithEvents() throws Exception {
+        pipeline.enqueue(event(0));
+        handler.started.await(1, TimeUnit.SECONDS);
+        pipeline.enqueue(event(1));
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                handler.handled.add(-1L);
+            }
+        });
+        pipeline.enqueue(event(2));
+
+        handler.gate.countDown();
+        assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0L, 1L, -1L, 2L), handler.handled);
+    }
+
+    @Test
+    public void shutdownDrainsTheQueue() throws Exception {
+        fillWhileConsumerIsBusy();
+
+        handler.gate.countDown();
+        assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(range(0, CAPACITY + 1), handler.handled);
+        assertEquals(CAPACITY + 1, pipeline.getHandledEventCount());
+
+        assertFalse(pipeline.enqueue(event(CAPACITY + 1)));
+    }
+
+    /**
+     * Leaves the consumer stuck on event 0 with events 1 to CAPACITY queued.
+     */
+    private void fillWhileConsumerIsBusy() throws Exception {
+        assertTrue(pipeline.enqueue(event(0)));
+        assertTrue(handler.started.await(1, TimeUnit.SECONDS));
+        for (int i = 1; i <= CAPACITY; i++) {
+            assertTrue(pipeline.enqueue(event(i)));
+        }
+        assertEquals(CAPACITY, pipeline.getQueueDepth());
+    }
+
+    private static BeaconEvent event(long timestamp) {
+        return new BeaconEvent(BeaconEvent.Type.ENTER, BEACON, timestamp);
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> range = new ArrayList<>();
+        for (long i = from; i < to; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+
+    /**
+     * Records the timestamps of the handled events, the first one waits for the gate.
+     */
+    private static class RecordingHandler implements BeaconEventHandler {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final List<Long> handled = new ArrayList<>(); // Only touched on the consumer thread until it is joined
+        private final List<Long> dropped = new ArrayList<>();
+
+        @Override
+        public void handleBeaconEvent(BeaconEvent event) {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            handled.add(event.getTimestamp());
+        }
+
+        @Override
+        public void eventsDropped(long droppedCount) {
+            dropped.add(droppedCount);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BinaryPresencePayloadTest {
+
+    private static final UUID UUID_1 = UUID.fromString("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6");
+
+    @Test
+    public void roundTripsWithoutRssi() throws Exception {
+        byte[] payload = BinaryPresencePayload.encode(BinaryPresencePayload.EVENT_ENTER, UUID_1, 65535, 1, 1500000000000L, BinaryPresencePayload.NO_RSSI);
+        assertEquals(31, payload.length);
+
+        BinaryPresencePayload decoded = BinaryPresencePayload.decode(payload);
+        assertEquals(BinaryPresencePayload.VERSION, decoded.getVersion());
+        assertEquals(BinaryPresencePayload.EVENT_ENTER, decoded.getEventType());
+        assertEquals(UUID_1, decoded.getUuid());
+        assertEquals(65535, decoded.getMajor());
+        assertEquals(1, decoded.getMinor());
+        assertEquals(1500000000000L, decoded.getTimestamp());
+        assertFalse(decoded.hasRssi());
+    }
+
+    @Test
+    public void roundTripsRssi() throws Exception {
+        byte[] payload = BinaryPresencePayload.encode(BinaryPresencePayload.EVENT_EXIT, UUID_1, 1, 2, 0, -87);
+        assertEquals(32, payload.length);
+
+        BinaryPresencePayload decoded = BinaryPresencePayload.decode(payload);
+        assertTrue(decoded.hasRssi());
+        assertEquals(-87, decoded.getRssi());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() throws Exception {
+        byte[] payload = BinaryPresencePayload.encode(BinaryPresencePayload.EVENT_ENTER, UUID_1, 1, 2, 0, BinaryPresencePayload.NO_RSSI);
+        payload[0] = 2;
+        BinaryPresencePayload.decode(payload);
+    }
+}
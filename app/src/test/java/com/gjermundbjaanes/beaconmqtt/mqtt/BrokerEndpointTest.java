@@ -0,0 +1,49 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BrokerEndpointTest {
+
+    @Test
+    public void parsesSchemePortAndTopicPrefix() throws Exception {
+        List<BrokerEndpoint> endpoints = BrokerEndpoint.parseList(
+                "homeassistant.local:1883\n  ssl://mqtt.example.com:8883   site1/ \n");
+
+        assertEquals(2, endpoints.size());
+        BrokerEndpoint local = endpoints.get(0);
+        assertEquals("tcp://homeassistant.local:1883", local.getServerUri());
+        assertEquals("beacon/enter", local.mapTopic("beacon/enter"));
+
+        BrokerEndpoint cloud = endpoints.get(1);
+        assertTrue(cloud.isTls());
+        assertEquals("mqtt.example.com", cloud.getHost());
+        assertEquals(8883, cloud.getPort());
+        assertEquals("site1/beacon/enter", cloud.mapTopic("beacon/enter"));
+    }
+
+    @Test
+    public void skipsInvalidAndRepeatedLines() throws Exception {
+        List<BrokerEndpoint> endpoints = BrokerEndpoint.parseList(
+                "no-port\n:1883\nbroker:notaport\nbroker:70000\n\nbroker:1883\ntcp://broker:1883\n");
+
+        assertEquals(1, endpoints.size());
+        assertEquals("tcp://broker:1883", endpoints.get(0).getServerUri());
+        assertTrue(BrokerEndpoint.parseList(null).isEmpty());
+    }
+
+    @Test
+    public void fileNamesDifferPerEndpoint() throws Exception {
+        BrokerEndpoint plain = new BrokerEndpoint("broker", 1883, false, "");
+        BrokerEndpoint prefixed = new BrokerEndpoint("broker", 1883, false, "site1/");
+        BrokerEndpoint tls = new BrokerEndpoint("broker", 1883, true, "");
+
+        assertEquals("journal-broker-1883.bin", plain.getFileName("journal", ".bin"));
+        assertNotEquals(plain.getFileName("journal", ".bin"), prefixed.getFileName("journal", ".bin"));
+        assertNotEquals(plain.getFileName("journal", ".bin"), tls.getFileName("journal", ".bin"));
+        assertEquals(plain, new BrokerEndpoint(" broker ", 1883, false, null));
+    }
+}
@@ -0,0 +1,32 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JsonPayloadWriterTest {
+
+    @Test
+    public void writesEscapedUtf8() throws Exception {
+        JsonPayloadWriter writer = new JsonPayloadWriter();
+        writer.beginObject()
+                .field("zone", "Kj\u00f8kken \"1\"\n\u0001\ud83d\ude00")
+                .field("ts", -1234567890123L)
+                .endObject();
+
+        assertEquals("{\"zone\":\"Kj\u00f8kken \\\"1\\\"\\n\\u0001\ud83d\ude00\",\"ts\":-1234567890123}",
+                new String(writer.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void continuesFromEncodedFields() throws Exception {
+        JsonPayloadWriter writer = new JsonPayloadWriter();
+        byte[] fields = writer.beginObject().field("uuid", "a").encodeFields();
+
+        writer.beginObject(fields).field("ts", 0).endObject();
+        assertEquals("{\"uuid\":\"a\",\"ts\":0}", new String(writer.toByteArray(), "UTF-8"));
+
+        writer.beginObject(fields).endObject();
+        assertEquals("{\"uuid\":\"a\"}", new String(writer.toByteArray(), "UTF-8"));
+    }
+}
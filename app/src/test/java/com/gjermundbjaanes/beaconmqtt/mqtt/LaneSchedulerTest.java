@@ -0,0 +1,97 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LaneSchedulerTest {
+
+    private static final int MAX_IN_FLIGHT = 10;
+    private static final int RESERVED_SLOTS = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Map<PublishLane, OutboundJournal> journals;
+    private LaneScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        journals = new EnumMap<>(PublishLane.class);
+        for (PublishLane lane : PublishLane.values()) {
+            journals.put(lane, OutboundJournal.open(folder.newFile(), 4096));
+        }
+        scheduler = new LaneScheduler(journals, MAX_IN_FLIGHT, RESERVED_SLOTS, 0);
+    }
+
+    @Test
+    public void servesLanesByStrictPriority() throws Exception {
+        append(PublishLane.BULK, "batch");
+        append(PublishLane.NORMAL, "zone");
+        append(PublishLane.CRITICAL, "exit");
+
+        assertEquals("exit", scheduler.next(0, 0).getRecord().getTopic());
+        assertEquals("zone", scheduler.next(1, 0).getRecord().getTopic());
+        assertEquals("batch", scheduler.next(2, 0).getRecord().getTopic());
+        assertNull(scheduler.next(3, 0));
+        assertEquals(-1, scheduler.getWaitMillis());
+    }
+
+    @Test
+    public void keepsReservedSlotsForCriticalMessages() throws Exception {
+        append(PublishLane.BULK, "batch");
+        assertNull(scheduler.next(MAX_IN_FLIGHT - RESERVED_SLOTS, 0));
+
+        append(PublishLane.CRITICAL, "exit");
+        assertEquals("exit", scheduler.next(MAX_IN_FLIGHT - RESERVED_SLOTS, 0).getRecord().getTopic());
+        assertNull(scheduler.next(MAX_IN_FLIGHT, 0));
+        assertEquals("batch", scheduler.next(MAX_IN_FLIGHT - RESERVED_SLOTS - 1, 0).getRecord().getTopic());
+    }
+
+    @Test
+    public void waitsForTheFirstRateLimitedLane() throws Exception {
+        scheduler.setRate(PublishLane.NORMAL, 1, 0);
+        scheduler.setRate(PublishLane.BULK, 4, 0);
+        for (int i = 0; i < 2; i++) {
+            append(PublishLane.NORMAL, "zone");
+        }
+        for (int i = 0; i < 5; i++) {
+            append(PublishLane.BULK, "batch");
+        }
+
+        assertEquals("zone", scheduler.next(0, 0).getRecord().getTopic());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("batch", scheduler.next(0, 0).getRecord().getTopic());
+        }
+        assertNull(scheduler.next(0, 0));
+        assertEquals(250, scheduler.getWaitMillis());
+
+        assertEquals("batch", scheduler.next(0, 250).getRecord().getTopic());
+        assertEquals("zone", scheduler.next(0, 1000).getRecord().getTopic());
+    }
+
+    @Test
+    public void retriesFollowPriorityAndReservedSlots() throws Exception {
+        append(PublishLane.BULK, "batch");
+        LaneScheduler.Message batch = scheduler.next(0, 0);
+        scheduler.retry(batch, 1000, 0);
+
+        assertNull(scheduler.next(0, 500));
+        assertEquals(500, scheduler.getWaitMillis());
+
+        append(PublishLane.CRITICAL, "exit");
+        assertEquals("exit", scheduler.next(MAX_IN_FLIGHT - RESERVED_SLOTS, 1000).getRecord().getTopic());
+        assertNull(scheduler.next(MAX_IN_FLIGHT - RESERVED_SLOTS + 1, 1000));
+        assertSame(batch, scheduler.next(0, 1000));
+    }
+
+    private void append(PublishLane lane, String topic) throws Exception {
+        journals.get(lane).append(topic, 1, "{}".getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,61 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageBatcherTest {
+
+    @Test
+    public void joinsEventsIntoJsonArray() throws Exception {
+        MessageBatcher messageBatcher = new MessageBatcher();
+        assertNull(messageBatcher.drain());
+
+        assertEquals(1, add(messageBatcher, "{\"a\":1}"));
+        assertEquals(2, add(messageBatcher, "{\"b\":2}"));
+        assertEquals("[{\"a\":1},{\"b\":2}]", new String(messageBatcher.drain(), "UTF-8"));
+
+        assertEquals(0, messageBatcher.size());
+        byte[] reused = "{}xx".getBytes("UTF-8");
+        messageBatcher.add(reused, 2);
+        assertEquals("[{}]", new String(messageBatcher.drain(), "UTF-8"));
+    }
+
+    @Test
+    public void batchTakesLaneOfMostUrgentEvent() throws Exception {
+        MessageBatcher messageBatcher = new MessageBatcher();
+
+        add(messageBatcher, "{\"zone\":1}", PublishLane.NORMAL, 1000);
+        add(messageBatcher, "{\"enter\":1}", PublishLane.CRITICAL, 2000);
+        add(messageBatcher, "{\"zone\":2}", PublishLane.NORMAL, 3000);
+        assertEquals(PublishLane.CRITICAL, messageBatcher.getLane());
+        messageBatcher.drain();
+
+        assertNull(messageBatcher.getLane());
+        add(messageBatcher, "{\"zone\":3}", PublishLane.NORMAL, 4000);
+        assertEquals(PublishLane.NORMAL, messageBatcher.getLane());
+    }
+
+    @Test
+    public void keepsTimestampOfFirstEvent() throws Exception {
+        MessageBatcher messageBatcher = new MessageBatcher();
+
+        add(messageBatcher, "{\"enter\":1}", PublishLane.CRITICAL, 1000);
+        add(messageBatcher, "{\"enter\":2}", PublishLane.CRITICAL, 2000);
+        assertEquals(1000, messageBatcher.getFirstTimestamp());
+        messageBatcher.drain();
+
+        add(messageBatcher, "{\"enter\":3}", PublishLane.CRITICAL, 3000);
+        assertEquals(3000, messageBatcher.getFirstTimestamp());
+    }
+
+    private static int add(MessageBatcher messageBatcher, String event) throws Exception {
+        byte[] bytes = event.getBytes("UTF-8");
+        return messageBatcher.add(bytes, bytes.length);
+    }
+
+    private static int add(MessageBatcher messageBatcher, String event, PublishLane lane, long timestamp) throws Exception {
+        byte[] bytes = event.getBytes("UTF-8");
+        return messageBatcher.add(bytes, bytes.length, lane, timestamp);
+    }
+}
@@ -0,0 +1,47 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageTemplateTest {
+
+    private static final BeaconIdentity IDENTITY = BeaconIdentity.fromStrings("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", "1", "2");
+    private static final BeaconResult NAMED = new BeaconResult(IDENTITY, "Hall \"A\"", 0);
+    private static final BeaconResult UNNAMED = new BeaconResult(IDENTITY, null, 0);
+
+    @Test
+    public void rendersTopicPlaceholders() throws Exception {
+        MessageTemplate template = MessageTemplate.compileTopic("home/{name}/{event}/{major}.{minor}");
+
+        assertEquals("home/Hall \"A\"/enter/1.2", template.renderTopic(NAMED, "enter", 0));
+        assertEquals("home/2f234454-cf6d-4a0f-adf2-f4911ba9ffa6-1-2/exit/1.2", template.renderTopic(UNNAMED, "exit", 0));
+    }
+
+    @Test
+    public void replacesTopicSeparatorsAndWildcardsInValues() throws Exception {
+        BeaconResult beacon = new BeaconResult(IDENTITY, "a/b+c#d\0e", 0);
+
+        assertEquals("home/a_b_c_d_e/enter", MessageTemplate.compileTopic("home/{name}/{event}").renderTopic(beacon, "enter", 0));
+    }
+
+    @Test
+    public void keepsPlainTopicAndUnknownPlaceholders() throws Exception {
+        String plain = "beacon/enter";
+        assertSame(plain, MessageTemplate.compileTopic(plain).renderTopic(NAMED, "enter", 0));
+        assertEquals("a/{nope}/{topic}/{uuid", MessageTemplate.compileTopic("a/{nope}/{topic}/{uuid").renderTopic(NAMED, "enter", 0));
+        assertTrue(MessageTemplate.compilePayload("").isEmpty());
+    }
+
+    @Test
+    public void rendersEscapedPayload() throws Exception {
+        MessageTemplate template = MessageTemplate.compilePayload("{\"id\":\"{name}\",\"at\":{ts},\"t\":\"{topic}\"}");
+        JsonPayloadWriter writer = new JsonPayloadWriter();
+
+        template.renderPayload(writer, NAMED, "enter", 1500000000000L, "home/hall");
+        assertEquals("{\"id\":\"Hall \\\"A\\\"\",\"at\":1500000000000,\"t\":\"home/hall\"}", new String(writer.toByteArray(), "UTF-8"));
+    }
+}
@@ -0,0 +1,310 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class Mqtt5TransportTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private ServerSocket serverSocket;
+    private Mqtt5Transport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (transport != null) {
+            transport.disconnect(new NoopCallback());
+        }
+        serverSocket.close();
+    }
+
+    @Test
+    public void repeatedTopicIsSentAsAliasWithMessageExpiry() throws Exception {
+        final List<String> topics = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> aliases = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Long> expiries = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger connectFlags = new AtomicInteger(-1);
+        Thread broker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    OutputStream out = socket.getOutputStream();
+                    connectFlags.set(readPacket(in)[7]); // After the protocol name and version
+                    // CONNACK, success, topic alias maximum 10
+                    out.write(new byte[]{0x20, 0x06, 0x00, 0x00, 0x03, 0x22, 0x00, 0x0a});
+                    for (int i = 0; i < 3; i++) {
+                        ByteBuffer publish = ByteBuffer.wrap(readPacket(in));
+                        byte[] topic = new byte[publish.getShort()];
+                        publish.get(topic);
+                        topics.add(new String(topic, "UTF-8"));
+                        short packetId = publish.getShort();
+                        int end = Mqtt5Transport.readVariableInt(publish) + publish.position();
+                        while (publish.position() < end) {
+                            int id = publish.get();
+                            if (id == 0x02) {
+                                expiries.add(publish.getInt() & 0xffffffffL);
+                            } else if (id == 0x23) {
+                                aliases.add(publish.getShort() & 0xffff);
+                            } else {
+                                skipString(publish); // User property
+                                skipString(publish);
+                            }
+                        }
+                        out.write(new byte[]{0x40, 0x02, (byte) (packetId >> 8), (byte) packetId});
+                    }
+                    readPacket(in); // DISCONNECT
+                    socket.close();
+                } catch (IOException e) {
+                    // The test fails on its own assertions
+                }
+            }
+        });
+        broker.start();
+
+        final CountDownLatch delivered = new CountDownLatch(3);
+        transport = new Mqtt5Transport("127.0.0.1", serverSocket.getLocalPort(), null, "test", 60,
+                Collections.singletonMap("client", "test"), DIRECT, new NoopListener(), new MqttTransport.PublishListener() {
+            @Override
+            public void onPublishSent(Object context) {
+            }
+
+            @Override
+            public void onPublishDelivered(Object context) {
+                delivered.countDown();
+            }
+
+            @Override
+            public void onPublishFailed(Object context, Throwable exception) {
+            }
+        });
+        connect(transport);
+
+        for (int i = 0; i < 3; i++) {
+            transport.publish("beacon/enter", new byte[]{'{', '}'}, 1, false, 30, i);
+        }
+
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(0x02, connectFlags.get()); // Clean start, the journal replays undelivered messages
+        assertEquals("beacon/enter", topics.get(0));
+        assertEquals("", topics.get(1));
+        assertEquals("", topics.get(2));
+        assertEquals(3, aliases.size());
+        assertEquals(aliases.get(0), aliases.get(1));
+        assertEquals(aliases.get(0), aliases.get(2));
+        assertEquals(Long.valueOf(30), expiries.get(2));
+    }
+
+    @Test
+    public void keepsToReceiveMaximumAndRefusesPacketsOverMaximumSize() throws Exception {
+        final AtomicInteger sentBeforeAcknowledged = new AtomicInteger(-1);
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        Thread broker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    OutputStream out = socket.getOutputStream();
+                    readPacket(in);
+                    // CONNACK, success, receive maximum 1, maximum packet size 64
+                    out.write(new byte[]{0x20, 0x0b, 0x00, 0x00, 0x08, 0x21, 0x00, 0x01, 0x27, 0x00, 0x00, 0x00, 0x40});
+                    for (int i = 0; i < 2; i++) {
+                        byte[] publish = readPacket(in);
+                        received.add(publish.length);
+                        if (i == 0) {
+                            Thread.sleep(300);
+                            sentBeforeAcknowledged.set(in.available());
+                        }
+                        ByteBuffer buffer = ByteBuffer.wrap(publish);
+                        buffer.position(2 + buffer.getShort());
+                        short packetId = buffer.getShort();
+                        out.write(new byte[]{0x40, 0x02, (byte) (packetId >> 8), (byte) packetId});
+                    }
+                    readPacket(in); // DISCONNECT
+                    socket.close();
+                } catch (IOException | InterruptedException e) {
+                    // The test fails on its own assertions
+                }
+            }
+        });
+        broker.start();
+
+        final CountDownLatch done = new CountDownLatch(3);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        transport = new Mqtt5Transport("127.0.0.1", serverSocket.getLocalPort(), null, "test", 0,
+                Collections.<String, String>emptyMap(), DIRECT, new NoopListener(), new MqttTransport.PublishListener() {
+            @Override
+            public void onPublishSent(Object context) {
+            }
+
+            @Override
+            public void onPublishDelivered(Object context) {
+                done.countDown();
+            }
+
+            @Override
+            public void onPublishFailed(Object context, Throwable exception) {
+                failure.set(exception);
+                done.countDown();
+            }
+        });
+        connect(transport);
+
+        transport.publish("a", new byte[1], 1, false, 0, 1);
+        transport.publish("b", new byte[100], 1, false, 0, 2);
+        transport.publish("c", new byte[2], 1, false, 0, 3);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, sentBeforeAcknowledged.get());
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof Mqtt5Transport.PacketTooLargeException);
+        assertEquals(2, received.size());
+        assertEquals(received.get(0) + 1, (int) received.get(1)); // "a" and "c", "b" was never sent
+    }
+
+    @Test
+    public void mqtt3ConnackIsUnsupportedProtocol() throws Exception {
+        Thread broker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    readPacket(new DataInputStream(socket.getInputStream()));
+                    // 3.1.1 CONNACK, unacceptable protocol version
+                    socket.getOutputStream().write(new byte[]{0x20, 0x02, 0x00, 0x01});
+                    socket.close();
+                } catch (IOException e) {
+                    // The test fails on its own assertions
+                }
+            }
+        });
+        broker.start();
+
+        Throwable failure = connectAndFail();
+        assertTrue(String.valueOf(failure), failure instanceof Mqtt5Transport.UnsupportedProtocolException);
+    }
+
+    @Test
+    public void connectionClosedOnConnectIsNotUnsupportedProtocol() throws Exception {
+        Thread broker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    readPacket(new DataInputStream(socket.getInputStream()));
+                    socket.close();
+                } catch (IOException e) {
+                    // The test fails on its own assertions
+                }
+            }
+        });
+        broker.start();
+
+        Throwable failure = connectAndFail();
+        assertTrue(String.valueOf(failure), failure instanceof IOException);
+        assertFalse(failure instanceof Mqtt5Transport.UnsupportedProtocolException);
+    }
+
+    private Throwable connectAndFail() throws Exception {
+        transport = new Mqtt5Transport("127.0.0.1", serverSocket.getLocalPort(), null, "test", 0,
+                Collections.<String, String>emptyMap(), DIRECT, new NoopListener(), null);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        transport.connect(new MqttTransport.ActionCallback() {
+            @Override
+            public void onSuccess() {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable exception) {
+                failure.set(exception);
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return failure.get();
+    }
+
+    private static void connect(MqttTransport transport) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        transport.connect(new MqttTransport.ActionCallback() {
+            @Override
+            public void onSuccess() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable exception) {
+            }
+        });
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    private static byte[] readPacket(DataInputStream in) throws IOException {
+        in.readUnsignedByte();
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        buffer.position(buffer.position() + length);
+    }
+
+    private static class NoopListener implements MqttTransport.Listener {
+        @Override
+        public void onConnectionLost(Throwable cause) {
+        }
+    }
+
+    private static class NoopCallback implements MqttTransport.ActionCallback {
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public void onFailure(Throwable exception) {
+        }
+    }
+}
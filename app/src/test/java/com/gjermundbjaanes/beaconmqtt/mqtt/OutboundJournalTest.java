@@ -0,0 +1,100 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class OutboundJournalTest {
+
+    private static final int CAPACITY = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pollsInOrderAndForgetsAcknowledgedMessages() throws Exception {
+        OutboundJournal journal = OutboundJournal.open(folder.newFile(), CAPACITY);
+        journal.append("enter", 1, "a".getBytes("UTF-8"));
+        journal.append("exit", 2, "b".getBytes("UTF-8"));
+
+        OutboundJournal.Record first = journal.poll();
+        OutboundJournal.Record second = journal.poll();
+        assertEquals("enter", first.getTopic());
+        assertEquals(1, first.getQos());
+        assertEquals(2, second.getQos());
+        assertEquals("b", new String(second.getPayload(), "UTF-8"));
+        assertNull(journal.poll());
+
+        journal.acknowledge(second.getSeq());
+        assertEquals(1, journal.size());
+        journal.rewind();
+        assertEquals(first.getSeq(), journal.poll().getSeq());
+        assertNull(journal.poll());
+
+        journal.acknowledge(first.getSeq());
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void acknowledgingPastTheRewoundCursorDoesNotReplayDeliveredMessages() throws Exception {
+        OutboundJournal journal = OutboundJournal.open(folder.newFile(), CAPACITY);
+        for (int i = 0; i < 3; i++) {
+            journal.append("topic", 1, String.valueOf(i).getBytes("UTF-8"));
+        }
+        OutboundJournal.Record first = journal.poll();
+        OutboundJournal.Record second = journal.poll();
+        journal.rewind();
+
+        journal.acknowledge(first.getSeq());
+        journal.acknowledge(second.getSeq());
+        assertEquals("2", new String(journal.poll().getPayload(), "UTF-8"));
+        assertNull(journal.poll());
+    }
+
+    @Test
+    public void replaysUnacknowledgedMessagesAfterReopening() throws Exception {
+        File file = folder.newFile();
+        OutboundJournal journal = OutboundJournal.open(file, CAPACITY);
+        for (int i = 0; i < 3; i++) {
+            journal.append("topic", 1, String.valueOf(i).getBytes("UTF-8"));
+        }
+        journal.acknowledge(journal.poll().getSeq());
+        journal.close();
+
+        journal = OutboundJournal.open(file, CAPACITY);
+        assertEquals(2, journal.size());
+        assertEquals("1", new String(journal.poll().getPayload(), "UTF-8"));
+        assertEquals("2", new String(journal.poll().getPayload(), "UTF-8"));
+        assertNull(journal.poll());
+    }
+
+    @Test
+    public void wrapsAroundAndDropsOldestWhenFull() throws Exception {
+        File file = folder.newFile();
+        OutboundJournal journal = OutboundJournal.open(file, CAPACITY);
+        byte[] payload = new byte[40];
+        for (int i = 0; i < 100; i++) {
+            payload[0] = (byte) i;
+            journal.append("topic", 1, payload);
+            if (i < 50) {
+                journal.acknowledge(journal.poll().getSeq());
+            }
+        }
+        assertTrue(journal.takeDroppedCount() > 0);
+        int size = journal.size();
+        journal.close();
+
+        journal = OutboundJournal.open(file, CAPACITY);
+        assertEquals(size, journal.size());
+        int expected = 100 - size;
+        OutboundJournal.Record record;
+        while ((record = journal.poll()) != null) {
+            assertEquals((byte) expected++, record.getPayload()[0]);
+        }
+        assertEquals(100, expected);
+    }
+}
@@ -0,0 +1,142 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares encoding an enter/exit payload the way MqttBroadcaster used to,
+ * with a JSONObject and String.getBytes, against the pre-encoded fields from
+ * PayloadCache spliced in by JsonPayloadWriter. Compares the time and, on
+ * JVMs that can measure it, the bytes allocated per payload. Skipped in the
+ * normal unit test run, run it with
+ *
+ * ./gradlew testDebugUnitTest -Dbenchmark=true --tests '*PayloadEncodingBenchmark'
+ */
+public class PayloadEncodingBenchmark {
+
+    private static final int BEACON_COUNT = 64;
+    private static final long WARM_UP_NANOS = 500000000L;
+    private static final long MEASURE_NANOS = 2000000000L;
+
+    @Test
+    public void encodesPerSecond() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final List<BeaconIdentity> identities = new ArrayList<>();
+        List<BeaconResult> beacons = new ArrayList<>();
+        for (int i = 0; i < BEACON_COUNT; i++) {
+            BeaconIdentity identity = BeaconIdentity.fromStrings("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", String.valueOf(i), String.valueOf(i * 7));
+            identities.add(identity);
+            beacons.add(new BeaconResult(identity, "Beacon " + i, 0));
+        }
+        final PayloadCache payloadCache = new PayloadCache();
+        payloadCache.update(beacons);
+        final JsonPayloadWriter writer = new JsonPayloadWriter();
+
+        Encoder jsonObject = new Encoder() {
+            @Override
+            public int encode(int i, long timestamp) throws Exception {
+                BeaconIdentity identity = identities.get(i % BEACON_COUNT);
+                JSONObject json = new JSONObject();
+                json.put("uuid", identity.getUuid().toString());
+                json.put("major", String.valueOf(identity.getMajor()));
+                json.put("minor", String.valueOf(identity.getMinor()));
+                json.put("ts", timestamp);
+                return json.toString().getBytes("UTF-8").length;
+            }
+        };
+        Encoder preEncoded = new Encoder() {
+            @Override
+            public int encode(int i, long timestamp) throws Exception {
+                writer.beginObject(payloadCache.getFields(identities.get(i % BEACON_COUNT)))
+                        .field("ts", timestamp)
+                        .endObject();
+                return writer.size();
+            }
+        };
+
+        assertEquals(jsonObject.encode(3, 1500000000000L), preEncoded.encode(3, 1500000000000L));
+
+        Result jsonObjectResult = measure(jsonObject);
+        Result preEncodedResult = measure(preEncoded);
+
+        String results = "JSONObject " + jsonObjectResult + ", pre-encoded " + preEncodedResult;
+        assertTrue(results, preEncodedResult.nanos < jsonObjectResult.nanos);
+        if (preEncodedResult.allocatedBytes >= 0) {
+            assertTrue(results, preEncodedResult.allocatedBytes < jsonObjectResult.allocatedBytes);
+        }
+    }
+
+    private interface Encoder {
+        int encode(int i, long timestamp) throws Exception;
+    }
+
+    /**
+     * Time and allocation per payload, allocation is negative if the JVM cannot tell.
+     */
+    private static final class Result {
+        private final double nanos;
+        private final double allocatedBytes;
+
+        Result(double nanos, double allocatedBytes) {
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,.1f ns/payload %,.1f bytes allocated/payload", nanos, allocatedBytes);
+        }
+    }
+
+    private static Result measure(Encoder encoder) throws Exception {
+        run(encoder, WARM_UP_NANOS);
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long payloads = run(encoder, MEASURE_NANOS);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        return new Result((double) elapsed / payloads, allocatedBefore < 0 ? -1 : (double) allocated / payloads);
+    }
+
+    private static long run(Encoder encoder, long durationNanos) throws Exception {
+        long end = System.nanoTime() + durationNanos;
+        long payloads = 0;
+        long bytes = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 1000; i++) {
+                bytes += encoder.encode(i, 1500000000000L + i);
+            }
+            payloads += 1000;
+        }
+        assertTrue(bytes > 0); // Keeps the encoding from being optimised away
+        return payloads;
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        try {
+            // HotSpot's extension of ThreadMXBean, looked up so that other JVMs can still run this
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadMXBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void delaysStayInUpperHalfOfDoublingCeiling() throws Exception {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 8000, new Random(42));
+
+        long[] ceilings = {1000, 2000, 4000, 8000, 8000};
+        for (long ceiling : ceilings) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay + " for " + ceiling, delay >= ceiling / 2 && delay <= ceiling);
+        }
+        assertEquals(5, backoff.getAttempts());
+    }
+
+    @Test
+    public void resetStartsOver() throws Exception {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new Random(42));
+        for (int i = 0; i < 10; i++) {
+            backoff.nextDelay();
+        }
+
+        backoff.reset();
+        assertTrue(backoff.nextDelay() <= 1000);
+    }
+}
@@ -0,0 +1,196 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import android.content.SharedPreferences;
+
+import com.gjermundbjaanes.beaconmqtt.db.beacon.BeaconResult;
+import com.gjermundbjaanes.beaconmqtt.settings.AppConfigHolder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_BEACON_STATE_TOPIC_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_RETAINED_ENABLED_KEY;
+import static com.gjermundbjaanes.beaconmqtt.settings.SettingsActivity.MQTT_SNAPSHOT_TOPIC_KEY;
+import static org.junit.Assert.*;
+
+public class RetainedPresencePublisherTest {
+
+    private static final BeaconResult KITCHEN = new BeaconResult("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", "1", "1", "kitchen");
+    private static final BeaconResult GARAGE = new BeaconResult("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", "1", "2", "garage");
+
+    private Preferences preferences;
+    private List<String> published;
+    private Runnable scheduled;
+    private RetainedPresencePublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        preferences = new Preferences();
+        preferences.values.put(MQTT_RETAINED_ENABLED_KEY, true);
+        preferences.values.put(MQTT_SNAPSHOT_TOPIC_KEY, "present");
+        preferences.values.put(MQTT_BEACON_STATE_TOPIC_KEY, "state/{minor}");
+        published = new ArrayList<>();
+
+        MessagePublisher brokers = new MessagePublisher() {
+            @Override
+            public void publish(PublishLane lane, String topic, int qos, boolean retained, long expiresAt, byte[] payload, int length) {
+                assertTrue(retained);
+                published.add(length == 0 ? topic + " cleared" : topic);
+            }
+        };
+        RetainedPresencePublisher.Scheduler scheduler = new RetainedPresencePublisher.Scheduler() {
+            @Override
+            public void schedule(Runnable runnable, long delayMillis) {
+                assertEquals(1000, delayMillis);
+                scheduled = runnable;
+            }
+        };
+        publisher = new RetainedPresencePublisher(new AppConfigHolder(preferences), brokers, new PayloadCache(), scheduler);
+
+        publisher.beaconsChanged(Arrays.asList(KITCHEN, GARAGE));
+        publisher.presenceChanged(Collections.singletonList(KITCHEN));
+        runScheduled();
+        published.clear();
+    }
+
+    @Test
+    public void debouncesChangesIntoOnePublish() throws Exception {
+        publisher.presenceChanged(Arrays.asList(KITCHEN, GARAGE));
+        publisher.presenceChanged(Collections.<BeaconResult>emptyList());
+        publisher.presenceChanged(Collections.singletonList(GARAGE));
+        assertTrue(published.isEmpty());
+
+        runScheduled();
+        assertEquals(Arrays.asList("present", "state/1", "state/2"), published);
+    }
+
+    @Test
+    public void publishesOnlyWhatChanged() throws Exception {
+        publisher.presenceChanged(Collections.singletonList(KITCHEN));
+        runScheduled();
+        assertTrue(published.isEmpty());
+
+        publisher.presenceChanged(Arrays.asList(KITCHEN, GARAGE));
+        runScheduled();
+        assertEquals(Arrays.asList("present", "state/2"), published);
+    }
+
+    @Test
+    public void clearsStateOfBeaconsNoLongerSaved() throws Exception {
+        publisher.beaconsChanged(Collections.singletonList(KITCHEN));
+        runScheduled();
+        assertEquals(Collections.singletonList("state/2 cleared"), published);
+    }
+
+    @Test
+    public void clearsOldTopicsWhenTopicsChange() throws Exception {
+        preferences.put(MQTT_SNAPSHOT_TOPIC_KEY, "home/present");
+        preferences.put(MQTT_BEACON_STATE_TOPIC_KEY, "home/state/{minor}");
+        publisher.configChanged();
+        runScheduled();
+
+        assertEquals(Arrays.asList("present cleared", "home/present",
+                "state/1 cleared", "home/state/1", "state/2 cleared", "home/state/2"), published);
+    }
+
+    @Test
+    public void clearsEverythingWhenTurnedOff() throws Exception {
+        preferences.put(MQTT_RETAINED_ENABLED_KEY, false);
+        publisher.configChanged();
+        runScheduled();
+        assertEquals(3, published.size());
+        assertTrue(published.containsAll(Arrays.asList("present cleared", "state/1 cleared", "state/2 cleared")));
+
+        published.clear();
+        publisher.presenceChanged(Collections.singletonList(GARAGE));
+        runScheduled();
+        assertTrue(published.isEmpty());
+    }
+
+    private void runScheduled() {
+        Runnable runnable = scheduled;
+        scheduled = null;
+        if (runnable != null) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Just enough of SharedPreferences for {@link AppConfigHolder}.
+     */
+    private static class Preferences implements SharedPreferences {
+        private final Map<String, Object> values = new HashMap<>();
+        private final List<OnSharedPreferenceChangeListener> listeners = new ArrayList<>();
+
+        void put(String key, Object value) {
+            values.put(key, value);
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            return values;
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return values.containsKey(key) ? (String) values.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return values.containsKey(key) ? (Long) values.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return values.containsKey(key) ? (Float) values.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            listeners.remove(listener);
+        }
+    }
+}
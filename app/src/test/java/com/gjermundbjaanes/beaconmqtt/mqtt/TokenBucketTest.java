@@ -0,0 +1,49 @@
+package com.gjermundbjaanes.beaconmqtt.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void allowsBurstThenLimitsToRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(2, 2, 1000);
+
+        assertTrue(bucket.tryTake(1000));
+        assertTrue(bucket.tryTake(1000));
+        assertFalse(bucket.tryTake(1000));
+        assertEquals(500, bucket.millisUntilAvailable(1000));
+
+        assertFalse(bucket.tryTake(1499));
+        assertTrue(bucket.tryTake(1500));
+        assertFalse(bucket.tryTake(1500));
+    }
+
+    @Test
+    public void savesUpNoMoreThanCapacity() throws Exception {
+        TokenBucket bucket = new TokenBucket(10, 3, 0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryTake(0));
+        }
+
+        long later = 60000;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryTake(later));
+        }
+        assertFalse(bucket.tryTake(later));
+    }
+
+    @Test
+    public void zeroRateIsUnlimited() throws Exception {
+        TokenBucket bucket = new TokenBucket(1, 1, 0);
+        assertTrue(bucket.tryTake(0));
+        assertFalse(bucket.tryTake(0));
+
+        bucket.setRate(0, 1, 0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(bucket.tryTake(0));
+        }
+        assertEquals(0, bucket.millisUntilAvailable(0));
+    }
+}
@@ -0,0 +1,84 @@
+package com.gjermundbjaanes.beaconmqtt.zone;
+
+import com.gjermundbjaanes.beaconmqtt.beacon.BeaconIdentity;
+import com.gjermundbjaanes.beaconmqtt.db.zone.ZoneResult;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ZoneAggregatorTest {
+
+    private static final String UUID = "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6";
+    private static final BeaconIdentity KITCHEN_1 = BeaconIdentity.fromStrings(UUID, "1", "1");
+    private static final BeaconIdentity KITCHEN_2 = BeaconIdentity.fromStrings(UUID, "1", "2");
+    private static final BeaconIdentity HALL = BeaconIdentity.fromStrings(UUID, "2", "1");
+    private static final BeaconIdentity UNZONED = BeaconIdentity.fromStrings(UUID, "3", "1");
+
+    private final RecordingListener listener = new RecordingListener();
+    private final ZoneAggregator zoneAggregator = new ZoneAggregator(listener);
+
+    @Before
+    public void setUp() throws Exception {
+        zoneAggregator.setZones(Arrays.asList(
+                new ZoneResult("kitchen", Arrays.asList(KITCHEN_1, KITCHEN_2)),
+                new ZoneResult("hall", Collections.singletonList(HALL))),
+                Collections.<BeaconIdentity>emptyList());
+    }
+
+    @Test
+    public void entersOnFirstBeaconAndExitsOnLast() throws Exception {
+        zoneAggregator.beaconEntered(KITCHEN_1);
+        zoneAggregator.beaconEntered(KITCHEN_2);
+        zoneAggregator.beaconExited(KITCHEN_1);
+        assertEquals(Collections.singletonList("enter kitchen"), listener.events);
+
+        zoneAggregator.beaconExited(KITCHEN_2);
+        assertEquals(Arrays.asList("enter kitchen", "exit kitchen"), listener.events);
+    }
+
+    @Test
+    public void ignoresRepeatedAndUnzonedBeacons() throws Exception {
+        zoneAggregator.beaconEntered(KITCHEN_1);
+        zoneAggregator.beaconEntered(KITCHEN_1);
+        zoneAggregator.beaconEntered(UNZONED);
+        zoneAggregator.beaconExited(HALL);
+
+        assertEquals(Collections.singletonList("enter kitchen"), listener.events);
+        assertTrue(zoneAggregator.isInZone(KITCHEN_1));
+        assertFalse(zoneAggregator.isInZone(UNZONED));
+    }
+
+    @Test
+    public void changedZonesReportOccupancyDifferences() throws Exception {
+        zoneAggregator.beaconEntered(KITCHEN_1);
+        zoneAggregator.beaconEntered(HALL);
+        listener.events.clear();
+
+        zoneAggregator.setZones(Collections.singletonList(
+                new ZoneResult("hall", Arrays.asList(HALL, KITCHEN_1))),
+                Arrays.asList(KITCHEN_1, HALL));
+
+        assertEquals(Collections.singletonList("exit kitchen"), listener.events);
+    }
+
+    private static class RecordingListener implements ZoneAggregator.Listener {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onZoneEntered(String zone) {
+            events.add("enter " + zone);
+        }
+
+        @Override
+        public void onZoneExited(String zone) {
+            events.add("exit " + zone);
+        }
+    }
+}